@@ -0,0 +1,141 @@
+import io.bdrc.epubgenerator.benchmark.HotPaths;
+import org.apache.jena.rdf.model.ModelFactory;
+
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.List;
+
+/**
+ * The generation hot paths, run against a synthetic corpus of one item.
+ */
+public class HotPathWorkloads implements HotPaths {
+
+    private static final String BDR = "http://purl.bdrc.io/resource/";
+    private static final String ITEM_ID = "I1000_E001";
+    private static final String ETEXT_ID = "UT1000_001_0000";
+    private static final String WORK_ID = "W1000";
+
+    private String dataPath;
+    private String outputPath;
+    private String documentFilesPath;
+    private FileDataSource fileDataSource;
+    private DataSource dataSource;
+    private Etext etext;
+    private RDFResource workResource;
+    private MarkdownGenerator markdownGenerator;
+    private WorkSection section;
+    private CharSequence sectionText;
+    private RDFLiteral wylieLiteral;
+    private String title;
+    private FontMetrics titleFontMetrics;
+    private CoverGenerator coverGenerator;
+
+    @Override
+    public void setUp(String dataPath, int pages, int depth) throws Exception
+    {
+        this.dataPath = StringUtils.ensureTrailingSlash(dataPath);
+        outputPath = this.dataPath + "output/";
+        documentFilesPath = StringUtils.ensureTrailingSlash(System.getProperty("user.dir")) + "document_files/";
+        SyntheticCorpus.generate(this.dataPath, 1, 1, pages, depth);
+
+        fileDataSource = new FileDataSource(this.dataPath);
+        dataSource = new CachingDataSource(fileDataSource, 5000);
+        etext = new Etext(BDR + ETEXT_ID, dataSource);
+        workResource = dataSource.loadResource(BDR + WORK_ID);
+        markdownGenerator = new MarkdownGenerator(ITEM_ID, dataSource, outputPath, "");
+
+        List<WorkSection> sections = new Work(workResource, dataSource).getSections(etext, 1);
+        section = sections.get(0);
+        sectionText = etext.getPageContent().getPages(1, pages);
+        etext.releaseContent();
+
+        wylieLiteral = new RDFLiteral(ModelFactory.createDefaultModel()
+                .createLiteral("bka' 'gyur sangs rgyas chos dge 'dun rin po che", "bo-x-ewts"), null);
+        title = new Work(workResource, dataSource).getTitle();
+
+        Font titleFont = Font.createFont(Font.TRUETYPE_FONT, new File(documentFilesPath + CoverGenerator.TIBETAN_FONT))
+                .deriveFont((float) CoverGenerator.FONT_SIZE);
+        Graphics2D graphics = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB).createGraphics();
+        titleFontMetrics = graphics.getFontMetrics(titleFont);
+        graphics.dispose();
+        coverGenerator = new CoverGenerator(documentFilesPath, documentFilesPath + "BDRC-logo-750-white.png");
+    }
+
+    @Override
+    public Object pageContent()
+    {
+        EtextPageContent pageContent = etext.getPageContent();
+        etext.releaseContent();
+
+        return pageContent;
+    }
+
+    @Override
+    public Object contentLinesWithPages()
+    {
+        return etext.getContentLinesWithPages(etext.getContentLines(), etext.getPageIndex());
+    }
+
+    @Override
+    public Object splitMarkdownText()
+    {
+        return markdownGenerator.splitMarkdownText(sectionText, MarkdownGenerator.maxSectionSize);
+    }
+
+    @Override
+    public Object markdownForSection()
+    {
+        return markdownGenerator.markdownForSection(section, 2);
+    }
+
+    @Override
+    public Object workSections()
+    {
+        List<WorkSection> sections = new Work(workResource, dataSource).getSections(etext, 1);
+        etext.releaseContent();
+
+        return sections;
+    }
+
+    @Override
+    public Object loadResource()
+    {
+        return fileDataSource.loadResource(BDR + WORK_ID);
+    }
+
+    @Override
+    public Object loadResourceWithoutOntology()
+    {
+        return new RDFModel(fileDataSource.getResourcePath(BDR + WORK_ID), null).getResource(BDR + WORK_ID);
+    }
+
+    @Override
+    public Object wylieLiteral()
+    {
+        return wylieLiteral.getString();
+    }
+
+    @Override
+    public Object wrap()
+    {
+        return StringUtils.wrap(title, titleFontMetrics, 1200);
+    }
+
+    @Override
+    public Object generateCover()
+    {
+        String coverPath = outputPath + "cover.png";
+        coverGenerator.generateCover(title, "author", "inputter", 1, coverPath);
+
+        return coverPath;
+    }
+
+    @Override
+    public void tearDown()
+    {
+        etext.releaseContent();
+    }
+}
@@ -0,0 +1,229 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Writes a data directory of made-up items, etexts, works, persons and text
+ * files, laid out like the BDRC data, for benchmarks and load tests.
+ *
+ * Every item is a paginated etext item with its own work, whose parts form a
+ * tree of the given depth over each volume's pages. Titles and names are
+ * random Wylie and the text is random Tibetan, from a fixed seed, so the same
+ * arguments always give the same corpus.
+ *
+ * Usage: SyntheticCorpus outputDir [items] [volumes] [pages] [depth]
+ */
+public class SyntheticCorpus {
+
+    private static final String PREFIXES = "@prefix : <http://purl.bdrc.io/ontology/core/> .\n"
+            + "@prefix bdr: <http://purl.bdrc.io/resource/> .\n"
+            + "@prefix rdfs: <http://www.w3.org/2000/01/rdf-schema#> .\n"
+            + "@prefix skos: <http://www.w3.org/2004/02/skos/core#> .\n\n";
+    private static final String ONTOLOGY = "<?xml version=\"1.0\"?>\n"
+            + "<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\" xmlns:rdfs=\"http://www.w3.org/2000/01/rdf-schema#\" xmlns:owl=\"http://www.w3.org/2002/07/owl#\">\n"
+            + "<owl:DatatypeProperty rdf:about=\"http://purl.bdrc.io/ontology/core/workCatalogInfo\"><rdfs:label xml:lang=\"en\">catalog info</rdfs:label></owl:DatatypeProperty>\n"
+            + "</rdf:RDF>\n";
+    private static final String[] WYLIE_SYLLABLES = {
+            "bka'", "'gyur", "sangs", "rgyas", "chos", "dge", "'dun", "rin", "po", "che",
+            "bla", "ma", "rdo", "rje", "shes", "rab", "snying", "thugs", "rgyud", "mdo"
+    };
+    private static final String[] TIBETAN_SYLLABLES = {
+            "བཀའ", "འགྱུར", "སངས", "རྒྱས", "ཆོས", "དགེ", "འདུན", "རིན", "པོ", "ཆེ",
+            "བླ", "མ", "རྡོ", "རྗེ", "ཤེས", "རབ", "སྙིང", "ཐུགས", "རྒྱུད", "མདོ"
+    };
+    private static final int PERSONS = 50;
+    private static final int LINES_PER_PAGE = 7;
+    private static final int PARTS_PER_WORK = 3;
+
+    private final String dataPath;
+    private final Random random = new Random(1);
+
+    private SyntheticCorpus(String dataPath)
+    {
+        this.dataPath = StringUtils.ensureTrailingSlash(dataPath);
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length < 1) {
+            System.out.println("Usage: SyntheticCorpus outputDir [items] [volumes] [pages] [depth]");
+            return;
+        }
+
+        int items = (args.length > 1) ? Integer.parseInt(args[1]) : 100;
+        int volumes = (args.length > 2) ? Integer.parseInt(args[2]) : 3;
+        int pages = (args.length > 3) ? Integer.parseInt(args[3]) : 300;
+        int depth = (args.length > 4) ? Integer.parseInt(args[4]) : 3;
+        generate(args[0], items, volumes, pages, depth);
+        System.out.println("Wrote " + items + " items of " + volumes + " volumes of " + pages + " pages to " + args[0]);
+    }
+
+    /**
+     * @param volumes Volumes per item.
+     * @param pages Pages per volume.
+     * @param depth Levels of work parts under each item's work.
+     */
+    public static void generate(String dataPath, int items, int volumes, int pages, int depth) throws IOException
+    {
+        new SyntheticCorpus(dataPath).write(items, volumes, pages, depth);
+    }
+
+    private void write(int items, int volumes, int pages, int depth) throws IOException
+    {
+        new File(dataPath).mkdirs();
+        Files.write(new File(dataPath + "bdrc.owl").toPath(), ONTOLOGY.getBytes(StandardCharsets.UTF_8));
+
+        for (int person = 0; person < PERSONS; person++) {
+            String personId = "P" + person;
+            writeFile("persons", personId, ".ttl", PREFIXES
+                    + "bdr:" + personId + " a :Person ;\n"
+                    + "    :personName [ a :PersonOtherName ; rdfs:label \"" + wylie(2) + "\"@bo-x-ewts ] ,\n"
+                    + "        [ a :PersonPrimaryName ; rdfs:label \"" + wylie(3) + "\"@bo-x-ewts ] .\n");
+        }
+
+        for (int item = 0; item < items; item++) {
+            String workId = "W" + (1000 + item);
+            String itemId = "I" + (1000 + item) + "_E001";
+            StringBuilder workParts = new StringBuilder();
+            List<String> topParts = new ArrayList<>();
+            StringBuilder itemVolumes = new StringBuilder();
+
+            for (int volume = 1; volume <= volumes; volume++) {
+                String etextId = String.format("UT%d_%03d_0000", 1000 + item, volume);
+                writeEtext(etextId, itemId, pages);
+                topParts.addAll(writeWorkParts(workParts, workId + "_" + volume, volume, 1, pages, depth));
+
+                itemVolumes.append((volume > 1) ? " ,\n        " : "")
+                        .append("[ :volumeNumber ").append(volume)
+                        .append(" ; :volumeHasEtext [ :eTextResource bdr:").append(etextId).append(" ] ]");
+            }
+
+            writeFile("works", workId, ".ttl", PREFIXES
+                    + "bdr:" + workId + " skos:prefLabel \"" + wylie(5) + "\"@bo-x-ewts ;\n"
+                    + "    :creatorMainAuthor bdr:P" + (item % PERSONS) + " ;\n"
+                    + "    :workCatalogInfo \"Catalog entry " + item + "\"@en"
+                    + (topParts.isEmpty() ? "" : " ;\n    :workHasPart " + String.join(", ", topParts))
+                    + " .\n\n" + workParts);
+            writeFile("items", itemId, ".ttl", PREFIXES
+                    + "bdr:" + itemId + " a :ItemEtextPaginated ;\n"
+                    + "    :itemForWork bdr:" + workId + " ;\n"
+                    + "    :eTextDistributor bdr:CP00" + (1 + item % 9) + " ;\n"
+                    + "    :itemHasVolume " + itemVolumes + " .\n");
+        }
+    }
+
+    /**
+     * Writes PARTS_PER_WORK parts splitting the page range, each with parts of
+     * its own down to the given depth.
+     *
+     * @return The references of the parts written for this level.
+     */
+    private List<String> writeWorkParts(StringBuilder out, String idBase, int volume, int startPage, int endPage, int depth)
+    {
+        List<String> parts = new ArrayList<>();
+        int pageCount = endPage - startPage + 1;
+        if (depth <= 0 || pageCount < PARTS_PER_WORK) {
+            return parts;
+        }
+
+        for (int part = 0; part < PARTS_PER_WORK; part++) {
+            String partId = idBase + "_" + (part + 1);
+            int partStart = startPage + part * pageCount / PARTS_PER_WORK;
+            int partEnd = startPage + (part + 1) * pageCount / PARTS_PER_WORK - 1;
+            List<String> subParts = writeWorkParts(out, partId, volume, partStart, partEnd, depth - 1);
+
+            out.append("bdr:").append(partId)
+                    .append(" skos:prefLabel \"").append(wylie(3)).append("\"@bo-x-ewts ;\n")
+                    .append("    :creatorMainAuthor bdr:P").append(random.nextInt(PERSONS)).append(" ;\n")
+                    .append("    :workLocation [ :workLocationVolume ").append(volume)
+                    .append(" ; :workLocationPage ").append(partStart)
+                    .append(" ; :workLocationEndPage ").append(partEnd).append(" ]");
+            if (!subParts.isEmpty()) {
+                out.append(" ;\n    :workHasPart ").append(String.join(", ", subParts));
+            }
+            out.append(" .\n\n");
+            parts.add("bdr:" + partId);
+        }
+
+        return parts;
+    }
+
+    private void writeEtext(String etextId, String itemId, int pages) throws IOException
+    {
+        StringBuilder text = new StringBuilder();
+        StringBuilder pageData = new StringBuilder();
+        int line = 1;
+        for (int page = 1; page <= pages; page++) {
+            int startLine = line;
+            for (int pageLine = 0; pageLine < LINES_PER_PAGE; pageLine++) {
+                text.append(tibetan(8 + random.nextInt(12))).append('\n');
+                line++;
+            }
+
+            pageData.append((page > 1) ? " ,\n        " : "")
+                    .append("[ :seqNum ").append(page)
+                    .append(" ; :sliceStartChar ").append(1 + random.nextInt(4))
+                    .append(" ; :sliceStartChunk ").append(startLine)
+                    .append(" ; :sliceEndChar 10 ; :sliceEndChunk ").append(line - 1).append(" ]");
+        }
+
+        writeFile("etextcontents", etextId, ".txt", text.toString());
+        writeFile("etexts", etextId, ".ttl", PREFIXES
+                + "bdr:" + etextId + " a :EtextPaginated ;\n"
+                + "    :eTextTitle \"" + wylie(4) + "\"@bo-x-ewts ;\n"
+                + "    :eTextInItem bdr:" + itemId + " ;\n"
+                + "    :eTextHasPage " + pageData + " .\n");
+    }
+
+    private String wylie(int syllables)
+    {
+        StringBuilder wylie = new StringBuilder();
+        for (int i = 0; i < syllables; i++) {
+            wylie.append((i > 0) ? " " : "").append(WYLIE_SYLLABLES[random.nextInt(WYLIE_SYLLABLES.length)]);
+        }
+
+        return wylie.toString();
+    }
+
+    private String tibetan(int syllables)
+    {
+        StringBuilder tibetan = new StringBuilder();
+        for (int i = 0; i < syllables; i++) {
+            tibetan.append(TIBETAN_SYLLABLES[random.nextInt(TIBETAN_SYLLABLES.length)]).append("་");
+        }
+
+        return tibetan.toString();
+    }
+
+    /**
+     * Writes the file where FileDataSource looks for it: under the type
+     * directory, in a subdirectory named after the MD5 of the id's base.
+     */
+    private void writeFile(String typeDir, String id, String extension, String content) throws IOException
+    {
+        int underscoreIndex = id.indexOf('_');
+        String idBase = (underscoreIndex != -1) ? id.substring(0, underscoreIndex) : id;
+        File dir = new File(dataPath + typeDir + "/" + md5Prefix(idBase));
+        dir.mkdirs();
+
+        try (Writer out = Files.newBufferedWriter(new File(dir, id + extension).toPath(), StandardCharsets.UTF_8)) {
+            out.write(content);
+        }
+    }
+
+    private static String md5Prefix(String idBase)
+    {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(idBase.getBytes(StandardCharsets.UTF_8));
+            return String.format("%02x", digest[0] & 0xff);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
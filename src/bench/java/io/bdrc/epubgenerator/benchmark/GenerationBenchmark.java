@@ -0,0 +1,110 @@
+package io.bdrc.epubgenerator.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Benchmarks of the generation hot paths, on one synthetic item of a volume
+ * with the given number of pages and depth of work parts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true", "-Dfile.encoding=UTF-8"})
+public class GenerationBenchmark {
+
+    @Param({"500"})
+    public int pages;
+
+    @Param({"3"})
+    public int depth;
+
+    private Path dataDir;
+    private HotPaths hotPaths;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        dataDir = Files.createTempDirectory("etext-benchmark");
+        hotPaths = (HotPaths) Class.forName("HotPathWorkloads").newInstance();
+        hotPaths.setUp(dataDir.toString(), pages, depth);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        hotPaths.tearDown();
+        try (Stream<Path> paths = Files.walk(dataDir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public Object etextPageContent()
+    {
+        return hotPaths.pageContent();
+    }
+
+    @Benchmark
+    public Object etextContentLinesWithPages()
+    {
+        return hotPaths.contentLinesWithPages();
+    }
+
+    @Benchmark
+    public Object markdownSplitText()
+    {
+        return hotPaths.splitMarkdownText();
+    }
+
+    @Benchmark
+    public Object markdownForSection()
+    {
+        return hotPaths.markdownForSection();
+    }
+
+    @Benchmark
+    public Object workSections()
+    {
+        return hotPaths.workSections();
+    }
+
+    @Benchmark
+    public Object loadResource()
+    {
+        return hotPaths.loadResource();
+    }
+
+    @Benchmark
+    public Object loadResourceWithoutOntology()
+    {
+        return hotPaths.loadResourceWithoutOntology();
+    }
+
+    @Benchmark
+    public Object wylieLiteral()
+    {
+        return hotPaths.wylieLiteral();
+    }
+
+    @Benchmark
+    public Object stringWrap()
+    {
+        return hotPaths.wrap();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Object coverGeneration()
+    {
+        return hotPaths.generateCover();
+    }
+}
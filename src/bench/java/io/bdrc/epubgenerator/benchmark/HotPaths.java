@@ -0,0 +1,43 @@
+package io.bdrc.epubgenerator.benchmark;
+
+/**
+ * The generation hot paths measured by GenerationBenchmark.
+ *
+ * The generator's classes are in the default package, which classes in a
+ * package can't refer to, and JMH won't generate benchmarks in the default
+ * package. So the benchmarks call the hot paths through this interface,
+ * which HotPathWorkloads in the default package implements.
+ */
+public interface HotPaths {
+
+    /**
+     * Generates a synthetic corpus into the directory and loads what the
+     * workloads need from it.
+     *
+     * @param pages Pages per volume.
+     * @param depth Levels of work parts under each work.
+     */
+    void setUp(String dataPath, int pages, int depth) throws Exception;
+
+    Object pageContent();
+
+    Object contentLinesWithPages();
+
+    Object splitMarkdownText();
+
+    Object markdownForSection();
+
+    Object workSections();
+
+    Object loadResource();
+
+    Object loadResourceWithoutOntology();
+
+    Object wylieLiteral();
+
+    Object wrap();
+
+    Object generateCover();
+
+    void tearDown();
+}
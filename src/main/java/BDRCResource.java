@@ -1,9 +1,6 @@
 import java.net.URI;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.List;
-
-import static java.util.stream.Collectors.toList;
 
 abstract class BDRCResource {
 
@@ -36,15 +33,15 @@ abstract class BDRCResource {
 
     protected String getAuthor()
     {
-        RDFResource mainAuthor = getMainAuthor();
+        Person mainAuthor = getMainAuthor();
         if (mainAuthor != null) {
-            return getPrimaryName(mainAuthor, PREFERRED_LANGUAGE);
+            return mainAuthor.primaryName;
         } else {
             return null;
         }
     }
 
-    protected RDFResource getMainAuthor()
+    protected Person getMainAuthor()
     {
         Work work = getWork();
         if (work == null) return null;
@@ -52,31 +49,6 @@ abstract class BDRCResource {
         return work.getMainAuthor();
     }
 
-    protected List<RDFResource> getAuthorNames(RDFResource author)
-    {
-        if (author == null) return null;
-
-        return author.getPropertyResources(CORE+"personName");
-    }
-
-    protected String getPrimaryName(RDFResource author, String preferredLanguage)
-    {
-        if (author == null) return null;
-
-        List<RDFResource> authorNames = getAuthorNames(author);
-        String primaryNameIRI = CORE+"PersonPrimaryName";
-        List<RDFResource> primaryNames = authorNames
-                .stream()
-                .filter(n -> n.getTypeIRI().equals(primaryNameIRI))
-                .collect(toList());
-
-        if (primaryNames.size() > 0) {
-            return primaryNames.get(0).getString(RDFS+"label", preferredLanguage);
-        } else {
-            return null;
-        }
-    }
-
     public String getId()
     {
         URI uri = URI.create(IRI);
@@ -0,0 +1,377 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+class ManifestEntry {
+    final String id;
+    // Input path to its size, modification time and content hash
+    final Map<String, FileHash> inputs;
+    final List<String> outputs;
+
+    ManifestEntry(String id, Map<String, FileHash> inputs, List<String> outputs)
+    {
+        this.id = id;
+        this.inputs = inputs;
+        this.outputs = outputs;
+    }
+}
+
+class FileHash {
+    static final FileHash MISSING = new FileHash(-1, -1, "-");
+
+    final long size;
+    final long lastModified;
+    final String hash;
+
+    FileHash(long size, long lastModified, String hash)
+    {
+        this.size = size;
+        this.lastModified = lastModified;
+        this.hash = hash;
+    }
+
+    /**
+     * @return Whether the file was found with the same size and modification time.
+     */
+    boolean isUnchanged(File file)
+    {
+        return size >= 0 && file.length() == size && file.lastModified() == lastModified;
+    }
+}
+
+/**
+ * Records, for every item generated into an output directory, the content
+ * hash of each file it was generated from and the files it produced, so a
+ * later incremental run only regenerates the items whose inputs changed.
+ * Each input's size and modification time are recorded with its hash, and
+ * the file is only read and hashed again when one of them has changed.
+ *
+ * The files shared by every item (the ontology, and everything in
+ * document_files, such as terms.md, the fonts, the css and reference.docx),
+ * the generator version and the output options are hashed together. When any
+ * of them change, every item is regenerated.
+ */
+public class BuildManifest {
+
+    /**
+     * Increase when a code change alters the generated files, so incremental
+     * runs regenerate everything.
+     */
+    static final String GENERATOR_VERSION = "2";
+    static final String MANIFEST_FILENAME = "manifest.txt";
+    private static final String HEADER = "etext-pub-pipeline manifest";
+
+    private final String manifestPath;
+    private String sharedHash;
+    private final Map<String, ManifestEntry> entries = new ConcurrentHashMap<>();
+    // Files are hashed once, here or in an earlier run, unless they change
+    private final Map<String, FileHash> fileHashes = new ConcurrentHashMap<>();
+
+    private BuildManifest(String manifestPath)
+    {
+        this.manifestPath = manifestPath;
+    }
+
+    /**
+     * Reads the manifest of the output directory. Entries are discarded if
+     * the shared inputs or options have changed since they were written.
+     *
+     * @param ontologyPath The ontology the metadata labels come from.
+     * @param options The output options of the run, e.g. which formats are generated.
+     */
+    public static BuildManifest load(String outputDir, String documentFilesDir, String ontologyPath, String options)
+    {
+        String manifestPath = StringUtils.ensureTrailingSlash(outputDir) + MANIFEST_FILENAME;
+        BuildManifest manifest = new BuildManifest(manifestPath);
+        manifest.sharedHash = manifest.getSharedHash(documentFilesDir, ontologyPath, options);
+
+        File manifestFile = new File(manifestPath);
+        if (!manifestFile.exists()) {
+            return manifest;
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(manifestFile.toPath(), StandardCharsets.UTF_8)) {
+            String header = reader.readLine();
+            if (header == null || !header.equals(HEADER + "\t" + manifest.sharedHash)) {
+                System.out.println("Shared inputs or options changed, regenerating every item");
+                return manifest;
+            }
+
+            ManifestEntry entry = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                switch (fields[0]) {
+                    case "item":
+                        entry = new ManifestEntry(fields[1], new LinkedHashMap<>(), new ArrayList<>());
+                        manifest.entries.put(entry.id, entry);
+                        break;
+                    case "input":
+                        if (entry != null) {
+                            // Inputs written without their size and modification time are hashed again
+                            FileHash fileHash = (fields.length >= 5)
+                                    ? new FileHash(Long.parseLong(fields[3]), Long.parseLong(fields[4]), fields[2])
+                                    : new FileHash(-1, -1, fields[2]);
+                            entry.inputs.put(fields[1], fileHash);
+                            if (fileHash.size >= 0) {
+                                manifest.fileHashes.putIfAbsent(fields[1], fileHash);
+                            }
+                        }
+                        break;
+                    case "output":
+                        if (entry != null) entry.outputs.add(fields[1]);
+                        break;
+                }
+            }
+        } catch (Exception e) {
+            System.out.println("Failed to read manifest " + manifestPath + ", regenerating every item");
+            System.out.println(e);
+            manifest.entries.clear();
+        }
+
+        return manifest;
+    }
+
+    /**
+     * @return Whether the item was generated before from the same inputs, and its outputs still exist.
+     */
+    public boolean isUpToDate(String id)
+    {
+        ManifestEntry entry = entries.get(id);
+        if (entry == null || entry.outputs.isEmpty() || !outputsExist(entry)) {
+            return false;
+        }
+
+        for (Map.Entry<String, FileHash> input: entry.inputs.entrySet()) {
+            if (!input.getValue().hash.equals(getFileHash(input.getKey()).hash)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Records the item as generated from the input files into the output files.
+     */
+    public void record(String id, List<String> inputPaths, List<String> outputPaths)
+    {
+        Map<String, FileHash> inputs = new LinkedHashMap<>();
+        for (String inputPath: inputPaths) {
+            inputs.put(inputPath, getFileHash(inputPath));
+        }
+
+        entries.put(id, new ManifestEntry(id, inputs, new ArrayList<>(outputPaths)));
+    }
+
+    /**
+     * Writes the manifest. Items with missing outputs, e.g. a failed pandoc
+     * conversion, are left out so they are generated again next time.
+     */
+    public void save()
+    {
+        File manifestFile = new File(manifestPath);
+        File tempFile = new File(manifestPath + ".tmp");
+        List<String> ids = new ArrayList<>(entries.keySet());
+        Collections.sort(ids);
+
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), StandardCharsets.UTF_8))) {
+            out.append(HEADER).append("\t").append(sharedHash).append("\n");
+            for (String id: ids) {
+                ManifestEntry entry = entries.get(id);
+                if (!outputsExist(entry)) {
+                    continue;
+                }
+
+                out.append("item\t").append(id).append("\n");
+                for (Map.Entry<String, FileHash> input: entry.inputs.entrySet()) {
+                    FileHash fileHash = input.getValue();
+                    out.append("input\t").append(input.getKey()).append("\t").append(fileHash.hash)
+                            .append("\t").append(Long.toString(fileHash.size)).append("\t").append(Long.toString(fileHash.lastModified)).append("\n");
+                }
+                for (String outputPath: entry.outputs) {
+                    out.append("output\t").append(outputPath).append("\n");
+                }
+            }
+        } catch (Exception e) {
+            System.out.println("Failed to write manifest " + manifestPath);
+            System.out.println(e);
+            tempFile.delete();
+            return;
+        }
+
+        manifestFile.delete();
+        if (!tempFile.renameTo(manifestFile)) {
+            System.out.println("Failed to write manifest " + manifestPath);
+        }
+    }
+
+    /**
+     * Writes the manifest of a directory the shards were merged into, from
+     * the shards' manifests, with their output paths moved to the directory.
+     * Nothing is written if the shards were generated with different shared
+     * inputs or options.
+     */
+    static void merge(List<String> shardDirs, String targetDir)
+    {
+        String header = null;
+        Map<String, List<String>> items = new TreeMap<>();
+        for (String shardDir: shardDirs) {
+            File manifestFile = new File(shardDir + MANIFEST_FILENAME);
+            if (!manifestFile.exists()) {
+                continue;
+            }
+
+            try (BufferedReader reader = Files.newBufferedReader(manifestFile.toPath(), StandardCharsets.UTF_8)) {
+                String shardHeader = reader.readLine();
+                if (header != null && !header.equals(shardHeader)) {
+                    System.out.println("Shards were generated from different shared inputs or options, not merging their manifests");
+                    return;
+                }
+                header = shardHeader;
+
+                // The shard's output paths are moved from wherever the shard
+                // directory was reached from when it was generated
+                String shardDirName = "/" + new File(shardDir).getName() + "/";
+                List<String> lines = null;
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("item\t")) {
+                        lines = new ArrayList<>();
+                        items.put(line.substring("item\t".length()), lines);
+                    } else if (lines != null) {
+                        int shardDirIndex = line.indexOf(shardDirName);
+                        if (line.startsWith("output\t") && shardDirIndex != -1) {
+                            line = "output\t" + targetDir + line.substring(shardDirIndex + shardDirName.length());
+                        }
+                        lines.add(line);
+                    }
+                }
+            } catch (Exception e) {
+                System.out.println("Failed to read manifest " + manifestFile + ", not merging the manifests");
+                System.out.println(e);
+                return;
+            }
+        }
+
+        if (header == null) {
+            return;
+        }
+
+        File manifestFile = new File(targetDir + MANIFEST_FILENAME);
+        File tempFile = new File(targetDir + MANIFEST_FILENAME + ".tmp");
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), StandardCharsets.UTF_8))) {
+            out.append(header).append("\n");
+            for (Map.Entry<String, List<String>> item: items.entrySet()) {
+                out.append("item\t").append(item.getKey()).append("\n");
+                for (String line: item.getValue()) {
+                    out.append(line).append("\n");
+                }
+            }
+        } catch (Exception e) {
+            System.out.println("Failed to write manifest " + manifestFile);
+            System.out.println(e);
+            tempFile.delete();
+            return;
+        }
+
+        manifestFile.delete();
+        if (!tempFile.renameTo(manifestFile)) {
+            System.out.println("Failed to write manifest " + manifestFile);
+        }
+    }
+
+    private static boolean outputsExist(ManifestEntry entry)
+    {
+        for (String outputPath: entry.outputs) {
+            if (!new File(outputPath).exists()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private String getSharedHash(String documentFilesDir, String ontologyPath, String options)
+    {
+        StringBuilder shared = new StringBuilder();
+        shared.append(GENERATOR_VERSION).append("\n").append(options).append("\n");
+        shared.append(new File(ontologyPath).getName()).append(" ").append(getFileHash(ontologyPath).hash).append("\n");
+
+        List<Path> documentFiles;
+        try (Stream<Path> paths = Files.walk(Paths.get(documentFilesDir))) {
+            documentFiles = paths.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        } catch (IOException e) {
+            documentFiles = Collections.emptyList();
+        }
+        for (Path documentFile: documentFiles) {
+            shared.append(documentFile.getFileName()).append(" ").append(getFileHash(documentFile.toString()).hash).append("\n");
+        }
+
+        return hash(shared.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return The SHA-256 of the file's content with its size and modification time, or FileHash.MISSING if it doesn't exist.
+     */
+    private FileHash getFileHash(String path)
+    {
+        File file = new File(path);
+        if (!file.isFile()) {
+            return FileHash.MISSING;
+        }
+
+        FileHash fileHash = fileHashes.get(path);
+        if (fileHash != null && fileHash.isUnchanged(file)) {
+            return fileHash;
+        }
+
+        long size = file.length();
+        long lastModified = file.lastModified();
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            try (InputStream in = new FileInputStream(file)) {
+                byte[] buffer = new byte[65536];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                }
+            }
+            fileHash = new FileHash(size, lastModified, toHex(digest.digest()));
+            fileHashes.put(path, fileHash);
+            return fileHash;
+        } catch (Exception e) {
+            System.out.println("Failed to hash " + path + ": " + e);
+            return FileHash.MISSING;
+        }
+    }
+
+    private static String hash(byte[] bytes)
+    {
+        try {
+            return toHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes)
+    {
+        char[] hexDigits = "0123456789abcdef".toCharArray();
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = hexDigits[(bytes[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = hexDigits[bytes[i] & 0xf];
+        }
+
+        return new String(hex);
+    }
+}
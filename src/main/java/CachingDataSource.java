@@ -0,0 +1,127 @@
+import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * DataSource decorator that keeps recently loaded resources in memory, so
+ * authors and works shared by many items are only parsed once.
+ *
+ * Cached resources are shared between the worker threads and must only be read.
+ * Text content isn't cached, as each volume's text is only used once.
+ */
+public class CachingDataSource implements DataSource {
+
+    private final DataSource dataSource;
+    private final LruCache<String, CachedResource> resources;
+    private final boolean checkModified;
+    private final AtomicLong reloads = new AtomicLong();
+
+    /**
+     * @param dataSource The data source resources are loaded from on a cache miss.
+     * @param maxResources Maximum number of resources kept in the cache.
+     */
+    public CachingDataSource(DataSource dataSource, int maxResources)
+    {
+        this(dataSource, maxResources, false);
+    }
+
+    /**
+     * @param checkModified Whether to check a cached resource's file on every
+     * use, and load it again if it changed. For a cache kept across runs.
+     */
+    public CachingDataSource(DataSource dataSource, int maxResources, boolean checkModified)
+    {
+        this.dataSource = dataSource;
+        this.resources = new LruCache<>(maxResources);
+        this.checkModified = checkModified;
+    }
+
+    @Override
+    public RDFResource loadResource(String IRI)
+    {
+        CachedResource cached = resources.get(IRI, this::load);
+        if (checkModified && cached != null && !cached.isCurrent()) {
+            reloads.incrementAndGet();
+            resources.remove(IRI, cached);
+            cached = resources.get(IRI, this::load);
+        }
+
+        return (cached != null) ? cached.resource : null;
+    }
+
+    private CachedResource load(String IRI)
+    {
+        // The file is looked at before it is read, so a change during the
+        // read makes the cached resource out of date rather than missed
+        File file = checkModified ? new File(dataSource.getResourcePath(IRI)) : null;
+        long size = (file != null) ? file.length() : 0;
+        long modified = (file != null) ? file.lastModified() : 0;
+
+        RDFResource resource = dataSource.loadResource(IRI);
+        if (resource == null) {
+            return null;
+        }
+
+        return new CachedResource(resource, file, size, modified);
+    }
+
+    @Override
+    public TextContent loadTextContent(String IRI)
+    {
+        return dataSource.loadTextContent(IRI);
+    }
+
+    @Override
+    public String getResourcePath(String IRI)
+    {
+        return dataSource.getResourcePath(IRI);
+    }
+
+    @Override
+    public String getTextContentPath(String IRI)
+    {
+        return dataSource.getTextContentPath(IRI);
+    }
+
+    public long getHits()
+    {
+        return resources.getHits();
+    }
+
+    public long getMisses()
+    {
+        return resources.getMisses();
+    }
+
+    public long getEvictions()
+    {
+        return resources.getEvictions();
+    }
+
+    public String getStatistics()
+    {
+        return "Resource cache: " + resources + (checkModified ? ", reloaded=" + reloads.get() : "");
+    }
+}
+
+class CachedResource {
+    final RDFResource resource;
+    private final File file;
+    private final long size;
+    private final long modified;
+
+    /**
+     * @param file The resource's file, or null when it isn't checked.
+     */
+    CachedResource(RDFResource resource, File file, long size, long modified)
+    {
+        this.resource = resource;
+        this.file = file;
+        this.size = size;
+        this.modified = modified;
+    }
+
+    boolean isCurrent()
+    {
+        return file == null || (file.length() == size && file.lastModified() == modified);
+    }
+}
@@ -0,0 +1,382 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The files a previous run wrote for one volume, with their sizes when
+ * they were recorded, or -1 for pandoc outputs written after the record,
+ * and the files the item had read by then, when the run was incremental.
+ */
+class JournalVolume {
+    final List<String> paths = new ArrayList<>();
+    final List<Long> sizes = new ArrayList<>();
+    List<String> inputPaths;
+}
+
+/**
+ * Append-only record of the volumes and items a corpus run has finished, in
+ * journal.txt in its output directory, so an interrupted run can be resumed
+ * where it stopped.
+ *
+ * Every record is a single line, and a last line cut short by a crash is
+ * ignored. Lines are synced to disk in batches, every SYNC_BATCH records or
+ * SYNC_INTERVAL_MILLIS, so a crash loses at most the last batch, whose
+ * volumes are generated again.
+ *
+ * In an incremental run each volume's record is preceded by the files the
+ * item had read, so the manifest entry of an item finished with volumes of
+ * an earlier attempt still lists every input.
+ */
+public class CheckpointJournal {
+
+    static final String JOURNAL_FILENAME = "journal.txt";
+    private static final String HEADER = "etext-pub-pipeline journal";
+    private static final int SYNC_BATCH = 64;
+    private static final long SYNC_INTERVAL_MILLIS = 1000;
+    // Zip files, such as epub and docx, end with this record and a comment of up to 64KB
+    private static final int ZIP_END_SIGNATURE = 0x06054b50;
+    private static final int ZIP_END_SIZE = 22;
+    private static final String[] ZIP_EXTENSIONS = {".epub", ".docx"};
+
+    private final String journalPath;
+    // The volumes and items finished by earlier attempts, when resuming
+    private final Map<String, Map<String, JournalVolume>> volumes = new ConcurrentHashMap<>();
+    private final Set<String> doneItems = ConcurrentHashMap.newKeySet();
+    // The inputs recorded before each volume, by item and volume
+    private final Map<String, Map<String, List<String>>> volumeInputs = new HashMap<>();
+    private FileOutputStream fileOut;
+    private Writer out;
+    private int unsynced;
+    private boolean closed;
+    private ScheduledExecutorService syncExecutor;
+
+    private CheckpointJournal(String journalPath)
+    {
+        this.journalPath = journalPath;
+    }
+
+    /**
+     * Starts the journal of a run, or continues it when resuming.
+     *
+     * @param options The output options of the run, which a resumed run must share.
+     * @return The journal, or null if it can't be written or was written with other options.
+     */
+    public static CheckpointJournal open(String outputDir, String options, boolean resume)
+    {
+        String journalPath = StringUtils.ensureTrailingSlash(outputDir) + JOURNAL_FILENAME;
+        CheckpointJournal journal = new CheckpointJournal(journalPath);
+        String header = HEADER + "\t" + options;
+
+        File journalFile = new File(journalPath);
+        boolean append = resume && journalFile.exists();
+        if (append && !journal.read(journalFile, header)) {
+            return null;
+        }
+
+        try {
+            journal.fileOut = new FileOutputStream(journalFile, append);
+            journal.out = new BufferedWriter(new OutputStreamWriter(journal.fileOut, StandardCharsets.UTF_8));
+            if (!append) {
+                journal.out.append(header).append("\n");
+                journal.sync();
+            }
+        } catch (IOException e) {
+            System.out.println("Failed to open journal " + journalPath);
+            System.out.println(e);
+            return null;
+        }
+
+        journal.syncExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "journal-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        journal.syncExecutor.scheduleWithFixedDelay(journal::syncQuietly, SYNC_INTERVAL_MILLIS, SYNC_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        // A killed run still syncs what it has recorded, when the JVM gets the chance
+        Runtime.getRuntime().addShutdownHook(new Thread(journal::syncQuietly, "journal-shutdown"));
+
+        return journal;
+    }
+
+    private boolean read(File journalFile, String header)
+    {
+        String content;
+        try {
+            content = new String(Files.readAllBytes(journalFile.toPath()), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            System.out.println("Failed to read journal " + journalPath);
+            System.out.println(e);
+            return false;
+        }
+
+        // Only whole lines count, the last one may have been cut short
+        String[] lines = content.substring(0, content.lastIndexOf('\n') + 1).split("\n");
+        if (lines.length == 0 || !lines[0].equals(header)) {
+            System.out.println("Error: The run in " + journalFile.getParent() + " was started with other options, resume it with the same ones");
+            return false;
+        }
+
+        for (int i = 1; i < lines.length; i++) {
+            String[] fields = lines[i].split("\t");
+            if (fields[0].equals("inputs") && fields.length >= 3) {
+                List<String> inputPaths = Arrays.asList(fields).subList(3, fields.length);
+                volumeInputs.computeIfAbsent(fields[1], id -> new HashMap<>()).put(fields[2], new ArrayList<>(inputPaths));
+            } else if (fields[0].equals("volume") && fields.length >= 3) {
+                JournalVolume volume = new JournalVolume();
+                for (int field = 3; field + 1 < fields.length; field += 2) {
+                    volume.sizes.add(Long.parseLong(fields[field]));
+                    volume.paths.add(fields[field + 1]);
+                }
+                Map<String, List<String>> itemInputs = volumeInputs.get(fields[1]);
+                volume.inputPaths = (itemInputs != null) ? itemInputs.remove(fields[2]) : null;
+                volumes.computeIfAbsent(fields[1], id -> new ConcurrentHashMap<>()).put(fields[2], volume);
+            } else if (fields[0].equals("item") && fields.length >= 3) {
+                if (fields[2].equals("done")) {
+                    doneItems.add(fields[1]);
+                } else {
+                    // A failed item is tried again, all of it
+                    doneItems.remove(fields[1]);
+                    volumes.remove(fields[1]);
+                    volumeInputs.remove(fields[1]);
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return Whether an earlier attempt finished the item, and every file it wrote is intact.
+     */
+    public boolean isItemDone(String id)
+    {
+        if (!doneItems.contains(id)) {
+            return false;
+        }
+
+        Map<String, JournalVolume> itemVolumes = volumes.get(id);
+        if (itemVolumes != null) {
+            for (JournalVolume volume: itemVolumes.values()) {
+                if (!isIntact(volume)) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return The files an earlier attempt wrote for the volume, if they are all intact, or null.
+     */
+    public List<String> getDoneVolume(String id, String name)
+    {
+        Map<String, JournalVolume> itemVolumes = volumes.get(id);
+        JournalVolume volume = (itemVolumes != null) ? itemVolumes.get(name) : null;
+        if (volume == null || !isIntact(volume)) {
+            return null;
+        }
+
+        return volume.paths;
+    }
+
+    /**
+     * @return The files the item had read when an earlier attempt finished the volume, or null if they weren't recorded.
+     */
+    public List<String> getDoneVolumeInputs(String id, String name)
+    {
+        Map<String, JournalVolume> itemVolumes = volumes.get(id);
+        JournalVolume volume = (itemVolumes != null) ? itemVolumes.get(name) : null;
+
+        return (volume != null) ? volume.inputPaths : null;
+    }
+
+    /**
+     * @return The files a finished item wrote, over all its volumes.
+     */
+    public List<String> getDoneItemOutputs(String id)
+    {
+        List<String> outputPaths = new ArrayList<>();
+        Map<String, JournalVolume> itemVolumes = volumes.get(id);
+        if (itemVolumes != null) {
+            for (JournalVolume volume: itemVolumes.values()) {
+                outputPaths.addAll(volume.paths);
+            }
+        }
+
+        return outputPaths;
+    }
+
+    /**
+     * @return The files a finished item read, over all its volumes, or null
+     * if they weren't recorded for one of them.
+     */
+    public List<String> getDoneItemInputs(String id)
+    {
+        Map<String, JournalVolume> itemVolumes = volumes.get(id);
+        if (itemVolumes == null || itemVolumes.isEmpty()) {
+            return null;
+        }
+
+        Set<String> inputPaths = new TreeSet<>();
+        for (JournalVolume volume: itemVolumes.values()) {
+            if (volume.inputPaths == null) {
+                return null;
+            }
+            inputPaths.addAll(volume.inputPaths);
+        }
+
+        return new ArrayList<>(inputPaths);
+    }
+
+    /**
+     * @param inputPaths The files the item has read so far, recorded first, or null when the run isn't incremental.
+     */
+    public void recordVolume(String id, String name, List<String> outputPaths, List<String> inputPaths)
+    {
+        StringBuilder line = new StringBuilder();
+        if (inputPaths != null) {
+            line.append("inputs\t").append(id).append("\t").append(name);
+            for (String inputPath: inputPaths) {
+                line.append("\t").append(inputPath);
+            }
+            line.append("\n");
+        }
+        line.append("volume\t").append(id).append("\t").append(name);
+        for (String outputPath: outputPaths) {
+            File outputFile = new File(outputPath);
+            // Pandoc may still be writing its outputs, which are then only
+            // checked for being whole when resuming
+            long size = (outputFile.exists() && (!isZip(outputPath) || isCompleteZip(outputFile))) ? outputFile.length() : -1;
+            line.append("\t").append(size).append("\t").append(outputPath);
+        }
+        append(line.toString());
+    }
+
+    public void recordItem(String id, boolean failed)
+    {
+        append("item\t" + id + "\t" + (failed ? "failed" : "done"));
+    }
+
+    private synchronized void append(String line)
+    {
+        if (closed) {
+            return;
+        }
+
+        try {
+            out.append(line).append("\n");
+            if (++unsynced >= SYNC_BATCH) {
+                sync();
+            }
+        } catch (IOException e) {
+            System.out.println("Failed to write journal " + journalPath);
+            System.out.println(e);
+        }
+    }
+
+    private synchronized void sync() throws IOException
+    {
+        out.flush();
+        fileOut.getFD().sync();
+        unsynced = 0;
+    }
+
+    private synchronized void syncQuietly()
+    {
+        if (closed || unsynced == 0) {
+            return;
+        }
+
+        try {
+            sync();
+        } catch (IOException e) {
+            System.out.println("Failed to sync journal " + journalPath);
+            System.out.println(e);
+        }
+    }
+
+    public synchronized void close()
+    {
+        if (closed) {
+            return;
+        }
+
+        syncExecutor.shutdownNow();
+        try {
+            sync();
+            out.close();
+        } catch (IOException e) {
+            System.out.println("Failed to close journal " + journalPath);
+            System.out.println(e);
+        }
+        closed = true;
+    }
+
+    /**
+     * @return Whether every file of the volume exists with the size it was
+     * recorded with, and the epub and docx files are whole zip files.
+     */
+    private static boolean isIntact(JournalVolume volume)
+    {
+        for (int i = 0; i < volume.paths.size(); i++) {
+            File file = new File(volume.paths.get(i));
+            long size = volume.sizes.get(i);
+            if (!file.isFile() || (size >= 0 && file.length() != size)) {
+                return false;
+            }
+            if (isZip(file.getPath()) && !isCompleteZip(file)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean isZip(String path)
+    {
+        for (String extension: ZIP_EXTENSIONS) {
+            if (path.endsWith(extension)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return Whether the file ends with a zip end of central directory
+     * record, which is written last, so a file cut short doesn't have it.
+     */
+    private static boolean isCompleteZip(File file)
+    {
+        long length = file.length();
+        if (length < ZIP_END_SIZE) {
+            return false;
+        }
+
+        int tailLength = (int) Math.min(length, ZIP_END_SIZE + 0xffff);
+        byte[] tail = new byte[tailLength];
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            in.seek(length - tailLength);
+            in.readFully(tail);
+        } catch (IOException e) {
+            return false;
+        }
+
+        for (int i = tailLength - ZIP_END_SIZE; i >= 0; i--) {
+            int signature = (tail[i] & 0xff) | (tail[i + 1] & 0xff) << 8 | (tail[i + 2] & 0xff) << 16 | (tail[i + 3] & 0xff) << 24;
+            if (signature == ZIP_END_SIGNATURE) {
+                int commentLength = (tail[i + 20] & 0xff) | (tail[i + 21] & 0xff) << 8;
+                return i + ZIP_END_SIZE + commentLength == tailLength;
+            }
+        }
+
+        return false;
+    }
+}
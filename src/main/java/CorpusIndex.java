@@ -0,0 +1,383 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+class CorpusIndexEntry {
+    final String id;
+    final String path;
+    final String type;
+    final long size;
+    final long lastModified;
+
+    CorpusIndexEntry(String id, String path, String type, long size, long lastModified)
+    {
+        this.id = id;
+        this.path = path;
+        this.type = type;
+        this.size = size;
+        this.lastModified = lastModified;
+    }
+}
+
+/**
+ * Index of every .ttl and text file in the data directory, mapping resource
+ * ids to their file, size, modification time and type (the top level
+ * directory, e.g. items or works). Sizes and times are the ones found when
+ * the index was built.
+ *
+ * The index is built with one parallel walk of the data directory and saved
+ * to corpus.index in it. Later runs memory-map that file, so finding a file
+ * is a hash table lookup instead of hashing the id to find its directory. The
+ * file also records the newest modification time of the directories in the
+ * data directory, and is rebuilt when a file was added to or removed from
+ * any of them.
+ *
+ * File layout, all big-endian: the header (magic, version, directory
+ * timestamp, entry count, table size), an open addressing table of record
+ * offsets (-1 for empty slots), then the records, sorted by kind and id:
+ * kind byte, then the id, path relative to the data directory and type as
+ * short length-prefixed UTF-8, then the size and modification time as longs.
+ */
+public class CorpusIndex {
+
+    static final String INDEX_FILENAME = "corpus.index";
+    static final byte RESOURCE = 0;
+    static final byte TEXT = 1;
+    static final String TEXT_DIR = "etextcontents";
+    private static final long MAGIC = 0x4244524349445831L; // BDRCIDX1
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8 + 4 + 8 + 4 + 4;
+    private static final int FNV_OFFSET = 0x811c9dc5;
+    private static final int FNV_PRIME = 0x01000193;
+
+    private final String dataPath;
+    private final ByteBuffer buffer;
+    private final int entryCount;
+    private final int tableSize;
+    private final int recordsStart;
+
+    private CorpusIndex(String dataPath, ByteBuffer buffer)
+    {
+        this.dataPath = dataPath;
+        this.buffer = buffer;
+        this.entryCount = buffer.getInt(8 + 4 + 8);
+        this.tableSize = buffer.getInt(8 + 4 + 8 + 4);
+        this.recordsStart = HEADER_SIZE + tableSize * 4;
+    }
+
+    /**
+     * Loads the saved index of the data directory, building it if there is
+     * none, it is out of date or rebuild is set.
+     *
+     * @param dataPath Directory data is stored - must end with a slash.
+     */
+    public static CorpusIndex load(String dataPath, boolean rebuild)
+    {
+        File indexFile = new File(dataPath + INDEX_FILENAME);
+        long directoriesModified = getDirectoriesModified(dataPath);
+
+        if (!rebuild && indexFile.exists()) {
+            try (RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+                 FileChannel channel = file.getChannel()) {
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (buffer.capacity() >= HEADER_SIZE && buffer.getLong(0) == MAGIC && buffer.getInt(8) == VERSION
+                        && buffer.getLong(12) == directoriesModified) {
+                    return new CorpusIndex(dataPath, buffer);
+                }
+            } catch (Exception e) {
+                System.out.println("Failed to read corpus index " + indexFile.getPath() + ": " + e);
+            }
+        }
+
+        byte[] index = build(dataPath, directoriesModified);
+        save(index, indexFile);
+
+        return new CorpusIndex(dataPath, ByteBuffer.wrap(index));
+    }
+
+    /**
+     * @return The .ttl file of the resource, or null if it isn't in the index.
+     */
+    public CorpusIndexEntry getResource(String id)
+    {
+        return get(RESOURCE, id);
+    }
+
+    /**
+     * @return The text file of the etext, or null if it isn't in the index.
+     */
+    public CorpusIndexEntry getText(String id)
+    {
+        return get(TEXT, id);
+    }
+
+    public int size()
+    {
+        return entryCount;
+    }
+
+    /**
+     * @param type Top level directory of the resources, e.g. items.
+     * @return The ids of the resources of the type, sorted.
+     */
+    public List<String> getResourceIds(String type)
+    {
+        byte[] typeBytes = type.getBytes(StandardCharsets.UTF_8);
+        List<String> ids = new ArrayList<>();
+        int offset = recordsStart;
+        for (int i = 0; i < entryCount; i++) {
+            int pathOffset = offset + 1 + 2 + (buffer.getShort(offset + 1) & 0xffff);
+            int typeOffset = pathOffset + 2 + (buffer.getShort(pathOffset) & 0xffff);
+            if (buffer.get(offset) == RESOURCE && bytesEqual(typeOffset, typeBytes)) {
+                ids.add(readString(offset + 1));
+            }
+            offset = skipRecord(offset);
+        }
+
+        return ids;
+    }
+
+    private CorpusIndexEntry get(byte kind, String id)
+    {
+        if (tableSize == 0) {
+            return null;
+        }
+
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        int mask = tableSize - 1;
+        for (int slot = hash(kind, idBytes) & mask; ; slot = (slot + 1) & mask) {
+            int recordOffset = buffer.getInt(HEADER_SIZE + slot * 4);
+            if (recordOffset == -1) {
+                return null;
+            }
+            if (buffer.get(recordOffset) == kind && bytesEqual(recordOffset + 1, idBytes)) {
+                return readEntry(recordOffset);
+            }
+        }
+    }
+
+    private boolean bytesEqual(int offset, byte[] idBytes)
+    {
+        int length = buffer.getShort(offset) & 0xffff;
+        if (length != idBytes.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(offset + 2 + i) != idBytes[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private CorpusIndexEntry readEntry(int offset)
+    {
+        int idOffset = offset + 1;
+        int pathOffset = idOffset + 2 + (buffer.getShort(idOffset) & 0xffff);
+        int typeOffset = pathOffset + 2 + (buffer.getShort(pathOffset) & 0xffff);
+        int sizeOffset = typeOffset + 2 + (buffer.getShort(typeOffset) & 0xffff);
+
+        return new CorpusIndexEntry(
+                readString(idOffset),
+                dataPath + readString(pathOffset),
+                readString(typeOffset),
+                buffer.getLong(sizeOffset),
+                buffer.getLong(sizeOffset + 8)
+        );
+    }
+
+    private int skipRecord(int offset)
+    {
+        int fieldOffset = offset + 1;
+        for (int field = 0; field < 3; field++) {
+            fieldOffset += 2 + (buffer.getShort(fieldOffset) & 0xffff);
+        }
+
+        return fieldOffset + 16;
+    }
+
+    private String readString(int offset)
+    {
+        int length = buffer.getShort(offset) & 0xffff;
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + 2 + i);
+        }
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int hash(byte kind, byte[] idBytes)
+    {
+        int hash = (FNV_OFFSET ^ kind) * FNV_PRIME;
+        for (byte b: idBytes) {
+            hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+        }
+
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Adding or removing a file changes the modification time of its
+     * directory, so the newest time of the type and hash directories (e.g.
+     * items and items/5c) tells whether the index is out of date. The data
+     * directory itself is left out, as the index and ontology cache are
+     * written there.
+     */
+    private static long getDirectoriesModified(String dataPath)
+    {
+        Path root = Paths.get(dataPath);
+        try (Stream<Path> paths = Files.walk(root, 2)) {
+            return paths.filter(path -> !path.equals(root) && Files.isDirectory(path))
+                    .mapToLong(path -> path.toFile().lastModified())
+                    .max()
+                    .orElse(0);
+        } catch (IOException | UncheckedIOException e) {
+            return 0;
+        }
+    }
+
+    private static byte[] build(String dataPath, long directoriesModified)
+    {
+        Path root = Paths.get(dataPath);
+        List<IndexRecord> records;
+        try (Stream<Path> paths = Files.walk(root)) {
+            records = paths.parallel()
+                    .map(path -> IndexRecord.forPath(root, path))
+                    .filter(record -> record != null)
+                    .sorted(Comparator.comparingInt((IndexRecord record) -> record.kind).thenComparing(record -> record.id))
+                    .collect(Collectors.toList());
+        } catch (IOException | UncheckedIOException e) {
+            System.out.println("Failed to index " + dataPath + ": " + e);
+            records = new ArrayList<>();
+        }
+
+        // Keep the table at most half full so probe sequences stay short
+        int tableSize = Integer.highestOneBit(Math.max(records.size() * 2, 1) * 2 - 1);
+        if (records.isEmpty()) {
+            tableSize = 0;
+        }
+
+        int size = HEADER_SIZE + tableSize * 4;
+        for (IndexRecord record: records) {
+            size += record.getEncodedSize();
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putLong(MAGIC).putInt(VERSION).putLong(directoriesModified).putInt(records.size()).putInt(tableSize);
+        for (int slot = 0; slot < tableSize; slot++) {
+            buffer.putInt(-1);
+        }
+
+        int mask = tableSize - 1;
+        for (IndexRecord record: records) {
+            int offset = buffer.position();
+            int slot = hash(record.kind, record.idBytes) & mask;
+            while (buffer.getInt(HEADER_SIZE + slot * 4) != -1) {
+                slot = (slot + 1) & mask;
+            }
+            buffer.putInt(HEADER_SIZE + slot * 4, offset);
+            record.write(buffer);
+        }
+
+        return buffer.array();
+    }
+
+    private static void save(byte[] index, File indexFile)
+    {
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+        try {
+            Files.write(tempFile.toPath(), index);
+            Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (Exception e) {
+            // The index still works from memory, e.g. when the data directory is read-only.
+            tempFile.delete();
+        }
+    }
+}
+
+class IndexRecord {
+    final byte kind;
+    final String id;
+    final byte[] idBytes;
+    final byte[] pathBytes;
+    final byte[] typeBytes;
+    final long size;
+    final long lastModified;
+
+    private IndexRecord(byte kind, String id, String path, String type, long size, long lastModified)
+    {
+        this.kind = kind;
+        this.id = id;
+        this.idBytes = id.getBytes(StandardCharsets.UTF_8);
+        this.pathBytes = path.getBytes(StandardCharsets.UTF_8);
+        this.typeBytes = type.getBytes(StandardCharsets.UTF_8);
+        this.size = size;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * @return The record for a .ttl or etext content file, or null for any other path.
+     */
+    static IndexRecord forPath(Path root, Path path)
+    {
+        Path relativePath = root.relativize(path);
+        if (relativePath.getNameCount() < 2) {
+            return null;
+        }
+
+        String type = relativePath.getName(0).toString();
+        String filename = path.getFileName().toString();
+        byte kind;
+        String id;
+        if (filename.endsWith(".ttl")) {
+            kind = CorpusIndex.RESOURCE;
+            id = filename.substring(0, filename.length() - 4);
+        } else if (filename.endsWith(".txt") && type.equals(CorpusIndex.TEXT_DIR)) {
+            kind = CorpusIndex.TEXT;
+            id = filename.substring(0, filename.length() - 4);
+        } else {
+            return null;
+        }
+
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        }
+        if (!attributes.isRegularFile()) {
+            return null;
+        }
+
+        String relativePathString = relativePath.toString().replace(File.separatorChar, '/');
+        return new IndexRecord(kind, id, relativePathString, type, attributes.size(), attributes.lastModifiedTime().toMillis());
+    }
+
+    int getEncodedSize()
+    {
+        return 1 + 2 + idBytes.length + 2 + pathBytes.length + 2 + typeBytes.length + 8 + 8;
+    }
+
+    void write(ByteBuffer buffer)
+    {
+        buffer.put(kind);
+        buffer.putShort((short) idBytes.length).put(idBytes);
+        buffer.putShort((short) pathBytes.length).put(pathBytes);
+        buffer.putShort((short) typeBytes.length).put(typeBytes);
+        buffer.putLong(size);
+        buffer.putLong(lastModified);
+    }
+}
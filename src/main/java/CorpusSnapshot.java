@@ -0,0 +1,314 @@
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.RDFFormat;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFWriter;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.stream.Collectors;
+
+class SnapshotEntry {
+    final String id;
+    // Source .ttl file, relative to the data directory
+    final String sourcePath;
+    final long sourceSize;
+    final long sourceModified;
+    final long offset;
+    final int length;
+
+    SnapshotEntry(String id, String sourcePath, long sourceSize, long sourceModified, long offset, int length)
+    {
+        this.id = id;
+        this.sourcePath = sourcePath;
+        this.sourceSize = sourceSize;
+        this.sourceModified = sourceModified;
+        this.offset = offset;
+        this.length = length;
+    }
+}
+
+/**
+ * A source file's graph, with the size and time of the file it was parsed from.
+ */
+class CompiledGraph {
+    final byte[] data;
+    final long sourceSize;
+    final long sourceModified;
+
+    CompiledGraph(byte[] data, long sourceSize, long sourceModified)
+    {
+        this.data = data;
+        this.sourceSize = sourceSize;
+        this.sourceModified = sourceModified;
+    }
+}
+
+/**
+ * The items, etexts, works and persons of a data directory, compiled from
+ * Turtle to RDF Thrift so generation runs don't have to parse Turtle.
+ *
+ * Each .ttl file is stored as its own RDF Thrift graph, along with the size
+ * and modification time the source had when it was compiled, so a resource
+ * can be read without the others and a changed source can be detected.
+ *
+ * File layout, all big-endian: magic, version and entry count, then for each
+ * entry its id and source path as short length-prefixed UTF-8, the source
+ * size and modification time, and the offset and length of its graph in the
+ * data section that follows.
+ *
+ * The data section is mapped in chunks of at most MAX_CHUNK_SIZE bytes, each
+ * starting and ending on a graph boundary, as a single mapping can't be over
+ * 2GB.
+ */
+public class CorpusSnapshot {
+
+    static final String SNAPSHOT_FILENAME = "corpus.snapshot";
+    static final List<String> COMPILED_TYPES = Arrays.asList("items", "etexts", "works", "persons");
+    private static final long MAGIC = 0x42445243534e5031L; // BDRCSNP1
+    private static final int VERSION = 1;
+    private static final int COMPILE_BATCH_SIZE = 1000;
+    static final long MAX_CHUNK_SIZE = Integer.MAX_VALUE;
+
+    private final Map<String, SnapshotEntry> entries;
+    // Offset in the data section of each chunk, ascending
+    private final long[] chunkOffsets;
+    private final ByteBuffer[] chunks;
+
+    private CorpusSnapshot(Map<String, SnapshotEntry> entries, long[] chunkOffsets, ByteBuffer[] chunks)
+    {
+        this.entries = entries;
+        this.chunkOffsets = chunkOffsets;
+        this.chunks = chunks;
+    }
+
+    /**
+     * @return The snapshot, or null if the file can't be read.
+     */
+    public static CorpusSnapshot open(String snapshotPath)
+    {
+        try (RandomAccessFile file = new RandomAccessFile(snapshotPath, "r");
+             FileChannel channel = file.getChannel()) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file.getFD())));
+            if (in.readLong() != MAGIC || in.readInt() != VERSION) {
+                System.out.println("Not a corpus snapshot, or from another version: " + snapshotPath);
+                return null;
+            }
+
+            int entryCount = in.readInt();
+            Map<String, SnapshotEntry> entries = new HashMap<>(entryCount * 2);
+            List<SnapshotEntry> entriesByOffset = new ArrayList<>(entryCount);
+            long headerSize = 8 + 4 + 4;
+            for (int i = 0; i < entryCount; i++) {
+                String id = in.readUTF();
+                String sourcePath = in.readUTF();
+                SnapshotEntry entry = new SnapshotEntry(id, sourcePath, in.readLong(), in.readLong(), in.readLong(), in.readInt());
+                entries.put(id, entry);
+                entriesByOffset.add(entry);
+                headerSize += 2 + id.getBytes(StandardCharsets.UTF_8).length + 2 + sourcePath.getBytes(StandardCharsets.UTF_8).length + 8 + 8 + 8 + 4;
+            }
+
+            // Graphs are written one after the other, so a chunk is cut
+            // before the first graph that doesn't fit in it
+            entriesByOffset.sort(Comparator.comparingLong(entry -> entry.offset));
+            List<Long> chunkOffsets = new ArrayList<>();
+            List<ByteBuffer> chunks = new ArrayList<>();
+            long chunkOffset = 0;
+            long chunkEnd = 0;
+            for (SnapshotEntry entry: entriesByOffset) {
+                if (entry.offset + entry.length - chunkOffset > MAX_CHUNK_SIZE) {
+                    chunkOffsets.add(chunkOffset);
+                    chunks.add(channel.map(FileChannel.MapMode.READ_ONLY, headerSize + chunkOffset, chunkEnd - chunkOffset));
+                    chunkOffset = entry.offset;
+                }
+                chunkEnd = Math.max(chunkEnd, entry.offset + entry.length);
+            }
+            chunkOffsets.add(chunkOffset);
+            chunks.add(channel.map(FileChannel.MapMode.READ_ONLY, headerSize + chunkOffset, chunkEnd - chunkOffset));
+
+            long[] offsets = new long[chunkOffsets.size()];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = chunkOffsets.get(i);
+            }
+            return new CorpusSnapshot(entries, offsets, chunks.toArray(new ByteBuffer[0]));
+        } catch (Exception e) {
+            System.out.println("Failed to read corpus snapshot " + snapshotPath + ": " + e);
+            return null;
+        }
+    }
+
+    public SnapshotEntry getEntry(String id)
+    {
+        return entries.get(id);
+    }
+
+    public int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * Reads the resource's graph into a new model.
+     */
+    public Model readModel(SnapshotEntry entry)
+    {
+        int chunkIndex = Arrays.binarySearch(chunkOffsets, entry.offset);
+        if (chunkIndex < 0) {
+            chunkIndex = -chunkIndex - 2;
+        }
+        int start = (int) (entry.offset - chunkOffsets[chunkIndex]);
+        ByteBuffer graph = chunks[chunkIndex].duplicate();
+        graph.limit(start + entry.length).position(start);
+
+        Model model = ModelFactory.createDefaultModel();
+        RDFDataMgr.read(model, new ByteBufferInputStream(graph), Lang.RDFTHRIFT);
+
+        return model;
+    }
+
+    /**
+     * Compiles every .ttl file of the compiled types in the index. Files are
+     * parsed in parallel, a batch at a time so only one batch of compiled
+     * graphs is in memory.
+     *
+     * @return Whether the snapshot was written.
+     */
+    public static boolean compile(String dataPath, CorpusIndex corpusIndex, String snapshotPath)
+    {
+        List<CorpusIndexEntry> sources = new ArrayList<>();
+        for (String type: COMPILED_TYPES) {
+            for (String id: corpusIndex.getResourceIds(type)) {
+                sources.add(corpusIndex.getResource(id));
+            }
+        }
+
+        File dataFile = new File(snapshotPath + ".data.tmp");
+        File snapshotFile = new File(snapshotPath);
+        File tempFile = new File(snapshotPath + ".tmp");
+        List<SnapshotEntry> entries = new ArrayList<>();
+        int failures = 0;
+
+        try {
+            try (OutputStream dataOut = new BufferedOutputStream(new FileOutputStream(dataFile))) {
+                long offset = 0;
+                for (int batchStart = 0; batchStart < sources.size(); batchStart += COMPILE_BATCH_SIZE) {
+                    List<CorpusIndexEntry> batch = sources.subList(batchStart, Math.min(batchStart + COMPILE_BATCH_SIZE, sources.size()));
+                    List<CompiledGraph> graphs = batch.parallelStream()
+                            .map(CorpusSnapshot::compileGraph)
+                            .collect(Collectors.toList());
+
+                    for (int i = 0; i < batch.size(); i++) {
+                        CompiledGraph graph = graphs.get(i);
+                        CorpusIndexEntry source = batch.get(i);
+                        if (graph == null) {
+                            failures++;
+                            continue;
+                        }
+
+                        dataOut.write(graph.data);
+                        String sourcePath = source.path.substring(dataPath.length());
+                        entries.add(new SnapshotEntry(source.id, sourcePath, graph.sourceSize, graph.sourceModified, offset, graph.data.length));
+                        offset += graph.data.length;
+                    }
+                    System.out.println("Compiled " + Math.min(batchStart + COMPILE_BATCH_SIZE, sources.size()) + "/" + sources.size());
+                }
+            }
+
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                out.writeLong(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(entries.size());
+                for (SnapshotEntry entry: entries) {
+                    out.writeUTF(entry.id);
+                    out.writeUTF(entry.sourcePath);
+                    out.writeLong(entry.sourceSize);
+                    out.writeLong(entry.sourceModified);
+                    out.writeLong(entry.offset);
+                    out.writeInt(entry.length);
+                }
+                Files.copy(dataFile.toPath(), out);
+            }
+            Files.move(tempFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (Exception e) {
+            System.out.println("Failed to write corpus snapshot " + snapshotPath);
+            System.out.println(e);
+            tempFile.delete();
+            return false;
+        } finally {
+            dataFile.delete();
+        }
+
+        System.out.println("Compiled " + entries.size() + " resources to " + snapshotPath
+                + ((failures > 0) ? ", " + failures + " failed to parse" : ""));
+
+        return true;
+    }
+
+    /**
+     * The file's size and time are read just before it is parsed, rather
+     * than taken from the index, which isn't rebuilt when a file is edited
+     * in place.
+     *
+     * @return The file's graph in RDF Thrift, or null if it can't be parsed.
+     */
+    private static CompiledGraph compileGraph(CorpusIndexEntry source)
+    {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(Paths.get(source.path), BasicFileAttributes.class);
+            // Triples are streamed in the order they are parsed, rather than
+            // written from a model, so reading them back builds the same graph,
+            // down to its iteration order, as reading the Turtle
+            ByteArrayOutputStream graph = new ByteArrayOutputStream((int) Math.min(attributes.size(), Integer.MAX_VALUE - 8));
+            StreamRDF out = StreamRDFWriter.getWriterStream(graph, RDFFormat.RDF_THRIFT);
+            RDFDataMgr.parse(out, source.path);
+
+            return new CompiledGraph(graph.toByteArray(), attributes.size(), attributes.lastModifiedTime().toMillis());
+        } catch (Exception e) {
+            System.out.println("Failed to compile " + source.path + ": " + e);
+            return null;
+        }
+    }
+}
+
+class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer)
+    {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public int read()
+    {
+        return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length)
+    {
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+
+        int read = Math.min(length, buffer.remaining());
+        buffer.get(bytes, offset, read);
+
+        return read;
+    }
+
+    @Override
+    public int available()
+    {
+        return buffer.remaining();
+    }
+}
@@ -1,5 +1,4 @@
 import javax.imageio.ImageIO;
-import javax.swing.*;
 import java.awt.*;
 import java.awt.font.FontRenderContext;
 import java.awt.font.TextLayout;
@@ -7,62 +6,121 @@ import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The parts of a cover that are the same for every document: the fonts and
+ * an image with the background, the bottom colour block, the logo and the
+ * logo text already drawn. Built once per document files directory and
+ * logo, and only read afterwards, so it is shared between worker threads.
+ */
+class CoverTemplate {
+
+    private static final Map<String, CoverTemplate> templates = new ConcurrentHashMap<>();
+
+    final Font titleFont;
+    final Font authorFont;
+    final Font inputterFont;
+    final FontMetrics titleFontMetrics;
+    final BufferedImage image;
+
+    private CoverTemplate(String documentFilesPath, String logoPath)
+    {
+        documentFilesPath = StringUtils.ensureTrailingSlash(documentFilesPath);
+        Font tibetanFont = loadFont(documentFilesPath + CoverGenerator.TIBETAN_FONT, CoverGenerator.TIBETAN_FONT_NAME);
+        Font latinFont = loadFont(documentFilesPath + CoverGenerator.LATIN_FONT, CoverGenerator.LATIN_FONT.replace(".ttf", ""));
+        titleFont = tibetanFont.deriveFont((float) CoverGenerator.FONT_SIZE);
+        authorFont = tibetanFont.deriveFont((float) CoverGenerator.SMALL_FONT_SIZE);
+        inputterFont = tibetanFont.deriveFont((float) CoverGenerator.SMALLER_FONT_SIZE);
+
+        image = new BufferedImage(CoverGenerator.COVER_WIDTH, CoverGenerator.COVER_HEIGHT, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        titleFontMetrics = graphics.getFontMetrics(titleFont);
+
+        graphics.setPaint(CoverGenerator.backgroundColor);
+        graphics.fillRect(0, 0, CoverGenerator.COVER_WIDTH, CoverGenerator.COVER_HEIGHT);
+        graphics.setPaint(CoverGenerator.bottomColor);
+        graphics.fillRect(0, CoverGenerator.COVER_HEIGHT - CoverGenerator.BOTTOM_HEIGHT, CoverGenerator.COVER_WIDTH, CoverGenerator.BOTTOM_HEIGHT);
+
+        drawLogo(graphics, latinFont.deriveFont((float) CoverGenerator.SMALL_FONT_SIZE), logoPath);
+        graphics.dispose();
+    }
+
+    static CoverTemplate forPath(String documentFilesPath, String logoPath)
+    {
+        return templates.computeIfAbsent(documentFilesPath + "|" + logoPath, key -> new CoverTemplate(documentFilesPath, logoPath));
+    }
+
+    private static void drawLogo(Graphics2D graphics, Font logoFont, String logoPath)
+    {
+        FontRenderContext frc = graphics.getFontRenderContext();
+        TextLayout logoLayout = new TextLayout("BDRC eBooks", logoFont, frc);
+        Rectangle2D logoTextBounds = logoLayout.getBounds();
+
+        int logoRightMargin = 40;
+
+        int logoWidth = CoverGenerator.LOGO_WIDTH + logoRightMargin + (int)logoTextBounds.getWidth();
+        int logoLeft = (CoverGenerator.COVER_WIDTH - logoWidth) / 2;
+
+        int logoHeight = 0;
+        try {
+            BufferedImage logoImage = ImageIO.read(new File(logoPath));
+            logoHeight = logoImage.getHeight() * CoverGenerator.LOGO_WIDTH / logoImage.getWidth();
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+            graphics.drawImage(logoImage, logoLeft, CoverGenerator.LOGO_TOP, CoverGenerator.LOGO_WIDTH, logoHeight, null);
+        } catch (Exception e) {
+            System.out.println("Failed to read cover logo " + logoPath + ": " + e);
+        }
+
+        int logoTextBaseline = CoverGenerator.LOGO_TOP + (logoHeight / 2) + (int)(logoTextBounds.getHeight() / 2);
+        graphics.setColor(CoverGenerator.bottomTypeColor);
+        logoLayout.draw(graphics, logoLeft + CoverGenerator.LOGO_WIDTH + logoRightMargin, logoTextBaseline);
+    }
+
+    /**
+     * @return The font at size 1, or the font with the fallback name if the file can't be read.
+     */
+    private static Font loadFont(String fontPath, String fallbackFontName)
+    {
+        try {
+            return Font.createFont(Font.TRUETYPE_FONT, new File(fontPath));
+        } catch(Exception e) {
+            System.out.println("Failed to get font: " + fontPath);
+            return new Font(fallbackFontName, Font.PLAIN, 1);
+        }
+    }
+}
 
 class CoverGenerator {
 
-    private static final int FONT_SIZE = 90;
-    private static final int SMALL_FONT_SIZE = 80;
-    private static final int SMALLER_FONT_SIZE = 60;
-    private static final int COVER_WIDTH = 1600;
-    private static final int COVER_HEIGHT = 2400;
+    static final int FONT_SIZE = 90;
+    static final int SMALL_FONT_SIZE = 80;
+    static final int SMALLER_FONT_SIZE = 60;
+    static final int COVER_WIDTH = 1600;
+    static final int COVER_HEIGHT = 2400;
+    static final int BOTTOM_HEIGHT = 800;
     private static final int TITLE_WIDTH = 1200;
     private static final int TITLE_TOP = 300;
-    private static final String TIBETAN_FONT = "Qomolangma-UchenSarchen.ttf";
-    private static final String TIBETAN_FONT_NAME = "Qomolangma-Uchen Sarchen";
-    private static final String LATIN_FONT = "EBGaramond-SemiBold.ttf";
-    private static Font coverFontTibetan;
-    private static Font coverFontLatin;
-    private static FontMetrics fontMetrics;
-    private BufferedImage image;
-    private String outputFilePath;
-    private static final Color backgroundColor = Color.WHITE;
-    private static Color bottomColor = new Color(129, 25, 38);
-    private static Color bottomTypeColor = Color.WHITE;
-    private static final int LOGO_TOP = 2100;
-    private static final int LOGO_WIDTH = 170;
+    private static final int TITLE_LINE_SPACING = 20;
+    private static final int VOLUME_SPACING = 130;
+    // The Swing label default the title used to be drawn with
+    private static final Color titleColor = new Color(51, 51, 51);
+    static final String TIBETAN_FONT = "Qomolangma-UchenSarchen.ttf";
+    static final String TIBETAN_FONT_NAME = "Qomolangma-Uchen Sarchen";
+    static final String LATIN_FONT = "EBGaramond-SemiBold.ttf";
+    static final Color backgroundColor = Color.WHITE;
+    static final Color bottomColor = new Color(129, 25, 38);
+    static final Color bottomTypeColor = Color.WHITE;
+    static final int LOGO_TOP = 2100;
+    static final int LOGO_WIDTH = 170;
     private static final int TEXT_MARGIN_SIDE = 50;
     private static final int TEXT_MARGIN_TOPBOTTOM = 50;
-    private Image logoImage;
+    private final CoverTemplate template;
 
     public CoverGenerator(String documentFilesPath, String logoPath)
     {
-        try {
-            image = new BufferedImage(COVER_WIDTH, COVER_HEIGHT, BufferedImage.TYPE_INT_ARGB);
-            Graphics2D graphics = image.createGraphics();
-            graphics.setPaint(backgroundColor);
-            graphics.fillRect(0, 0, COVER_WIDTH, COVER_HEIGHT);
-            documentFilesPath = StringUtils.ensureTrailingSlash(documentFilesPath);
-
-            if (coverFontTibetan == null) {
-                coverFontTibetan = getFont(documentFilesPath + TIBETAN_FONT, TIBETAN_FONT_NAME, Font.PLAIN, FONT_SIZE);
-            }
-
-            if (coverFontLatin == null) {
-                String latinFontName = LATIN_FONT.replace(".ttf", "");
-                coverFontLatin = getFont(documentFilesPath + LATIN_FONT, latinFontName, Font.PLAIN, 80);
-            }
-
-            if (fontMetrics == null) {
-                fontMetrics = graphics.getFontMetrics(coverFontTibetan);
-            }
-
-            graphics.dispose();
-
-            logoImage = ImageIO.read(new File(logoPath));
-            logoImage = logoImage.getScaledInstance(LOGO_WIDTH, -1, Image.SCALE_DEFAULT);
-        } catch(Exception e) {
-            System.out.printf("Exception generating cover: %s", e.toString());
-        }
+        template = CoverTemplate.forPath(documentFilesPath, logoPath);
     }
 
     public void generateCover(String title, String author, String inputter, int volume, String outputFilePath)
@@ -72,86 +130,64 @@ class CoverGenerator {
         title = title.replace("༼", " ༼\u00A0\u00A0\u00A0\u00A0");
         title = title.replace("༽", "\u00A0\u00A0༽ ");
 
-        this.outputFilePath = outputFilePath;
-        List<String> titleLines = StringUtils.wrap(title, fontMetrics, TITLE_WIDTH);
-        StringBuilder titleHtmlBuilder = new StringBuilder();
+        BufferedImage image = new BufferedImage(template.image.getColorModel(), template.image.copyData(null), false, null);
+        Graphics2D coverGraphics = image.createGraphics();
+        FontRenderContext frc = coverGraphics.getFontRenderContext();
+
+        // Title lines and volume, centred from the top
+        coverGraphics.setColor(titleColor);
+        int lineTop = TITLE_TOP;
+        List<String> titleLines = StringUtils.wrap(title, template.titleFontMetrics, TITLE_WIDTH);
         for (String line: titleLines) {
-            titleHtmlBuilder.append("<p style='padding-bottom: 20px'>").append(line).append("</p>");
+            lineTop = drawCentredLine(coverGraphics, frc, line, lineTop) + TITLE_LINE_SPACING;
         }
         if (volume > 0) {
             String tibetanVolume = TibetanUtils.getTibetanNumber(volume);
-            titleHtmlBuilder.append("<p style='padding-top: 100px'>").append(tibetanVolume).append("</p>");
+            drawCentredLine(coverGraphics, frc, tibetanVolume, lineTop + VOLUME_SPACING);
         }
-        String titleHtml = titleHtmlBuilder.toString();
-        JLabel label = new JLabel("<html><body style='width: " + TITLE_WIDTH + "px; padding: 0px; text-align: center'>" + titleHtml + "</body></html>");
-        label.setFont(coverFontTibetan);
-        Dimension labelSize = label.getPreferredSize();
-        label.setSize(labelSize);
-        BufferedImage titleImage = new BufferedImage(labelSize.width, labelSize.height, BufferedImage.TYPE_INT_ARGB);
-        Graphics2D titleGraphics = titleImage.createGraphics();
-        label.printAll(titleGraphics);
-        titleGraphics.dispose();
-
-        int titleMargins = (COVER_WIDTH - labelSize.width) / 2;
-
-        Graphics2D coverGraphics = image.createGraphics();
-        coverGraphics.drawImage(titleImage, titleMargins, TITLE_TOP, null);
-
-        int bottomColourHeight = 800;
-        BufferedImage bottomColourImage = new BufferedImage(COVER_WIDTH, bottomColourHeight, BufferedImage.TYPE_INT_ARGB);
-        Graphics2D bottomColourGraphics = bottomColourImage.createGraphics();
-        bottomColourGraphics.setPaint(bottomColor);
-        bottomColourGraphics.fillRect(0, 0, COVER_WIDTH, bottomColourHeight);
-        bottomColourGraphics.dispose();
-
-        coverGraphics.drawImage(bottomColourImage, 0, COVER_HEIGHT - bottomColourHeight, null);
-
-        Font textTibetanFont = new Font(TIBETAN_FONT_NAME, Font.PLAIN, SMALL_FONT_SIZE);
 
         // Author
-        if (author != null) {
-            FontRenderContext frc = coverGraphics.getFontRenderContext();
-            TextLayout authorLayout = new TextLayout(author, textTibetanFont, frc);
+        if (author != null && !author.isEmpty()) {
+            TextLayout authorLayout = new TextLayout(author, template.authorFont, frc);
             Rectangle2D authorTextBounds = authorLayout.getBounds();
             int authorWidth = (int)authorTextBounds.getWidth();
             int x = COVER_WIDTH - authorWidth - TEXT_MARGIN_SIDE;
-            int y = COVER_HEIGHT - bottomColourHeight - TEXT_MARGIN_TOPBOTTOM;
+            int y = COVER_HEIGHT - BOTTOM_HEIGHT - TEXT_MARGIN_TOPBOTTOM;
             coverGraphics.setColor(bottomColor);
             authorLayout.draw(coverGraphics, x, y);
         }
 
         // Inputter
-        if (inputter != null) {
-            Font inputterTibetanFont = new Font(TIBETAN_FONT_NAME, Font.PLAIN, SMALLER_FONT_SIZE);
-            FontRenderContext frc = coverGraphics.getFontRenderContext();
-            TextLayout inputterLayout = new TextLayout(inputter, inputterTibetanFont, frc);
+        if (inputter != null && !inputter.isEmpty()) {
+            TextLayout inputterLayout = new TextLayout(inputter, template.inputterFont, frc);
             Rectangle2D inputterTextBounds = inputterLayout.getBounds();
             int inputterWidth = (int)inputterTextBounds.getWidth();
             int inputterHeight = (int)inputterTextBounds.getHeight();
             int x = COVER_WIDTH - inputterWidth - TEXT_MARGIN_SIDE;
-            int y = COVER_HEIGHT - bottomColourHeight + inputterHeight;
+            int y = COVER_HEIGHT - BOTTOM_HEIGHT + inputterHeight;
             coverGraphics.setColor(Color.WHITE);
             inputterLayout.draw(coverGraphics, x, y);
         }
 
-        // Logo and logo text
-        FontRenderContext frc = coverGraphics.getFontRenderContext();
-        TextLayout logoLayout = new TextLayout("BDRC eBooks", coverFontLatin, frc);
-        Rectangle2D logoTextBounds = logoLayout.getBounds();
-
-        int logoRightMargin = 40;
-
-        int logoWidth = LOGO_WIDTH + logoRightMargin + (int)logoTextBounds.getWidth();
-        int logoLeft = (COVER_WIDTH - logoWidth) / 2;
-        coverGraphics.drawImage(logoImage, logoLeft, LOGO_TOP, null);
+        coverGraphics.dispose();
+        saveCover(image, outputFilePath);
+    }
 
-        int logoHeight = logoImage.getHeight(null);
-        int logoTextBaseline = LOGO_TOP + (logoHeight / 2) + (int)(logoTextBounds.getHeight() / 2);
-        coverGraphics.setColor(bottomTypeColor);
-        logoLayout.draw(coverGraphics, logoLeft + LOGO_WIDTH + logoRightMargin, logoTextBaseline);
+    /**
+     * @return The top of the next line.
+     */
+    private int drawCentredLine(Graphics2D graphics, FontRenderContext frc, String line, int top)
+    {
+        if (line.isEmpty()) {
+            return top + template.titleFontMetrics.getHeight();
+        }
 
+        TextLayout layout = new TextLayout(line, template.titleFont, frc);
+        int x = (COVER_WIDTH - (int)layout.getAdvance()) / 2;
+        int baseline = top + (int)Math.ceil(layout.getAscent());
+        layout.draw(graphics, x, baseline);
 
-        saveCover();
+        return baseline + (int)Math.ceil(layout.getDescent() + layout.getLeading());
     }
 
     /**
@@ -164,7 +200,7 @@ class CoverGenerator {
         return title.replaceAll("([\\u0F00-\\u0FFF]) ([A-Za-z])", "$1\n$2");
     }
 
-    private void saveCover()
+    private void saveCover(BufferedImage image, String outputFilePath)
     {
         try {
             File imageFile = new File(outputFilePath);
@@ -176,18 +212,4 @@ class CoverGenerator {
             System.out.println("Failed to save cover: " + e);
         }
     }
-
-    private Font getFont(String fontPath, String fontName, int fontStyle, int fontSize)
-    {
-        try {
-            Font customFont = Font.createFont(Font.TRUETYPE_FONT, new File(fontPath));
-            GraphicsEnvironment ge = GraphicsEnvironment.getLocalGraphicsEnvironment();
-            ge.registerFont(customFont);
-        } catch(Exception e) {
-            System.out.println("Failed to get font: " + fontPath);
-            fontName = TIBETAN_FONT;
-        }
-
-        return new Font(fontName, fontStyle, fontSize);
-    }
-}
\ No newline at end of file
+}
@@ -1,7 +1,8 @@
-import java.util.List;
-
 public interface DataSource {
     RDFResource loadResource(String IRI);
-    String loadTextContent(String IRI);
-    List<String> loadTextContentLines(String IRI);
+    // The etext's text, or null if it can't be read
+    TextContent loadTextContent(String IRI);
+    // The files a resource and its text are read from, e.g. to detect changes
+    String getResourcePath(String IRI);
+    String getTextContentPath(String IRI);
 }
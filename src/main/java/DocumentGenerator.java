@@ -1,60 +1,191 @@
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 public class DocumentGenerator {
 
     public static final String BDR = "http://purl.bdrc.io/resource/";
 
     private final String id;
-    private final String sourceDir;
     private final String outputDir;
-    private final FileDataSource ds;
+    private final DataSource ds;
     private final String documentFilesDir;
     private static String pandocPath;
+    private static boolean pandocMissing = false;
     private final String terms;
     private static final String epubFontFilename = "MonlamUniOuChan2.ttf";
     private static final String epubFontName = "MonlamUniOuChan2";
     private static final String epubEnglishFontName = "EBGaramond-SemiBold.ttf";
     private static final String epubCssFile = "epub.css";
+    private static final String docxReferenceFilename = "reference.docx";
     private final String logoFilename = "BDRC-logo-750-white.png";
-
-    DocumentGenerator(String id, String sourceDir, String outputDir, String documentFilesDir, String terms)
+    private static final int MARKDOWN_BUFFER_SIZE = 64 * 1024;
+    public static final String BACKEND_NATIVE = "native";
+    public static final String BACKEND_PANDOC = "pandoc";
+    private final String backend;
+    private final ProcessPool processPool;
+    private Terms parsedTerms;
+    private final List<String> outputPaths = Collections.synchronizedList(new ArrayList<>());
+    private final List<Future<ProcessResult>> conversions = Collections.synchronizedList(new ArrayList<>());
+    private final DocumentMetrics metrics;
+
+    /**
+     * @param metrics Where the time of each stage and the bytes written are recorded.
+     */
+    DocumentGenerator(String id, DataSource ds, String outputDir, String documentFilesDir, String terms, String backend, ProcessPool processPool, DocumentMetrics metrics)
     {
         this.id = id;
-        this.sourceDir = StringUtils.ensureTrailingSlash(sourceDir);
         this.outputDir = StringUtils.ensureTrailingSlash(outputDir);
-        this.ds = new FileDataSource(this.sourceDir);
+        this.ds = ds;
         this.documentFilesDir = StringUtils.ensureTrailingSlash(documentFilesDir);
         this.terms = terms;
+        this.backend = backend;
+        this.processPool = processPool;
+        this.metrics = metrics;
     }
 
     public void generateDocuments(boolean generateEpub, boolean generateDocx)
     {
-        MarkdownGenerator markdownGenerator = new MarkdownGenerator(id, sourceDir, outputDir, terms);
+        List<MarkdownDocument> markdownDocuments = planDocuments();
+        for (MarkdownDocument markdownDocument: markdownDocuments) {
+            generateDocument(markdownDocument, generateEpub, generateDocx);
+        }
+    }
+
+    /**
+     * Reads the item and its etexts, without generating anything yet.
+     *
+     * @return A document for each volume, or none for resources that aren't etext items.
+     */
+    public List<MarkdownDocument> planDocuments()
+    {
+        long start = System.nanoTime();
+        MarkdownGenerator markdownGenerator = new MarkdownGenerator(id, ds, outputDir, terms);
         List<MarkdownDocument> markdownDocuments = markdownGenerator.generateMarkdownForResource(id, ds);
+        metrics.recordStage(Stage.ITEM, start);
 
-        if (markdownDocuments != null) {
-            for (MarkdownDocument markdownDocument: markdownDocuments) {
-                String markdownFilePath = outputDir + "markdown/" + markdownDocument.name + ".md";
-                saveStringToFile(markdownDocument.markdown, markdownFilePath);
-                createOutputDirs(outputDir, generateEpub, generateDocx);
+        return (markdownDocuments != null) ? markdownDocuments : new ArrayList<>();
+    }
 
-                if (generateEpub) {
-                    String logoPath = documentFilesDir + logoFilename;
-                    CoverGenerator coverGenerator = new CoverGenerator(documentFilesDir, logoPath);
-                    String coverFilename = outputDir + "covers/" + markdownDocument.name + ".png";
-                    coverGenerator.generateCover(markdownDocument.title, markdownDocument.author, markdownDocument.inputter, markdownDocument.volume, coverFilename);
+    /**
+     * Writes the markdown and the outputs of one of the item's documents.
+     * The documents of an item can be generated at the same time on
+     * different threads.
+     *
+     * @return The files written or started, or null if the markdown or a
+     * native output couldn't be written.
+     */
+    public List<String> generateDocument(MarkdownDocument markdownDocument, boolean generateEpub, boolean generateDocx)
+    {
+        List<String> documentOutputs = new ArrayList<>();
+        long start;
+        if (markdownDocument.volumeContent != null) {
+            // Page alignment and the section tree, timed on their own
+            // rather than as part of writing the markdown
+            start = System.nanoTime();
+            markdownDocument.volumeContent.getSections();
+            metrics.recordStage(Stage.SECTIONS, start);
+        }
 
-                    String epubCommand = generateEpubCommand(outputDir, markdownFilePath, markdownDocument.name, coverFilename);
-                    executeCommand(epubCommand);
+        String markdownFilePath = outputDir + "markdown/" + markdownDocument.name + ".md";
+        start = System.nanoTime();
+        boolean saved = saveMarkdownToFile(markdownDocument, markdownFilePath);
+        metrics.recordStage(Stage.MARKDOWN, start);
+        if (!saved) {
+            return null;
+        }
+        addOutputPath(documentOutputs, markdownFilePath);
+        createOutputDirs(outputDir, generateEpub, generateDocx);
+
+        if (generateEpub) {
+            start = System.nanoTime();
+            String logoPath = documentFilesDir + logoFilename;
+            CoverGenerator coverGenerator = new CoverGenerator(documentFilesDir, logoPath);
+            String coverFilename = outputDir + "covers/" + markdownDocument.name + ".png";
+            coverGenerator.generateCover(markdownDocument.title, markdownDocument.author, markdownDocument.inputter, markdownDocument.volume, coverFilename);
+            metrics.recordStage(Stage.COVER, start);
+            addOutputPath(documentOutputs, coverFilename);
+
+            // Texts without a section tree only have their markdown, so they always go through pandoc
+            String epubFilepath = outputDir + "epub/" + markdownDocument.name + ".epub";
+            if (backend.equals(BACKEND_NATIVE) && markdownDocument.volumeContent != null) {
+                start = System.nanoTime();
+                boolean written = new Epub3Writer(documentFilesDir, epubFontFilename, epubFontName, getParsedTerms()).write(markdownDocument, coverFilename, epubFilepath);
+                metrics.recordStage(Stage.EPUB, start);
+                if (!written) {
+                    return null;
                 }
+                addOutputPath(documentOutputs, epubFilepath);
+            } else {
+                List<String> epubCommand = generateEpubCommand(outputDir, markdownFilePath, markdownDocument.name, coverFilename);
+                executeCommand(epubCommand, epubFilepath);
+                outputPaths.add(epubFilepath);
+                documentOutputs.add(epubFilepath);
+            }
+        }
 
-                if (generateDocx) {
-                    String docxCommand = generateDocxCommand(outputDir, markdownFilePath, markdownDocument.name);
-                    executeCommand(docxCommand);
+        if (generateDocx) {
+            String docxFilepath = outputDir + "docx/" + markdownDocument.name + ".docx";
+            if (backend.equals(BACKEND_NATIVE) && markdownDocument.volumeContent != null) {
+                start = System.nanoTime();
+                boolean written = new DocxWriter(documentFilesDir + docxReferenceFilename, documentFilesDir, getParsedTerms()).write(markdownDocument, docxFilepath);
+                metrics.recordStage(Stage.DOCX, start);
+                if (!written) {
+                    return null;
                 }
+                addOutputPath(documentOutputs, docxFilepath);
+            } else {
+                List<String> docxCommand = generateDocxCommand(outputDir, markdownFilePath, markdownDocument.name);
+                executeCommand(docxCommand, docxFilepath);
+                outputPaths.add(docxFilepath);
+                documentOutputs.add(docxFilepath);
             }
         }
+
+        markdownDocument.release();
+
+        return documentOutputs;
+    }
+
+    /**
+     * Counts files a previous run wrote for one of the item's documents as
+     * if this generator had written them.
+     */
+    public void reuseOutputs(List<String> paths)
+    {
+        outputPaths.addAll(paths);
+    }
+
+    /**
+     * Records a file that has been written, and counts its size.
+     */
+    private void addOutputPath(List<String> documentOutputs, String outputPath)
+    {
+        documentOutputs.add(outputPath);
+        outputPaths.add(outputPath);
+        metrics.addOutputFile(outputPath);
+    }
+
+    private synchronized Terms getParsedTerms()
+    {
+        if (parsedTerms == null) {
+            parsedTerms = Terms.parse(terms);
+        }
+
+        return parsedTerms;
+    }
+
+    /**
+     * @return Every file generateDocument wrote or started a conversion for.
+     */
+    public List<String> getOutputPaths()
+    {
+        return outputPaths;
     }
 
     public void createOutputDirs(String outputDir, boolean epubFiles, boolean docxFiles)
@@ -76,16 +207,20 @@ public class DocumentGenerator {
         }
     }
 
-    private String getPandocPath()
+    private static synchronized String getPandocPath()
     {
-        if (pandocPath == null) {
-            pandocPath = executeCommand("command -v pandoc");
+        if (pandocPath == null && !pandocMissing) {
+            pandocPath = ProcessPool.findExecutable("pandoc");
+            if (pandocPath == null) {
+                pandocMissing = true;
+                System.out.println("Error: pandoc was not found on the PATH");
+            }
         }
 
         return pandocPath;
     }
 
-    private String generateEpubCommand(String outputDir, String markdownFilePath, String filename, String coverPath)
+    private List<String> generateEpubCommand(String outputDir, String markdownFilePath, String filename, String coverPath)
     {
         String pandocPath = getPandocPath();
         if (pandocPath == null) return null;
@@ -93,61 +228,78 @@ public class DocumentGenerator {
         String cssPath = getEpubCss(getEpubCssFilepath(documentFilesDir), outputDir);
 
         String epubFilepath = outputDir + "epub/" + filename + ".epub";
-        String epubCommand = pandocPath + " " +
-                "-f markdown " +
-                "-t epub3 " +
-                "\"" + markdownFilePath + "\" " +
-                "-o \"" + epubFilepath + "\" " +
-                "--toc-depth=2 " +
-                "--epub-chapter-level=3 " +
-                "--epub-stylesheet=\""+cssPath+"\" " +
-                "--epub-embed-font=\""+documentFilesDir + epubFontFilename +"\" " +
-//                "--epub-embed-font=\""+documentFilesDir + epubEnglishFontName +"\" " +
-                "--epub-cover=\""+coverPath+"\" "
-                ;
-
-        return epubCommand;
+        return Arrays.asList(
+                pandocPath,
+                "-f", "markdown",
+                "-t", "epub3",
+                markdownFilePath,
+                "-o", epubFilepath,
+                "--toc-depth=2",
+                "--epub-chapter-level=3",
+                "--epub-stylesheet=" + cssPath,
+                "--epub-embed-font=" + documentFilesDir + epubFontFilename,
+//                "--epub-embed-font=" + documentFilesDir + epubEnglishFontName,
+                "--epub-cover=" + coverPath
+        );
     }
 
-    private String generateDocxCommand(String outputDir, String markdownFilePath, String filename)
+    private List<String> generateDocxCommand(String outputDir, String markdownFilePath, String filename)
     {
         String pandocPath = getPandocPath();
         if (pandocPath == null) return null;
 
         String docxFilepath = outputDir + "docx/" + filename + ".docx";
-        String docxReference = documentFilesDir + "reference.docx";
-        String docxCommand = pandocPath + " " +
-                "-f markdown " +
-                "-t docx " +
-                "\"" + markdownFilePath + "\" " +
-                "-o \"" + docxFilepath + "\" " +
-                "--toc-depth=2 " +
-                "--reference-doc=\"" + docxReference + "\""
-                ;
-
-        return docxCommand;
+        String docxReference = documentFilesDir + docxReferenceFilename;
+        return Arrays.asList(
+                pandocPath,
+                "-f", "markdown",
+                "-t", "docx",
+                markdownFilePath,
+                "-o", docxFilepath,
+                "--toc-depth=2",
+                "--reference-doc=" + docxReference
+        );
     }
 
-    private String executeCommand(String command)
+    private void executeCommand(List<String> command, String outputFilepath)
     {
-        Process proc;
-        String output = null;
-        try {
-            proc = Runtime.getRuntime().exec(new String[] {"bash", "-c", command});
-            BufferedReader stdInput = new BufferedReader(new
-                    InputStreamReader(proc.getInputStream()));
+        if (command == null) {
+            return;
+        }
 
-            BufferedReader stdError = new BufferedReader(new
-                    InputStreamReader(proc.getErrorStream()));
+        conversions.add(processPool.submit(command, outputFilepath, result -> {
+            metrics.addStageNanos(Stage.PANDOC, result.elapsedNanos);
+            if (result.succeeded()) {
+                metrics.addOutputFile(outputFilepath);
+            }
+        }));
+    }
 
-            while ((output = stdInput.readLine()) != null) {
-                break;
+    /**
+     * Waits for the pandoc conversions this generator started.
+     *
+     * @return The conversions that failed.
+     */
+    public List<ProcessResult> awaitConversions() throws InterruptedException
+    {
+        List<ProcessResult> failures = new ArrayList<>();
+        List<Future<ProcessResult>> started;
+        synchronized (conversions) {
+            started = new ArrayList<>(conversions);
+        }
+        for (Future<ProcessResult> conversion: started) {
+            try {
+                ProcessResult result = conversion.get();
+                if (!result.succeeded()) {
+                    failures.add(result);
+                }
+            } catch (ExecutionException e) {
+                System.out.println("Exception waiting for a conversion");
+                System.out.println(e);
             }
-        } catch (Exception e) {
-            System.out.println("Exception: " + e.toString());
         }
 
-        return output;
+        return failures;
     }
 
     private static boolean saveStringToFile(String text, String filePath)
@@ -178,6 +330,27 @@ public class DocumentGenerator {
         return true;
     }
 
+    private static boolean saveMarkdownToFile(MarkdownDocument document, String filePath)
+    {
+        File outputFile = new File(filePath);
+        if (outputFile.getParentFile() != null) {
+            outputFile.getParentFile().mkdirs();
+        }
+
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputFile), StandardCharsets.UTF_8), MARKDOWN_BUFFER_SIZE)) {
+            document.writeMarkdown(out);
+        } catch (BudgetExceededException e) {
+            outputFile.delete();
+            throw e;
+        } catch (Exception e) {
+            System.out.println("Failed to write to markdown file " + filePath);
+            System.out.println(e);
+            return false;
+        }
+
+        return true;
+    }
+
     protected static String getEpubCssFilepath(String documentFilesDirPath)
     {
         documentFilesDirPath = StringUtils.ensureTrailingSlash(documentFilesDirPath);
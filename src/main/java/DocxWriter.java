@@ -0,0 +1,460 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * The parts of the reference docx, loaded once per file and shared by every
+ * DocxWriter. Everything but the document body is copied into the generated
+ * files as it is, so they keep the reference styles, numbering and page setup.
+ */
+class DocxTemplate {
+
+    static final String CONTENT_TYPES = "[Content_Types].xml";
+    static final String DOCUMENT = "word/document.xml";
+    static final String DOCUMENT_RELS = "word/_rels/document.xml.rels";
+    static final String CORE_PROPERTIES = "docProps/core.xml";
+
+    private static final Pattern DOCUMENT_START_PATTERN = Pattern.compile("<w:document[^>]*>");
+    private static final Pattern SECTION_PROPERTIES_PATTERN = Pattern.compile("<w:sectPr[\\s>].*</w:sectPr>", Pattern.DOTALL);
+    private static final Map<String, DocxTemplate> templates = new ConcurrentHashMap<>();
+
+    final Map<String, byte[]> parts;
+    final String documentStart;
+    final String sectionProperties;
+
+    private DocxTemplate(Map<String, byte[]> parts)
+    {
+        this.parts = Collections.unmodifiableMap(parts);
+
+        String document = new String(parts.get(DOCUMENT), StandardCharsets.UTF_8);
+        Matcher documentStartMatcher = DOCUMENT_START_PATTERN.matcher(document);
+        documentStart = documentStartMatcher.find() ? documentStartMatcher.group()
+                : "<w:document xmlns:r=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships\" "
+                + "xmlns:w=\"http://schemas.openxmlformats.org/wordprocessingml/2006/main\">";
+        Matcher sectionPropertiesMatcher = SECTION_PROPERTIES_PATTERN.matcher(document);
+        sectionProperties = sectionPropertiesMatcher.find() ? sectionPropertiesMatcher.group() : "";
+    }
+
+    /**
+     * @return The shared template, or null if the file can't be read.
+     */
+    static DocxTemplate forPath(String referencePath)
+    {
+        return templates.computeIfAbsent(referencePath, DocxTemplate::load);
+    }
+
+    String getPart(String name)
+    {
+        byte[] part = parts.get(name);
+        return (part != null) ? new String(part, StandardCharsets.UTF_8) : null;
+    }
+
+    private static DocxTemplate load(String referencePath)
+    {
+        Map<String, byte[]> parts = new LinkedHashMap<>();
+        try (ZipFile zipFile = new ZipFile(referencePath)) {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                try (InputStream in = zipFile.getInputStream(entry)) {
+                    ByteArrayOutputStream part = new ByteArrayOutputStream();
+                    byte[] buffer = new byte[8192];
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        part.write(buffer, 0, read);
+                    }
+                    parts.put(entry.getName(), part.toByteArray());
+                }
+            }
+        } catch (Exception e) {
+            System.out.println("Failed to read reference docx " + referencePath);
+            System.out.println(e);
+            return null;
+        }
+
+        if (!parts.containsKey(DOCUMENT) || !parts.containsKey(DOCUMENT_RELS) || !parts.containsKey(CONTENT_TYPES)) {
+            System.out.println("Reference docx is missing its document parts: " + referencePath);
+            return null;
+        }
+
+        return new DocxTemplate(parts);
+    }
+}
+
+/**
+ * Writes a docx straight from the section tree of a volume, using the parts
+ * of reference.docx as the template, the way pandoc's --reference-doc does.
+ *
+ * word/document.xml is written into the zip as the sections are walked;
+ * the relationships for links and images are written after it, once they
+ * are all known.
+ */
+class DocxWriter extends VolumeWriter {
+
+    private static final int MAX_HEADING_LEVEL = 6;
+    private static final int EMU_PER_PIXEL = 9525;
+    private static final String RELATIONSHIPS_NS = "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+    private static final String HYPERLINK_TYPE = RELATIONSHIPS_NS + "/hyperlink";
+    private static final String IMAGE_TYPE = RELATIONSHIPS_NS + "/image";
+
+    private final String referencePath;
+    private final DocxTemplate template;
+    private final String documentFilesDir;
+    private final Terms terms;
+
+    private ZipOutputStream zip;
+    private Writer out;
+    private Map<String, String> links;
+    private Map<String, String> images;
+    private boolean afterHeading;
+    private int bookmarkCount;
+    private int drawingCount;
+
+    DocxWriter(String referencePath, String documentFilesDir, Terms terms)
+    {
+        this.referencePath = referencePath;
+        this.template = DocxTemplate.forPath(referencePath);
+        this.documentFilesDir = StringUtils.ensureTrailingSlash(documentFilesDir);
+        this.terms = terms;
+    }
+
+    /**
+     * @return Whether the docx was written.
+     */
+    public boolean write(MarkdownDocument document, String docxPath)
+    {
+        if (template == null) {
+            System.out.println("Failed to write docx " + docxPath + ": no usable reference docx " + referencePath);
+            return false;
+        }
+
+        links = new LinkedHashMap<>();
+        images = new LinkedHashMap<>();
+        afterHeading = false;
+        bookmarkCount = 0;
+        drawingCount = 0;
+
+        File docxFile = new File(docxPath);
+        try (ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(docxFile)))) {
+            this.zip = zip;
+            this.out = new BufferedWriter(new OutputStreamWriter(new FilterOutputStream(zip) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException
+                {
+                    zip.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException
+                {
+                    // The zip stream is closed by its owner
+                }
+            }, StandardCharsets.UTF_8));
+
+            startEntry(DocxTemplate.DOCUMENT);
+            out.append("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n")
+                    .append(template.documentStart)
+                    .append("<w:body>");
+            writeVolume(document.volumeContent, terms);
+            out.append(template.sectionProperties)
+                    .append("</w:body></w:document>");
+            endEntry();
+
+            writeDocumentRelationships();
+            writeContentTypes();
+            writeCoreProperties(document);
+            writeImages();
+            for (Map.Entry<String, byte[]> part: template.parts.entrySet()) {
+                String name = part.getKey();
+                if (name.equals(DocxTemplate.DOCUMENT) || name.equals(DocxTemplate.DOCUMENT_RELS)
+                        || name.equals(DocxTemplate.CONTENT_TYPES) || name.equals(DocxTemplate.CORE_PROPERTIES)) {
+                    continue;
+                }
+                zip.putNextEntry(new ZipEntry(name));
+                zip.write(part.getValue());
+                zip.closeEntry();
+            }
+        } catch (BudgetExceededException e) {
+            docxFile.delete();
+            throw e;
+        } catch (Exception e) {
+            System.out.println("Failed to write docx " + docxPath);
+            System.out.println(e);
+            docxFile.delete();
+            return false;
+        } finally {
+            zip = null;
+            out = null;
+        }
+
+        return true;
+    }
+
+    @Override
+    protected void writeHeading(int level, String text, String cssClass) throws IOException
+    {
+        int bookmarkId = bookmarkCount++;
+        out.append("<w:p><w:pPr><w:pStyle w:val=\"Heading")
+                .append(String.valueOf(Math.min(level, MAX_HEADING_LEVEL)))
+                .append("\"/></w:pPr><w:bookmarkStart w:id=\"").append(String.valueOf(bookmarkId))
+                .append("\" w:name=\"section-").append(String.valueOf(bookmarkId + 1)).append("\"/>");
+        if (!text.isEmpty()) {
+            writeRun(text, 0, text.length(), null);
+        }
+        out.append("<w:bookmarkEnd w:id=\"").append(String.valueOf(bookmarkId)).append("\"/></w:p>");
+        afterHeading = true;
+    }
+
+    @Override
+    protected void writeAuthor(String author) throws IOException
+    {
+        out.append("<w:p><w:pPr><w:pStyle w:val=\"Author\"/></w:pPr>");
+        writeRun(author, 0, author.length(), null);
+        out.append("</w:p>");
+    }
+
+    /**
+     * Lines of a paragraph are joined with a space, as pandoc does with soft line breaks.
+     */
+    @Override
+    protected void writeParagraph(CharSequence text, int start, int end) throws IOException
+    {
+        startParagraph();
+        int lineStart = start;
+        while (lineStart <= end) {
+            int lineEnd = lineStart;
+            while (lineEnd < end && text.charAt(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            if (lineStart > start) {
+                writeRun(" ", 0, 1, null);
+            }
+            writeRun(text, lineStart, lineEnd, null);
+            lineStart = lineEnd + 1;
+        }
+        out.append("</w:p>");
+    }
+
+    /**
+     * The terms divs only carry styling for the epub, so their paragraphs are written as they are.
+     */
+    @Override
+    protected void writeTerms(Terms terms) throws IOException
+    {
+        for (TermsBlock block: terms.blocks) {
+            switch (block.type) {
+                case HEADING:
+                    writeHeading(block.level, Terms.getPlainText(block.inlines), block.cssClass);
+                    break;
+                case PARAGRAPH:
+                    startParagraph();
+                    writeInlines(block.inlines);
+                    out.append("</w:p>");
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private void startParagraph() throws IOException
+    {
+        out.append("<w:p><w:pPr><w:pStyle w:val=\"")
+                .append(afterHeading ? "FirstParagraph" : "BodyText")
+                .append("\"/></w:pPr>");
+        afterHeading = false;
+    }
+
+    private void writeRun(CharSequence text, int start, int end, String runStyle) throws IOException
+    {
+        out.append("<w:r>");
+        if (runStyle != null) {
+            out.append("<w:rPr><w:rStyle w:val=\"").append(runStyle).append("\"/></w:rPr>");
+        }
+        out.append("<w:t xml:space=\"preserve\">");
+        StringUtils.writeXmlEscaped(out, text, start, end);
+        out.append("</w:t></w:r>");
+    }
+
+    private void writeInlines(List<TermsInline> inlines) throws IOException
+    {
+        for (TermsInline inline: inlines) {
+            switch (inline.type) {
+                case TEXT:
+                    writeRun(inline.text, 0, inline.text.length(), null);
+                    break;
+                case LINK:
+                    out.append("<w:hyperlink r:id=\"").append(getRelationshipId(links, inline.target, "rIdLink")).append("\">");
+                    writeRun(inline.text, 0, inline.text.length(), "Hyperlink");
+                    out.append("</w:hyperlink>");
+                    break;
+                case IMAGE:
+                    writeImage(inline);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * A missing image is left out, so the docx has no relationship to a
+     * part it doesn't contain.
+     */
+    private void writeImage(TermsInline image) throws IOException
+    {
+        if (!images.containsKey(image.target)) {
+            File imageFile = getImageFile(image.target);
+            if (!imageFile.exists()) {
+                System.out.println("Missing docx image " + imageFile.getPath());
+                return;
+            }
+        }
+
+        String relationshipId = getRelationshipId(images, image.target, "rIdImage");
+        int drawingId = ++drawingCount;
+        long width = (long) Math.max(image.width, 1) * EMU_PER_PIXEL;
+        long height = (long) Math.max(image.height, 1) * EMU_PER_PIXEL;
+        String name = "Picture " + drawingId;
+
+        out.append("<w:r><w:drawing><wp:inline distT=\"0\" distB=\"0\" distL=\"0\" distR=\"0\">")
+                .append("<wp:extent cx=\"").append(String.valueOf(width)).append("\" cy=\"").append(String.valueOf(height)).append("\"/>")
+                .append("<wp:docPr id=\"").append(String.valueOf(drawingId)).append("\" name=\"").append(name).append("\" descr=\"");
+        StringUtils.writeXmlEscaped(out, image.text);
+        out.append("\"/>")
+                .append("<a:graphic xmlns:a=\"http://schemas.openxmlformats.org/drawingml/2006/main\">")
+                .append("<a:graphicData uri=\"http://schemas.openxmlformats.org/drawingml/2006/picture\">")
+                .append("<pic:pic xmlns:pic=\"http://schemas.openxmlformats.org/drawingml/2006/picture\">")
+                .append("<pic:nvPicPr><pic:cNvPr id=\"").append(String.valueOf(drawingId)).append("\" name=\"").append(name).append("\"/><pic:cNvPicPr/></pic:nvPicPr>")
+                .append("<pic:blipFill><a:blip r:embed=\"").append(relationshipId).append("\"/><a:stretch><a:fillRect/></a:stretch></pic:blipFill>")
+                .append("<pic:spPr><a:xfrm><a:off x=\"0\" y=\"0\"/><a:ext cx=\"").append(String.valueOf(width)).append("\" cy=\"").append(String.valueOf(height)).append("\"/></a:xfrm>")
+                .append("<a:prstGeom prst=\"rect\"><a:avLst/></a:prstGeom></pic:spPr>")
+                .append("</pic:pic></a:graphicData></a:graphic></wp:inline></w:drawing></w:r>");
+    }
+
+    private static String getRelationshipId(Map<String, String> relationships, String target, String prefix)
+    {
+        String id = relationships.get(target);
+        if (id == null) {
+            id = prefix + (relationships.size() + 1);
+            relationships.put(target, id);
+        }
+
+        return id;
+    }
+
+    private static String getImagePartName(String imagePath, String relationshipId)
+    {
+        return "media/" + relationshipId + imagePath.substring(imagePath.lastIndexOf('.'));
+    }
+
+    private void writeDocumentRelationships() throws IOException
+    {
+        String relationships = template.getPart(DocxTemplate.DOCUMENT_RELS);
+        StringBuilder added = new StringBuilder();
+        for (Map.Entry<String, String> link: links.entrySet()) {
+            added.append("<Relationship Id=\"").append(link.getValue())
+                    .append("\" Type=\"").append(HYPERLINK_TYPE)
+                    .append("\" Target=\"").append(StringUtils.escapeXml(link.getKey()))
+                    .append("\" TargetMode=\"External\"/>");
+        }
+        for (Map.Entry<String, String> image: images.entrySet()) {
+            added.append("<Relationship Id=\"").append(image.getValue())
+                    .append("\" Type=\"").append(IMAGE_TYPE)
+                    .append("\" Target=\"").append(getImagePartName(image.getKey(), image.getValue()))
+                    .append("\"/>");
+        }
+
+        startEntry(DocxTemplate.DOCUMENT_RELS);
+        out.append(relationships.replace("</Relationships>", added + "</Relationships>"));
+        endEntry();
+    }
+
+    private void writeContentTypes() throws IOException
+    {
+        String contentTypes = template.getPart(DocxTemplate.CONTENT_TYPES);
+        StringBuilder added = new StringBuilder();
+        Set<String> extensions = new HashSet<>();
+        for (String imagePath: images.keySet()) {
+            String extension = imagePath.substring(imagePath.lastIndexOf('.') + 1).toLowerCase();
+            if (extensions.add(extension) && !contentTypes.contains("Extension=\"" + extension + "\"")) {
+                String contentType = extension.equals("jpg") ? "image/jpeg" : "image/" + extension;
+                added.append("<Default Extension=\"").append(extension).append("\" ContentType=\"").append(contentType).append("\"/>");
+            }
+        }
+
+        startEntry(DocxTemplate.CONTENT_TYPES);
+        out.append(contentTypes.replace("</Types>", added + "</Types>"));
+        endEntry();
+    }
+
+    private void writeCoreProperties(MarkdownDocument document) throws IOException
+    {
+        String now = ZonedDateTime.now(ZoneOffset.UTC).format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss'Z'"));
+        String title = (document.title != null) ? document.title : document.name;
+
+        startEntry(DocxTemplate.CORE_PROPERTIES);
+        out.append("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n")
+                .append("<cp:coreProperties xmlns:cp=\"http://schemas.openxmlformats.org/package/2006/metadata/core-properties\" ")
+                .append("xmlns:dc=\"http://purl.org/dc/elements/1.1/\" xmlns:dcterms=\"http://purl.org/dc/terms/\" ")
+                .append("xmlns:dcmitype=\"http://purl.org/dc/dcmitype/\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">")
+                .append("<dc:title>");
+        StringUtils.writeXmlEscaped(out, title);
+        out.append("</dc:title>");
+        if (document.author != null) {
+            out.append("<dc:creator>");
+            StringUtils.writeXmlEscaped(out, document.author);
+            out.append("</dc:creator>");
+        }
+        out.append("<dc:language>bo</dc:language>")
+                .append("<dcterms:created xsi:type=\"dcterms:W3CDTF\">").append(now).append("</dcterms:created>")
+                .append("<dcterms:modified xsi:type=\"dcterms:W3CDTF\">").append(now).append("</dcterms:modified>")
+                .append("</cp:coreProperties>");
+        endEntry();
+    }
+
+    /**
+     * Image paths in terms.md are relative to the directory that holds document_files.
+     */
+    private File getImageFile(String imagePath)
+    {
+        File imageFile = new File(imagePath);
+        if (!imageFile.isAbsolute()) {
+            imageFile = new File(new File(documentFilesDir).getAbsoluteFile().getParentFile(), imagePath);
+        }
+
+        return imageFile;
+    }
+
+    private void writeImages() throws IOException
+    {
+        for (Map.Entry<String, String> image: images.entrySet()) {
+            zip.putNextEntry(new ZipEntry("word/" + getImagePartName(image.getKey(), image.getValue())));
+            Files.copy(getImageFile(image.getKey()).toPath(), zip);
+            zip.closeEntry();
+        }
+    }
+
+    private void startEntry(String name) throws IOException
+    {
+        out.flush();
+        zip.putNextEntry(new ZipEntry(name));
+    }
+
+    private void endEntry() throws IOException
+    {
+        out.flush();
+        zip.closeEntry();
+    }
+}
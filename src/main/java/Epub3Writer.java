@@ -0,0 +1,605 @@
+import nl.siegmann.epublib.domain.MediaType;
+import nl.siegmann.epublib.service.MediatypeService;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+class EpubTocEntry {
+    int level;
+    String title;
+    String href;
+
+    EpubTocEntry(int level, String title, String href)
+    {
+        this.level = level;
+        this.title = title;
+        this.href = href;
+    }
+}
+
+class EpubManifestItem {
+    String id;
+    String href;
+    String mediaType;
+    String properties;
+
+    EpubManifestItem(String id, String href, String mediaType, String properties)
+    {
+        this.id = id;
+        this.href = href;
+        this.mediaType = mediaType;
+        this.properties = properties;
+    }
+}
+
+/**
+ * Writes an EPUB 3 straight from the section tree of a volume, without going
+ * through pandoc.
+ *
+ * The layout follows what pandoc writes for the same options: a chapter file
+ * for every heading up to level 3 (--epub-chapter-level=3), a table of
+ * contents of the level 1 and 2 headings (--toc-depth=2), and the
+ * stylesheet, font and cover embedded. Chapters are written to the zip as the
+ * sections are walked, so the volume is never held in memory as XHTML.
+ *
+ * epublib's own writer only writes an EPUB 2 package and needs every
+ * resource as a byte array, so only its media types are used here.
+ */
+class Epub3Writer extends VolumeWriter {
+
+    private static final int CHAPTER_LEVEL = 3;
+    private static final int TOC_DEPTH = 2;
+    private static final String LANGUAGE = "bo";
+    private static final String STYLESHEET_HREF = "stylesheet.css";
+    private static final String COVER_HREF = "cover.xhtml";
+    private static final String COVER_IMAGE_HREF = "cover-image.png";
+    private static final String NAV_HREF = "nav.xhtml";
+    private static final String NCX_HREF = "toc.ncx";
+    private static final String FONTS_DIR = "fonts/";
+    private static final String MEDIA_DIR = "media/";
+
+    private final String documentFilesDir;
+    private final String fontFilename;
+    private final String fontName;
+    private final Terms terms;
+
+    private ZipOutputStream zip;
+    private Writer out;
+    private String name;
+    private String title;
+    private List<EpubManifestItem> manifest;
+    private List<String> spine;
+    private List<EpubTocEntry> toc;
+    private Map<String, String> images;
+    private Deque<Integer> openSections;
+    private String chapterHref;
+    private int chapterCount;
+    private int sectionCount;
+
+    Epub3Writer(String documentFilesDir, String fontFilename, String fontName, Terms terms)
+    {
+        this.documentFilesDir = StringUtils.ensureTrailingSlash(documentFilesDir);
+        this.fontFilename = fontFilename;
+        this.fontName = fontName;
+        this.terms = terms;
+    }
+
+    /**
+     * @param coverPath Cover image to embed, or null for none.
+     * @return Whether the epub was written.
+     */
+    public boolean write(MarkdownDocument document, String coverPath, String epubPath)
+    {
+        name = document.name;
+        title = (document.title != null) ? document.title : document.name;
+        manifest = new ArrayList<>();
+        spine = new ArrayList<>();
+        toc = new ArrayList<>();
+        images = new LinkedHashMap<>();
+        openSections = new ArrayDeque<>();
+        chapterHref = null;
+        chapterCount = 0;
+        sectionCount = 0;
+
+        File epubFile = new File(epubPath);
+        try (ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(epubFile)))) {
+            this.zip = zip;
+            this.out = new BufferedWriter(new OutputStreamWriter(new FilterOutputStream(zip) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException
+                {
+                    zip.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException
+                {
+                    // The zip stream is closed by its owner
+                }
+            }, StandardCharsets.UTF_8));
+
+            writeMimetype();
+            writeContainer();
+            if (coverPath != null && new File(coverPath).exists()) {
+                writeCover(coverPath);
+            }
+
+            writeVolume(document.volumeContent, terms);
+            endChapter();
+
+            writeNav();
+            writeNcx();
+            writeStylesheet();
+            copyFile(documentFilesDir + fontFilename, FONTS_DIR + fontFilename, "font", null);
+            writeImages();
+            writePackage(document);
+        } catch (BudgetExceededException e) {
+            epubFile.delete();
+            throw e;
+        } catch (Exception e) {
+            System.out.println("Failed to write epub " + epubPath);
+            System.out.println(e);
+            epubFile.delete();
+            return false;
+        } finally {
+            zip = null;
+            out = null;
+        }
+
+        return true;
+    }
+
+    @Override
+    protected void writeHeading(int level, String text, String cssClass) throws IOException
+    {
+        if (level <= CHAPTER_LEVEL || chapterHref == null) {
+            endChapter();
+            startChapter();
+        } else {
+            closeSections(level);
+        }
+
+        String id = "section-" + (++sectionCount);
+        int headingLevel = Math.min(level, 6);
+        String sectionClass = "level" + level + ((cssClass != null) ? " " + cssClass : "");
+        out.append("<section id=\"").append(id).append("\" class=\"");
+        StringUtils.writeXmlEscaped(out, sectionClass);
+        out.append("\">\n<h").append(String.valueOf(headingLevel)).append(">");
+        StringUtils.writeXmlEscaped(out, text);
+        out.append("</h").append(String.valueOf(headingLevel)).append(">\n");
+        openSections.push(level);
+
+        if (level <= TOC_DEPTH && !text.isEmpty()) {
+            toc.add(new EpubTocEntry(level, text, chapterHref + "#" + id));
+        }
+    }
+
+    @Override
+    protected void writeAuthor(String author) throws IOException
+    {
+        ensureChapter();
+        out.append("<p><span class=\"author\">");
+        StringUtils.writeXmlEscaped(out, author);
+        out.append("</span></p>\n");
+    }
+
+    @Override
+    protected void writeParagraph(CharSequence text, int start, int end) throws IOException
+    {
+        ensureChapter();
+        out.append("<p>");
+        StringUtils.writeXmlEscaped(out, text, start, end);
+        out.append("</p>\n");
+    }
+
+    @Override
+    protected void writeTerms(Terms terms) throws IOException
+    {
+        for (TermsBlock block: terms.blocks) {
+            switch (block.type) {
+                case HEADING:
+                    writeHeading(block.level, Terms.getPlainText(block.inlines), block.cssClass);
+                    break;
+                case DIV_START:
+                    ensureChapter();
+                    out.append("<div");
+                    writeClassAttribute(block.cssClass);
+                    out.append(">\n");
+                    break;
+                case DIV_END:
+                    out.append("</div>\n");
+                    break;
+                case PARAGRAPH:
+                    ensureChapter();
+                    out.append("<p>");
+                    writeInlines(block.inlines);
+                    out.append("</p>\n");
+                    break;
+            }
+        }
+    }
+
+    private void writeInlines(List<TermsInline> inlines) throws IOException
+    {
+        for (TermsInline inline: inlines) {
+            switch (inline.type) {
+                case TEXT:
+                    StringUtils.writeXmlEscaped(out, inline.text);
+                    break;
+                case LINK:
+                    out.append("<a href=\"");
+                    StringUtils.writeXmlEscaped(out, inline.target);
+                    out.append("\">");
+                    StringUtils.writeXmlEscaped(out, inline.text);
+                    out.append("</a>");
+                    break;
+                case IMAGE:
+                    out.append("<img src=\"");
+                    StringUtils.writeXmlEscaped(out, getImageHref(inline.target));
+                    out.append("\" alt=\"");
+                    StringUtils.writeXmlEscaped(out, inline.text);
+                    out.append("\"");
+                    writeClassAttribute(inline.cssClass);
+                    if (inline.width > 0) {
+                        out.append(" width=\"").append(String.valueOf(inline.width)).append("\"");
+                    }
+                    if (inline.height > 0) {
+                        out.append(" height=\"").append(String.valueOf(inline.height)).append("\"");
+                    }
+                    out.append(" />");
+                    break;
+            }
+        }
+    }
+
+    private void writeClassAttribute(String cssClass) throws IOException
+    {
+        if (cssClass != null) {
+            out.append(" class=\"");
+            StringUtils.writeXmlEscaped(out, cssClass);
+            out.append("\"");
+        }
+    }
+
+    /**
+     * Image paths in terms.md are relative to the directory that holds document_files.
+     */
+    private String getImageHref(String imagePath)
+    {
+        String href = images.get(imagePath);
+        if (href == null) {
+            String extension = imagePath.substring(imagePath.lastIndexOf('.') + 1);
+            href = MEDIA_DIR + "file" + images.size() + "." + extension;
+            images.put(imagePath, href);
+        }
+
+        return href;
+    }
+
+    private void ensureChapter() throws IOException
+    {
+        if (chapterHref == null) {
+            startChapter();
+        }
+    }
+
+    private void startChapter() throws IOException
+    {
+        chapterCount++;
+        chapterHref = String.format("ch%03d.xhtml", chapterCount);
+        String id = String.format("ch%03d", chapterCount);
+        manifest.add(new EpubManifestItem(id, chapterHref, MediatypeService.XHTML.getName(), null));
+        spine.add(id);
+
+        startEntry(chapterHref);
+        writeXhtmlStart(title, null);
+    }
+
+    private void endChapter() throws IOException
+    {
+        if (chapterHref == null) {
+            return;
+        }
+
+        closeSections(Integer.MIN_VALUE);
+        out.append("</body>\n</html>\n");
+        endEntry();
+        chapterHref = null;
+    }
+
+    /**
+     * Closes the open sections that a heading at the given level ends.
+     */
+    private void closeSections(int level) throws IOException
+    {
+        while (!openSections.isEmpty() && openSections.peek() >= level) {
+            openSections.pop();
+            out.append("</section>\n");
+        }
+    }
+
+    private void writeXhtmlStart(String title, String bodyId) throws IOException
+    {
+        out.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+                .append("<!DOCTYPE html>\n")
+                .append("<html xmlns=\"http://www.w3.org/1999/xhtml\" xmlns:epub=\"http://www.idpf.org/2007/ops\" xml:lang=\"")
+                .append(LANGUAGE).append("\" lang=\"").append(LANGUAGE).append("\">\n")
+                .append("<head>\n<meta charset=\"UTF-8\" />\n<title>");
+        StringUtils.writeXmlEscaped(out, title);
+        out.append("</title>\n<link rel=\"stylesheet\" type=\"text/css\" href=\"")
+                .append(STYLESHEET_HREF).append("\" />\n</head>\n<body");
+        if (bodyId != null) {
+            out.append(" id=\"").append(bodyId).append("\"");
+        }
+        out.append(">\n");
+    }
+
+    private void writeMimetype() throws IOException
+    {
+        byte[] mimetype = MediatypeService.EPUB.getName().getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(mimetype);
+
+        ZipEntry entry = new ZipEntry("mimetype");
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(mimetype.length);
+        entry.setCompressedSize(mimetype.length);
+        entry.setCrc(crc.getValue());
+        zip.putNextEntry(entry);
+        zip.write(mimetype);
+        zip.closeEntry();
+    }
+
+    private void writeContainer() throws IOException
+    {
+        startEntry("META-INF/container.xml");
+        out.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+                .append("<container version=\"1.0\" xmlns=\"urn:oasis:names:tc:opendocument:xmlns:container\">\n")
+                .append("  <rootfiles>\n")
+                .append("    <rootfile full-path=\"content.opf\" media-type=\"application/oebps-package+xml\" />\n")
+                .append("  </rootfiles>\n")
+                .append("</container>\n");
+        endEntry();
+    }
+
+    private void writeCover(String coverPath) throws IOException
+    {
+        copyFile(coverPath, COVER_IMAGE_HREF, "cover-image", "cover-image");
+
+        manifest.add(new EpubManifestItem("cover_xhtml", COVER_HREF, MediatypeService.XHTML.getName(), null));
+        spine.add("cover_xhtml");
+        startEntry(COVER_HREF);
+        writeXhtmlStart(title, "cover");
+        out.append("<div id=\"cover-image\">\n<img src=\"").append(COVER_IMAGE_HREF).append("\" alt=\"cover image\" />\n</div>\n")
+                .append("</body>\n</html>\n");
+        endEntry();
+    }
+
+    private void writeStylesheet() throws IOException
+    {
+        String css = StringUtils.getFileText(DocumentGenerator.getEpubCssFilepath(documentFilesDir));
+        if (css == null) {
+            css = "";
+        }
+        css = css.replace("{{$fontFile}}", FONTS_DIR + fontFilename)
+                .replace("{{$fontName}}", fontName);
+
+        manifest.add(new EpubManifestItem("stylesheet", STYLESHEET_HREF, MediatypeService.CSS.getName(), null));
+        startEntry(STYLESHEET_HREF);
+        out.append(css);
+        endEntry();
+    }
+
+    private void writeImages() throws IOException
+    {
+        File baseDir = new File(documentFilesDir).getAbsoluteFile().getParentFile();
+        int imageCount = 0;
+        for (Map.Entry<String, String> image: images.entrySet()) {
+            File imageFile = new File(image.getKey());
+            if (!imageFile.isAbsolute()) {
+                imageFile = new File(baseDir, image.getKey());
+            }
+            copyFile(imageFile.getPath(), image.getValue(), "image" + (++imageCount), null);
+        }
+    }
+
+    private void writeNav() throws IOException
+    {
+        manifest.add(new EpubManifestItem("nav", NAV_HREF, MediatypeService.XHTML.getName(), "nav"));
+        spine.add(spine.isEmpty() || !spine.get(0).equals("cover_xhtml") ? 0 : 1, "nav");
+
+        startEntry(NAV_HREF);
+        writeXhtmlStart(title, null);
+        out.append("<nav epub:type=\"toc\" id=\"toc\">\n<h1 id=\"toc-title\">");
+        StringUtils.writeXmlEscaped(out, title);
+        out.append("</h1>\n");
+        writeNavList(0, toc.size());
+        out.append("</nav>\n")
+                .append("<nav epub:type=\"landmarks\" hidden=\"hidden\">\n<ol>\n");
+        if (hasManifestItem("cover_xhtml")) {
+            out.append("<li><a href=\"").append(COVER_HREF).append("\" epub:type=\"cover\">Cover</a></li>\n");
+        }
+        out.append("<li><a href=\"").append(NAV_HREF).append("#toc\" epub:type=\"toc\">Table of contents</a></li>\n")
+                .append("</ol>\n</nav>\n")
+                .append("</body>\n</html>\n");
+        endEntry();
+    }
+
+    /**
+     * Writes the entries from start to end as a nested list, where each
+     * entry holds the following entries with a higher level.
+     */
+    private void writeNavList(int start, int end) throws IOException
+    {
+        if (start >= end) {
+            return;
+        }
+
+        out.append("<ol class=\"toc\">\n");
+        int i = start;
+        while (i < end) {
+            EpubTocEntry entry = toc.get(i);
+            int childEnd = getChildEnd(i, end);
+            out.append("<li><a href=\"").append(entry.href).append("\">");
+            StringUtils.writeXmlEscaped(out, entry.title);
+            out.append("</a>\n");
+            writeNavList(i + 1, childEnd);
+            out.append("</li>\n");
+            i = childEnd;
+        }
+        out.append("</ol>\n");
+    }
+
+    private void writeNcx() throws IOException
+    {
+        manifest.add(new EpubManifestItem("ncx", NCX_HREF, MediatypeService.NCX.getName(), null));
+
+        startEntry(NCX_HREF);
+        out.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+                .append("<ncx version=\"2005-1\" xmlns=\"http://www.daisy.org/z3986/2005/ncx/\">\n")
+                .append("<head>\n<meta name=\"dtb:uid\" content=\"").append(getIdentifier()).append("\" />\n")
+                .append("<meta name=\"dtb:depth\" content=\"").append(String.valueOf(TOC_DEPTH)).append("\" />\n")
+                .append("<meta name=\"dtb:totalPageCount\" content=\"0\" />\n")
+                .append("<meta name=\"dtb:maxPageNumber\" content=\"0\" />\n")
+                .append("</head>\n<docTitle>\n<text>");
+        StringUtils.writeXmlEscaped(out, title);
+        out.append("</text>\n</docTitle>\n<navMap>\n");
+        writeNavPoints(0, toc.size(), new int[] {0});
+        out.append("</navMap>\n</ncx>\n");
+        endEntry();
+    }
+
+    private void writeNavPoints(int start, int end, int[] playOrder) throws IOException
+    {
+        int i = start;
+        while (i < end) {
+            EpubTocEntry entry = toc.get(i);
+            int childEnd = getChildEnd(i, end);
+            playOrder[0]++;
+            out.append("<navPoint id=\"navPoint-").append(String.valueOf(playOrder[0]))
+                    .append("\" playOrder=\"").append(String.valueOf(playOrder[0])).append("\">\n")
+                    .append("<navLabel>\n<text>");
+            StringUtils.writeXmlEscaped(out, entry.title);
+            out.append("</text>\n</navLabel>\n<content src=\"").append(entry.href).append("\" />\n");
+            writeNavPoints(i + 1, childEnd, playOrder);
+            out.append("</navPoint>\n");
+            i = childEnd;
+        }
+    }
+
+    private int getChildEnd(int entryIndex, int end)
+    {
+        int level = toc.get(entryIndex).level;
+        int childEnd = entryIndex + 1;
+        while (childEnd < end && toc.get(childEnd).level > level) {
+            childEnd++;
+        }
+
+        return childEnd;
+    }
+
+    private void writePackage(MarkdownDocument document) throws IOException
+    {
+        String modified = ZonedDateTime.now(ZoneOffset.UTC).format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss'Z'"));
+
+        startEntry("content.opf");
+        out.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+                .append("<package version=\"3.0\" xmlns=\"http://www.idpf.org/2007/opf\" unique-identifier=\"epub-id-1\">\n")
+                .append("<metadata xmlns:dc=\"http://purl.org/dc/elements/1.1/\" xmlns:opf=\"http://www.idpf.org/2007/opf\">\n")
+                .append("<dc:identifier id=\"epub-id-1\">").append(getIdentifier()).append("</dc:identifier>\n")
+                .append("<dc:title id=\"epub-title-1\">");
+        StringUtils.writeXmlEscaped(out, title);
+        out.append("</dc:title>\n");
+        if (document.author != null) {
+            out.append("<dc:creator id=\"epub-creator-1\">");
+            StringUtils.writeXmlEscaped(out, document.author);
+            out.append("</dc:creator>\n");
+        }
+        if (document.inputter != null) {
+            out.append("<dc:contributor id=\"epub-contributor-1\">");
+            StringUtils.writeXmlEscaped(out, document.inputter);
+            out.append("</dc:contributor>\n");
+        }
+        out.append("<dc:language>").append(LANGUAGE).append("</dc:language>\n")
+                .append("<meta property=\"dcterms:modified\">").append(modified).append("</meta>\n");
+        if (hasManifestItem("cover-image")) {
+            out.append("<meta name=\"cover\" content=\"cover-image\" />\n");
+        }
+        out.append("</metadata>\n<manifest>\n");
+        for (EpubManifestItem item: manifest) {
+            out.append("<item id=\"").append(item.id).append("\" href=\"");
+            StringUtils.writeXmlEscaped(out, item.href);
+            out.append("\" media-type=\"").append(item.mediaType).append("\"");
+            if (item.properties != null) {
+                out.append(" properties=\"").append(item.properties).append("\"");
+            }
+            out.append(" />\n");
+        }
+        out.append("</manifest>\n<spine toc=\"ncx\">\n");
+        for (String id: spine) {
+            out.append("<itemref idref=\"").append(id).append("\" />\n");
+        }
+        out.append("</spine>\n</package>\n");
+        endEntry();
+    }
+
+    private boolean hasManifestItem(String id)
+    {
+        for (EpubManifestItem item: manifest) {
+            if (item.id.equals(id)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * The same document always gets the same identifier, so regenerated
+     * epubs replace the old ones in readers' libraries. It comes from the
+     * document name, which holds the item and volume, as the volumes of an
+     * item share its title.
+     */
+    private String getIdentifier()
+    {
+        return "urn:uuid:" + UUID.nameUUIDFromBytes(name.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void copyFile(String sourcePath, String href, String id, String properties) throws IOException
+    {
+        File sourceFile = new File(sourcePath);
+        if (!sourceFile.exists()) {
+            System.out.println("Missing epub file " + sourcePath);
+            return;
+        }
+
+        MediaType mediaType = MediatypeService.determineMediaType(href);
+        String mediaTypeName = (mediaType != null) ? mediaType.getName() : "application/octet-stream";
+        manifest.add(new EpubManifestItem(id, href, mediaTypeName, properties));
+
+        out.flush();
+        zip.putNextEntry(new ZipEntry(href));
+        Files.copy(sourceFile.toPath(), zip);
+        zip.closeEntry();
+    }
+
+    private void startEntry(String name) throws IOException
+    {
+        out.flush();
+        zip.putNextEntry(new ZipEntry(name));
+    }
+
+    private void endEntry() throws IOException
+    {
+        out.flush();
+        zip.closeEntry();
+    }
+}
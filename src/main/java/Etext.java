@@ -1,16 +1,125 @@
-import nl.siegmann.epublib.domain.*;
-import nl.siegmann.epublib.service.MediatypeService;
-import org.apache.jena.ontology.OntModel;
-
 import java.util.*;
 
 
 class EtextPage {
-    int page;
-    int startChar;
-    int startLine;
-    int endChar;
-    int endLine;
+    private static final String[] PROPERTIES = {
+            BDRCResource.CORE + "seqNum",
+            BDRCResource.CORE + "sliceStartChar",
+            BDRCResource.CORE + "sliceStartChunk",
+            BDRCResource.CORE + "sliceEndChar",
+            BDRCResource.CORE + "sliceEndChunk"
+    };
+
+    final int page;
+    final int startChar;
+    final int startLine;
+    final int endChar;
+    final int endLine;
+
+    EtextPage(int page, int startChar, int startLine, int endChar, int endLine)
+    {
+        this.page = page;
+        this.startChar = startChar;
+        this.startLine = startLine;
+        this.endChar = endChar;
+        this.endLine = endLine;
+    }
+
+    /**
+     * Reads the page in one pass over its properties.
+     *
+     * @throws IllegalArgumentException If a value is missing or isn't an integer.
+     */
+    static EtextPage fromResource(RDFResource page)
+    {
+        String[] values = new String[PROPERTIES.length];
+        page.forEachProperty((IRI, property) -> {
+            for (int i = 0; i < PROPERTIES.length; i++) {
+                if (PROPERTIES[i].equals(IRI)) {
+                    if (values[i] == null && property.isLiteral()) {
+                        values[i] = property.asLiteral().getString();
+                    }
+                    return;
+                }
+            }
+        });
+
+        int[] numbers = new int[PROPERTIES.length];
+        for (int i = 0; i < PROPERTIES.length; i++) {
+            if (values[i] == null) {
+                throw new IllegalArgumentException("Missing " + PROPERTIES[i]);
+            }
+            numbers[i] = Integer.parseInt(values[i]);
+        }
+
+        return new EtextPage(numbers[0], numbers[1], numbers[2], numbers[3], numbers[4]);
+    }
+}
+
+/**
+ * Page start positions of an etext, sorted by line and then character so
+ * the text can be walked with a single cursor.
+ * Lines and characters are 1-indexed, and characters count code points.
+ */
+class EtextPageIndex {
+    final int[] lines;
+    final int[] chars;
+    final int[] pages;
+    final int size;
+
+    EtextPageIndex(List<EtextPage> etextPages)
+    {
+        List<EtextPage> sortedPages = new ArrayList<>(etextPages);
+        // Sorting is stable, so of several pages starting at the same place
+        // the last in page order is kept.
+        sortedPages.sort((leftPage, rightPage) -> {
+            int compare = Integer.compare(leftPage.startLine, rightPage.startLine);
+            return (compare != 0) ? compare : Integer.compare(leftPage.startChar, rightPage.startChar);
+        });
+
+        lines = new int[sortedPages.size()];
+        chars = new int[sortedPages.size()];
+        pages = new int[sortedPages.size()];
+        int count = 0;
+        for (EtextPage page: sortedPages) {
+            if (count > 0 && lines[count - 1] == page.startLine && chars[count - 1] == page.startChar) {
+                count--;
+            }
+            lines[count] = page.startLine;
+            chars[count] = page.startChar;
+            pages[count] = page.page;
+            count++;
+        }
+        size = count;
+    }
+
+    /**
+     * @return The first boundary at or after from that isn't on a line before the given line.
+     */
+    int skipToLine(int from, int line)
+    {
+        int boundary = from;
+        while (boundary < size && lines[boundary] < line) {
+            boundary++;
+        }
+
+        return boundary;
+    }
+
+    /**
+     * @return The char offset in the line of the 1-indexed code point, or -1
+     * if the line is shorter than that.
+     */
+    static int offsetOfChar(String line, int fromOffset, int fromChar, int targetChar)
+    {
+        int offset = fromOffset;
+        int length = line.length();
+        for (int charNumber = fromChar; charNumber < targetChar && offset < length; charNumber++) {
+            offset += Character.charCount(line.codePointAt(offset));
+        }
+
+        return (offset < length) ? offset : -1;
+    }
 }
 
 public class Etext extends BDRCResource {
@@ -18,7 +127,10 @@ public class Etext extends BDRCResource {
     private RDFResource etext;
     private RDFResource item;
     private static int maxSectionSize = 10000;
+    private final List<RDFResource> pageResources;
     private List<EtextPage> pages;
+    private EtextPageIndex pageIndex;
+    private EtextPageContent pageContent;
 
     public Etext(String IRI, DataSource dataSource)
     {
@@ -32,6 +144,16 @@ public class Etext extends BDRCResource {
         this.resource = this.etext;
         this.item = item;
         this.pages = null;
+
+        List<RDFResource> pageResources = new ArrayList<>();
+        if (etext != null) {
+            etext.forEachProperty((propertyIRI, property) -> {
+                if (propertyIRI.equals(CORE + "eTextHasPage") && !property.isLiteral()) {
+                    pageResources.add(property.asResource());
+                }
+            });
+        }
+        this.pageResources = pageResources;
     }
 
     public String generateMarkdown() {
@@ -45,12 +167,7 @@ public class Etext extends BDRCResource {
         }
 
         String title = getTitle();
-        RDFResource author = null;
-        author = getMainAuthor();
-        String name = null;
-        if (author != null) {
-            name = getPrimaryName(author, PREFERRED_LANGUAGE);
-        }
+        String name = getAuthor();
 
         StringBuilder sb = new StringBuilder();
         sb.append("# ").append(title).append("\n\n");
@@ -64,9 +181,9 @@ public class Etext extends BDRCResource {
         }
 
         List<String> contentLines = getContentLines();
-        List<EtextPage> pages = getPages();
-        if (pages != null && pages.size() > 0) {
-            contentLines = getContentLinesWithPages(contentLines, pages);
+        EtextPageIndex pageIndex = getPageIndex();
+        if (pageIndex != null && pageIndex.size > 0) {
+            contentLines = getContentLinesWithPages(contentLines, pageIndex);
         }
 
         if (limitSectionSize) {
@@ -120,64 +237,110 @@ public class Etext extends BDRCResource {
 
     // TODO: use page-break attribute?
     // See: http://sketchytech.blogspot.co.nz/2017/01/when-is-page-break-not-page-break-epub.html
-    private List<String> getContentLinesWithPages(List<String>contentLines, List<EtextPage> pages)
+    List<String> getContentLinesWithPages(List<String>contentLines, EtextPageIndex pageIndex)
     {
-        List<String> contentPagedLines = new ArrayList<>();
-        HashMap<String, EtextPage> pageData = getPageData(pages);
+        List<String> contentPagedLines = new ArrayList<>(contentLines.size());
         int currentLine = 0;
+        int boundary = 0;
         for (String line: contentLines) {
-            StringBuilder lineSb = new StringBuilder();
             currentLine++;
-            int currentChar = 0;
-            for (int c: line.codePoints().toArray()) {
-                currentChar++;
-                String key = String.valueOf(currentLine + "_" + currentChar);
-                if (pageData.containsKey(key)) {
-                    EtextPage page = pageData.get(key);
-                    lineSb.append(" [\\[").append(page.page).append("\\]]{.origPageNum} ");
-                }
-                lineSb.appendCodePoint(c);
+            boundary = pageIndex.skipToLine(boundary, currentLine);
+            if (boundary == pageIndex.size || pageIndex.lines[boundary] != currentLine) {
+                contentPagedLines.add(line);
+                continue;
             }
+
+            StringBuilder lineSb = new StringBuilder(line.length() + 32);
+            int offset = 0;
+            int currentChar = 1;
+            for (; boundary < pageIndex.size && pageIndex.lines[boundary] == currentLine; boundary++) {
+                int pageChar = pageIndex.chars[boundary];
+                if (pageChar < currentChar) continue;
+
+                int pageOffset = EtextPageIndex.offsetOfChar(line, offset, currentChar, pageChar);
+                if (pageOffset == -1) break;
+
+                lineSb.append(line, offset, pageOffset)
+                        .append(" [\\[").append(pageIndex.pages[boundary]).append("\\]]{.origPageNum} ");
+                offset = pageOffset;
+                currentChar = pageChar;
+            }
+            lineSb.append(line, offset, line.length());
             contentPagedLines.add(lineSb.toString());
         }
 
         return contentPagedLines;
     }
 
-    public Map<Integer, String> getPageContent()
+    /**
+     * The page content is built on first use and shared by every section of the volume.
+     *
+     * @return The text split into pages, or null if the etext has no page data.
+     */
+    public EtextPageContent getPageContent()
     {
-        List<EtextPage> pages = getPages();
-        if (pages == null) return null;
+        if (pageContent == null) {
+            pageContent = buildPageContent();
+        }
 
-        HashMap<String, EtextPage> pageData = getPageData(pages);
+        return pageContent;
+    }
 
-        HashMap<Integer, String> pageContent = new HashMap<>();
-        List<String> contentLines = getContentLines();
+    /**
+     * Drops the cached page content once the volume has been written.
+     */
+    public void releaseContent()
+    {
+        pageContent = null;
+    }
+
+    private EtextPageContent buildPageContent()
+    {
+        EtextPageIndex pageIndex = getPageIndex();
+        if (pageIndex == null) return null;
+
+        TextContent content = getContent();
+        if (content == null) return null;
+
+        // Each line is decoded once, straight into the text the page content wraps
+        char[] text = new char[content.estimateCharCount()];
+        int textLength = 0;
+        int[] pageNumbers = new int[pageIndex.size + 1];
+        int[] pageStarts = new int[pageIndex.size + 1];
+        int pageCount = 1;
         // Note: lines and chars are 1-indexed
         int currentLine = 0;
-        int currentPage = 0;
-        StringBuilder currentPageData = new StringBuilder();
-        for (String line: contentLines) {
+        int boundary = 0;
+        for (int lineIndex = 0; lineIndex < content.getLineCount(); lineIndex++) {
+            String line = content.getLine(lineIndex);
             currentLine++;
-            int currentChar = 0;
-            for (int c: line.codePoints().toArray()) {
-                currentChar++;
-                String key = String.valueOf(currentLine + "_" + currentChar);
-                if (pageData.containsKey(key)) {
-                    EtextPage page = pageData.get(key);
-
-                    pageContent.put(currentPage, currentPageData.toString());
-
-                    currentPageData = new StringBuilder();
-                    currentPage = page.page;
-                }
-                currentPageData.appendCodePoint(c);
+            boundary = pageIndex.skipToLine(boundary, currentLine);
+            int offset = 0;
+            int currentChar = 1;
+            for (; boundary < pageIndex.size && pageIndex.lines[boundary] == currentLine; boundary++) {
+                int pageChar = pageIndex.chars[boundary];
+                if (pageChar < currentChar) continue;
+
+                int pageOffset = EtextPageIndex.offsetOfChar(line, offset, currentChar, pageChar);
+                if (pageOffset == -1) break;
+
+                pageNumbers[pageCount] = pageIndex.pages[boundary];
+                pageStarts[pageCount] = textLength + pageOffset;
+                pageCount++;
+                offset = pageOffset;
+                currentChar = pageChar;
             }
 
-            currentPageData.append("\n");
+            if (textLength + line.length() + 1 > text.length) {
+                // Only when malformed UTF-8 decoded to more than the estimate
+                text = Arrays.copyOf(text, Math.max(text.length * 2, textLength + line.length() + 1));
+            }
+            line.getChars(0, line.length(), text, textLength);
+            textLength += line.length();
+            text[textLength++] = '\n';
         }
 
-        return pageContent;
+        return new EtextPageContent(text, textLength, pageNumbers, pageStarts, pageCount);
     }
 
     private RDFResource getItem()
@@ -221,23 +384,15 @@ public class Etext extends BDRCResource {
     protected List<EtextPage> getPages()
     {
         if (this.pages == null) {
-            List<RDFResource> pages = etext.getPropertyResources(CORE + "eTextHasPage");
-            List<EtextPage> etextPages = new ArrayList<>();
+            List<EtextPage> etextPages = new ArrayList<>(pageResources.size());
 
-            for (RDFResource page : pages) {
-                EtextPage etextPage = new EtextPage();
+            for (RDFResource page : pageResources) {
                 try {
-                    etextPage.page = page.getInteger(CORE + "seqNum");
-                    etextPage.startChar = page.getInteger(CORE + "sliceStartChar");
-                    etextPage.startLine = page.getInteger(CORE + "sliceStartChunk");
-                    etextPage.endChar = page.getInteger(CORE + "sliceEndChar");
-                    etextPage.endLine = page.getInteger(CORE + "sliceEndChunk");
-                    etextPages.add(etextPage);
+                    etextPages.add(EtextPage.fromResource(page));
                 } catch (Exception e) {
                     System.out.println("Exception getting page for " + etext.getIRI());
                     return null;
                 }
-
             }
 
             etextPages.sort((leftPage, rightPage) -> {
@@ -250,15 +405,16 @@ public class Etext extends BDRCResource {
         return this.pages;
     }
 
-    private HashMap<String, EtextPage> getPageData(List<EtextPage> pages)
+    EtextPageIndex getPageIndex()
     {
-        HashMap<String, EtextPage> data = new HashMap<>();
-        for (EtextPage page: pages) {
-            String key = String.valueOf(page.startLine) + "_" + String.valueOf(page.startChar);
-            data.put(key, page);
+        if (pageIndex == null) {
+            List<EtextPage> pages = getPages();
+            if (pages != null) {
+                pageIndex = new EtextPageIndex(pages);
+            }
         }
 
-        return data;
+        return pageIndex;
     }
 
     private List<HashMap<String, List<String>>> getMetadata()
@@ -278,8 +434,8 @@ public class Etext extends BDRCResource {
                     continue;
                 }
 
-                OntModel ontModel = etext.getOntModel();
-                String label = RDFUtil.getOntologyLabel(ontModel, propIRI);
+                Ontology ontology = etext.getOntology();
+                String label = RDFUtil.getOntologyLabel(ontology, propIRI);
                 List<String> propItems = new ArrayList<>();
                 for (RDFProperty prop: props) {
                     if (prop.isLiteral()) {
@@ -310,13 +466,17 @@ public class Etext extends BDRCResource {
     }
 
 
-    private String getContent()
+    protected TextContent getContent()
     {
         return dataSource.loadTextContent(IRI);
     }
 
+    /**
+     * @return The lines of the text, each decoded when it is read, or null if the text can't be read.
+     */
     protected List<String> getContentLines()
     {
-        return dataSource.loadTextContentLines(IRI);
+        TextContent content = getContent();
+        return (content != null) ? content.getLines() : null;
     }
 }
@@ -0,0 +1,207 @@
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+/**
+ * A contiguous run of a volume's text, from the start of firstPage to the
+ * end of lastPage.
+ */
+class TextRange {
+    final int start;
+    final int end;
+    final int firstPage;
+    final int lastPage;
+    // Pages between firstPage and lastPage that aren't in the text
+    final int missingPages;
+
+    TextRange(int start, int end, int firstPage, int lastPage, int missingPages)
+    {
+        this.start = start;
+        this.end = end;
+        this.firstPage = firstPage;
+        this.lastPage = lastPage;
+        this.missingPages = missingPages;
+    }
+
+    boolean isEmpty()
+    {
+        return end <= start;
+    }
+}
+
+/**
+ * The text of a volume split into pages.
+ *
+ * All the text is kept in one backing array with the start offset of every
+ * page, and page ranges are returned as views on it instead of copies.
+ * Pages are stored in text order; the text before the first page start is
+ * page 0.
+ */
+class EtextPageContent {
+
+    private final char[] text;
+    private final int textLength;
+    private final int[] pageNumbers;
+    private final int[] pageStarts;
+    private final int pageCount;
+    // page number in the high 32 bits and page slot in the low bits, sorted
+    private final long[] pageSlots;
+
+    /**
+     * @param text The text, which is wrapped rather than copied, so it must not change.
+     * @param textLength The number of chars of the array that are text.
+     */
+    EtextPageContent(char[] text, int textLength, int[] pageNumbers, int[] pageStarts, int pageCount)
+    {
+        this.text = text;
+        this.textLength = textLength;
+        this.pageNumbers = pageNumbers;
+        this.pageStarts = pageStarts;
+        this.pageCount = pageCount;
+
+        long[] slots = new long[pageCount];
+        for (int i = 0; i < pageCount; i++) {
+            slots[i] = ((long) pageNumbers[i] << 32) | i;
+        }
+        Arrays.sort(slots);
+
+        // If a page number is repeated, the last page with that number is used.
+        int count = 0;
+        for (int i = 0; i < pageCount; i++) {
+            if (count > 0 && pageNumber(slots[count - 1]) == pageNumber(slots[i])) {
+                count--;
+            }
+            slots[count++] = slots[i];
+        }
+        pageSlots = Arrays.copyOf(slots, count);
+    }
+
+    public boolean hasPage(int page)
+    {
+        return getSlot(page) != -1;
+    }
+
+    /**
+     * @return The text from the start of startPage to the end of endPage, or
+     * null if either page is missing. Empty if endPage is before startPage.
+     */
+    public CharSequence getPages(int startPage, int endPage)
+    {
+        int startSlot = getSlot(startPage);
+        int endSlot = getSlot(endPage);
+        if (startSlot == -1 || endSlot == -1) {
+            return null;
+        }
+
+        if (endPage < startPage || endSlot < startSlot) {
+            return "";
+        }
+
+        return CharBuffer.wrap(text, pageStarts[startSlot], getPageEnd(endSlot) - pageStarts[startSlot]);
+    }
+
+    public CharSequence getPage(int page)
+    {
+        return getPages(page, page);
+    }
+
+    /**
+     * Finds the text of a page range, with a binary search on the sorted
+     * page numbers. Pages of the range that are missing from the text at
+     * its start or end are left out, so the range starts at the first page
+     * of it that is in the text and ends at the last. Pages missing in
+     * between are counted, from the number of pages the search found.
+     *
+     * @return The range, empty if the pages are out of order in the text, or
+     * null if none of the pages are in the text.
+     */
+    public TextRange locate(int startPage, int endPage)
+    {
+        if (endPage < startPage) {
+            // Same as getPages: empty when both pages are there
+            int startSlot = getSlot(startPage);
+            if (startSlot == -1 || getSlot(endPage) == -1) {
+                return null;
+            }
+            return new TextRange(pageStarts[startSlot], pageStarts[startSlot], startPage, endPage, 0);
+        }
+
+        int first = firstIndexAtLeast(startPage);
+        int last = firstIndexAtLeast(endPage + 1L) - 1;
+        if (first > last) {
+            return null;
+        }
+
+        int firstSlot = (int) pageSlots[first];
+        int lastSlot = (int) pageSlots[last];
+        int start = pageStarts[firstSlot];
+        int end = (lastSlot < firstSlot) ? start : getPageEnd(lastSlot);
+
+        int firstPage = pageNumber(pageSlots[first]);
+        int lastPage = pageNumber(pageSlots[last]);
+        int missingPages = (int) ((long) lastPage - firstPage + 1 - (last - first + 1));
+
+        return new TextRange(start, end, firstPage, lastPage, missingPages);
+    }
+
+    /**
+     * @return A view on the text of the range.
+     */
+    public CharSequence getText(TextRange range)
+    {
+        return CharBuffer.wrap(text, range.start, range.end - range.start);
+    }
+
+    public int getLength()
+    {
+        return textLength;
+    }
+
+    private int getPageEnd(int slot)
+    {
+        return (slot + 1 < pageCount) ? pageStarts[slot + 1] : textLength;
+    }
+
+    private int getSlot(int page)
+    {
+        int low = 0;
+        int high = pageSlots.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int middlePage = pageNumber(pageSlots[middle]);
+            if (middlePage < page) {
+                low = middle + 1;
+            } else if (middlePage > page) {
+                high = middle - 1;
+            } else {
+                return (int) pageSlots[middle];
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return The index in pageSlots of the first page numbered page or
+     * more, or the number of pages if there is none.
+     */
+    private int firstIndexAtLeast(long page)
+    {
+        int low = 0;
+        int high = pageSlots.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (pageNumber(pageSlots[middle]) < page) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+
+    private static int pageNumber(long pageSlot)
+    {
+        return (int) (pageSlot >> 32);
+    }
+}
@@ -1,35 +1,35 @@
 import java.io.IOException;
-import java.math.BigInteger;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class FileDataSource implements DataSource {
 
     private static String ontologyFileName = "bdrc.owl";
     private String dataPath;
-    private MessageDigest messageDigest;
+    private Ontology ontology;
+    private CorpusIndex corpusIndex;
     private Map<String, String> resourceTypes;
-    private Pattern resourceTypePattern;
 
     /**
      *
      * @param dataPath Directory data is stored - must end with a slash.
      */
     public FileDataSource(String dataPath)
+    {
+        this(dataPath, null);
+    }
+
+    /**
+     * @param dataPath Directory data is stored - must end with a slash.
+     * @param corpusIndex Index files are looked up in first, or null to always work out their path from the id.
+     */
+    public FileDataSource(String dataPath, CorpusIndex corpusIndex)
     {
         this.dataPath = dataPath;
-        try {
-            this.messageDigest = MessageDigest.getInstance("MD5");
-        } catch (Exception e) {
-            System.out.println("Can't get MD5 instance");
-        }
+        this.corpusIndex = corpusIndex;
 
         resourceTypes = new HashMap<>();
         resourceTypes.put("C", "corporations");
@@ -43,46 +43,47 @@ public class FileDataSource implements DataSource {
         resourceTypes.put("T", "topics");
         resourceTypes.put("W", "works");
 
-        resourceTypePattern = Pattern.compile("^([A-Z]{0,2})");
+        ontology = Ontology.forPath(getOntologyPath());
     }
 
     @Override
     public RDFResource loadResource(String IRI)
     {
         String id = RDFUtil.getId(IRI);
-        RDFModel model = new RDFModel(getDataFilePath(id), getOntologyPath());
+        RDFModel model = new RDFModel(getDataFilePath(id), ontology);
         RDFResource resource = model.getResource(IRI);
 
         return resource;
     }
 
     @Override
-    public String loadTextContent(String IRI)
-    {
-        List<String> lines = loadTextContentLines(IRI);
-        if (lines != null) {
-            return String.join("", lines);
-        } else {
-            return "";
-        }
-    }
-
-    @Override
-    public List<String> loadTextContentLines(String IRI)
+    public TextContent loadTextContent(String IRI)
     {
         String id = RDFUtil.getId(IRI);
         String textContentPath = getTextFilePath(id);
-        List<String> textContentLines;
         try {
-            textContentLines = Files.readAllLines(
-                    Paths.get(textContentPath), StandardCharsets.UTF_8
-            );
+            return TextContent.map(textContentPath);
         } catch (IOException e) {
             System.out.println("Error loading text content at " + textContentPath);
             return null;
         }
+    }
+
+    @Override
+    public String getResourcePath(String IRI)
+    {
+        return getDataFilePath(RDFUtil.getId(IRI));
+    }
+
+    @Override
+    public String getTextContentPath(String IRI)
+    {
+        return getTextFilePath(RDFUtil.getId(IRI));
+    }
 
-        return textContentLines;
+    Ontology getOntology()
+    {
+        return ontology;
     }
 
     private String getResourceTypeDir(String idType)
@@ -90,14 +91,22 @@ public class FileDataSource implements DataSource {
         return resourceTypes.get(idType);
     }
 
-    private String getMd5(String message)
+    /**
+     * @return The first byte of the MD5 of the message, as two hex digits.
+     */
+    private String getMd5Prefix(String message)
     {
         byte[] idBytes = message.getBytes(StandardCharsets.UTF_8);
-        byte[] digest = messageDigest.digest(idBytes);
-        BigInteger bigInt = new BigInteger(1,digest);
-        String digestString = String.format("%032x", bigInt);
+        byte[] digest;
+        try {
+            // MessageDigest isn't thread safe, so each lookup gets its own
+            digest = MessageDigest.getInstance("MD5").digest(idBytes);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
 
-        return digestString;
+        char[] hexDigits = "0123456789abcdef".toCharArray();
+        return new String(new char[] {hexDigits[(digest[0] >> 4) & 0xf], hexDigits[digest[0] & 0xf]});
     }
 
     private String getParentDir(String id)
@@ -108,21 +117,17 @@ public class FileDataSource implements DataSource {
             idBase = id.substring(0, underscoreIndex);
         }
 
-        String digestString = getMd5(idBase);
-        String subDir = digestString.substring(0, 2);
-
-        return subDir;
+        return getMd5Prefix(idBase);
     }
 
     private String getResourceParentDir(String id)
     {
-        Matcher matcher = resourceTypePattern.matcher(id);
-        String idType;
-        if (matcher.find()) {
-            idType = matcher.group(1);
-        } else {
-            idType = "";
+        // The type is the id's leading capitals, at most two
+        int typeLength = 0;
+        while (typeLength < 2 && typeLength < id.length() && id.charAt(typeLength) >= 'A' && id.charAt(typeLength) <= 'Z') {
+            typeLength++;
         }
+        String idType = id.substring(0, typeLength);
         String mainDir = getResourceTypeDir(idType);
         String subDir = getParentDir(id);
 
@@ -131,17 +136,31 @@ public class FileDataSource implements DataSource {
 
     private String getDataFilePath(String id)
     {
+        if (corpusIndex != null) {
+            CorpusIndexEntry entry = corpusIndex.getResource(id);
+            if (entry != null) {
+                return entry.path;
+            }
+        }
+
         String resourceDir = getResourceParentDir(id);
         return resourceDir + "/" + id + ".ttl";
     }
 
-    private String getOntologyPath()
+    String getOntologyPath()
     {
         return this.dataPath + ontologyFileName;
     }
 
     private String getTextFilePath(String id)
     {
+        if (corpusIndex != null) {
+            CorpusIndexEntry entry = corpusIndex.getText(id);
+            if (entry != null) {
+                return entry.path;
+            }
+        }
+
         String subDir = getParentDir(id);
         return this.dataPath + "etextcontents/" + subDir + "/" + id + ".txt";
     }
@@ -1,22 +1,20 @@
+import java.io.File;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
 
+/**
+ * An item, with the properties the generators use read in a single pass when
+ * it is loaded.
+ */
 public class Item extends BDRCResource {
 
-    private RDFResource item;
-    private Map<String, String>distributors;
-    private List<String>ocrDistributors;
-
-    public Item(String IRI, DataSource dataSource)
-    {
-        super(IRI, dataSource);
+    private static final String DISTRIBUTOR_PREFIX = "CP";
+    private static final Map<String, String> distributors = new HashMap<>();
+    private static final List<String> ocrDistributors = new ArrayList<>();
 
-        item = dataSource.loadResource(IRI);
-        resource = item;
-
-        String prefix = "CP";
-        distributors = new HashMap<>();
+    static {
+        String prefix = DISTRIBUTOR_PREFIX;
         distributors.put(prefix+"001", "ཡི་གེ་གཏགས་མའི་ཡོང་ཁུངས། ལེགས་བཤད་གླིང་།");
         distributors.put(prefix+"002", "ཡི་གེ་གཏགས་མའི་ཡོང་ཁུངས། འབྲི་གུང་ཆེ་ཚང་།");
         distributors.put(prefix+"003", "ཡི་གེ་གཏགས་མའི་ཡོང་ཁུངས། ནང་བསྟན་སྲི་ཞུ་ཁང་།");
@@ -29,28 +27,82 @@ public class Item extends BDRCResource {
         distributors.put(prefix+"010", "ཡི་གེ་གཏགས་མའི་ཡོང་ཁུངས། བཛྲ་བིདྱཱ།");
         distributors.put(prefix+"011", "ཡི་གེ་གཏགས་མའི་ཡོང་ཁུངས། མི་གསལ།");
 
-        ocrDistributors = new ArrayList<>();
         ocrDistributors.add(prefix+"009");
     }
 
-    protected Work getWork()
+    // Where the item's work is looked for, in order
+    private static final List<String> WORK_PROPERTIES = Arrays.asList(
+            CORE+"itemForWork",
+            CORE+"itemEtextPaginatedForWork",
+            CORE+"itemEtextNonPaginatedForWork"
+    );
+
+    private RDFResource item;
+    private final String typeIRI;
+    private final String workIRI;
+    private final String distributorId;
+    private final List<RDFResource> volumes;
+
+    public Item(String IRI, DataSource dataSource)
     {
-        if (work == null) {
-            RDFResource workResource = item.getPropertyResource(CORE+"itemForWork");
-            if (workResource == null) {
-                workResource = item.getPropertyResource(CORE+"itemEtextPaginatedForWork");
-                if (workResource == null) {
-                    workResource = item.getPropertyResource(CORE+"itemEtextNonPaginatedForWork");
-                }
+        super(IRI, dataSource);
+
+        item = dataSource.loadResource(IRI);
+        resource = item;
+
+        RDFResource[] values = new RDFResource[2 + WORK_PROPERTIES.size()];
+        List<RDFResource> volumeResources = new ArrayList<>();
+        item.forEachProperty((propertyIRI, property) -> {
+            if (property.isLiteral()) {
+                return;
             }
-            if (workResource != null) {
-                try {
-                    workResource = dataSource.loadResource(workResource.getIRI());
-                    work = new Work(workResource, dataSource);
-                } catch(Exception e) {
-                    System.out.println("Exception loading work " + workResource.getIRI());
-                    System.out.println(e);
+
+            int index;
+            if (propertyIRI.equals(RDFResource.TYPE)) {
+                index = 0;
+            } else if (propertyIRI.equals(CORE+"eTextDistributor")) {
+                index = 1;
+            } else if (propertyIRI.equals(CORE+"itemHasVolume")) {
+                volumeResources.add(property.asResource());
+                return;
+            } else {
+                index = WORK_PROPERTIES.indexOf(propertyIRI);
+                if (index == -1) {
+                    return;
                 }
+                index += 2;
+            }
+            if (values[index] == null) {
+                values[index] = property.asResource();
+            }
+        });
+
+        typeIRI = (values[0] != null) ? values[0].getIRI() : null;
+        distributorId = (values[1] != null) ? getLastSegment(values[1].getIRI()) : null;
+        String work = null;
+        for (int i = 2; i < values.length && work == null; i++) {
+            if (values[i] != null) {
+                work = values[i].getIRI();
+            }
+        }
+        workIRI = work;
+        volumes = volumeResources;
+    }
+
+    @Override
+    protected String getType()
+    {
+        return typeIRI;
+    }
+
+    protected Work getWork()
+    {
+        if (work == null && workIRI != null) {
+            try {
+                work = new Work(dataSource.loadResource(workIRI), dataSource);
+            } catch(Exception e) {
+                System.out.println("Exception loading work " + workIRI);
+                System.out.println(e);
             }
         }
 
@@ -66,34 +118,24 @@ public class Item extends BDRCResource {
         return work.getTitle();
     }
 
-    public Map<Integer, Etext> getEtexts()
+    public Etext loadEtext(String etextIRI)
     {
-        Map<Integer, RDFResource> texts = getTexts();
-        Map<Integer, Etext> etexts = new HashMap<>();
-        for (Map.Entry<Integer, RDFResource> entry : texts.entrySet()) {
-            RDFResource text = entry.getValue();
-            Integer volumeNumber = entry.getKey();
-            Etext etext = new Etext(text.getIRI(), this.dataSource, item);
-            etexts.put(volumeNumber, etext);
-        }
-
-        return etexts;
+        return new Etext(etextIRI, this.dataSource, item);
     }
 
-    private Map<Integer, RDFResource> getTexts()
+    /**
+     * @return The IRI of each volume's etext, without loading the etexts.
+     */
+    public Map<Integer, String> getEtextIRIs()
     {
-        List<RDFResource> volumes = getVolumes();
-        Map<Integer, RDFResource> texts = new HashMap<>();
+        Map<Integer, String> texts = new HashMap<>();
         for (RDFResource volume: volumes) {
             Integer volumeInt = volume.getInteger(CORE+"volumeNumber");
 
-            List<RDFResource> volumeTextList = volume.getPropertyResources(CORE+"volumeHasEtext");
-            if (volumeTextList != null) {
-                for (RDFResource volumeText: volumeTextList) {
-                    RDFResource text = volumeText.getPropertyResource(CORE+"eTextResource");
-                    if (text != null) {
-                        texts.put(volumeInt, text);
-                    }
+            for (RDFResource volumeText: volume.getPropertyResources(CORE+"volumeHasEtext")) {
+                RDFResource text = volumeText.getPropertyResource(CORE+"eTextResource");
+                if (text != null) {
+                    texts.put(volumeInt, text.getIRI());
                 }
             }
         }
@@ -101,36 +143,37 @@ public class Item extends BDRCResource {
         return texts;
     }
 
-    private List<RDFResource> getVolumes()
+    /**
+     * @return The size of the etext's text file, without reading it.
+     */
+    public long getEtextSize(String etextIRI)
     {
-        return item.getPropertyResources(CORE+"itemHasVolume");
+        return new File(dataSource.getTextContentPath(etextIRI)).length();
     }
 
+    /**
+     * @return The id of the distributor, or null if the item doesn't have one.
+     */
     public String getDistributorId()
     {
-        RDFResource distributor = item.getPropertyResource(CORE+"eTextDistributor");
-        Path iriPath = Paths.get(distributor.getIRI());
-        Path lastSegment = iriPath.getName(iriPath.getNameCount() - 1);
-        String id = lastSegment.toString();
-
-        return id;
+        return distributorId;
     }
 
     public String getDistributor()
     {
-        String id = getDistributorId();
-        String name = distributors.get(id);
-
-        if (name != null) {
-            return name;
-        } else {
-            return null;
-        }
+        return distributors.get(distributorId);
     }
 
     public boolean isOcr()
     {
-        String id = getDistributorId();
-        return ocrDistributors.contains(id);
+        return ocrDistributors.contains(distributorId);
+    }
+
+    private static String getLastSegment(String IRI)
+    {
+        Path iriPath = Paths.get(IRI);
+        Path lastSegment = iriPath.getName(iriPath.getNameCount() - 1);
+
+        return lastSegment.toString();
     }
 }
@@ -0,0 +1,191 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the items of a corpus on a work-stealing pool, the largest first.
+ *
+ * Each item's cost is estimated up front from the size of its etext files
+ * and its number of volumes. Every worker takes the next largest item, and
+ * the volumes of an item are generated by up to volumeJobs tasks of their
+ * own, so when the items run out the idle workers take volumes from the
+ * items still running instead of waiting for one large item to finish on
+ * its own. A single item is run the same way, to use every worker.
+ */
+class ItemScheduler {
+
+    // Cost of a volume besides its text: reading the etext, the cover, and
+    // the parts of the epub and docx that don't depend on the text
+    static final long VOLUME_COST = 64 * 1024;
+
+    private final ForkJoinPool pool;
+    private final boolean ownsPool;
+    private final int parallelism;
+    private final int volumeJobs;
+    private final int progressInterval;
+    private final AtomicLong completedCost = new AtomicLong();
+    private final AtomicInteger completedItems = new AtomicInteger();
+    private long totalCost;
+    private int totalItems;
+    private long startNanos;
+
+    /**
+     * @param volumeJobs Maximum number of volumes of one item generated at once.
+     * @param progressInterval Seconds between the progress lines, or 0 for none.
+     */
+    ItemScheduler(int parallelism, int volumeJobs, int progressInterval)
+    {
+        this(new ForkJoinPool(parallelism), true, volumeJobs, progressInterval);
+    }
+
+    /**
+     * Runs on a pool that is kept between runs, so its threads keep their
+     * Wylie converters.
+     */
+    ItemScheduler(ForkJoinPool pool, int volumeJobs, int progressInterval)
+    {
+        this(pool, false, volumeJobs, progressInterval);
+    }
+
+    private ItemScheduler(ForkJoinPool pool, boolean ownsPool, int volumeJobs, int progressInterval)
+    {
+        this.pool = pool;
+        this.ownsPool = ownsPool;
+        this.parallelism = pool.getParallelism();
+        this.volumeJobs = Math.max(volumeJobs, 1);
+        this.progressInterval = progressInterval;
+    }
+
+    /**
+     * Generates every item and returns once they are all done.
+     */
+    void run(List<DocumentJob> jobs, DataSource dataSource)
+    {
+        startNanos = System.nanoTime();
+
+        // Loads each item, which also puts it in the cache for its generation.
+        // Sharded runs have estimated them already.
+        pool.submit(() -> jobs.parallelStream()
+                .filter(job -> job.estimatedCost == 0)
+                .forEach(job -> job.estimatedCost = estimateCost(job.id, dataSource))).join();
+
+        List<DocumentJob> ordered = new ArrayList<>(jobs);
+        ordered.sort(Comparator.comparingLong((DocumentJob job) -> job.estimatedCost).reversed());
+        for (DocumentJob job: ordered) {
+            totalCost += job.estimatedCost;
+        }
+        totalItems = ordered.size();
+
+        ScheduledExecutorService progressExecutor = startProgress();
+
+        AtomicInteger next = new AtomicInteger();
+        List<ForkJoinTask<?>> workers = new ArrayList<>();
+        try {
+            for (int i = 0; i < parallelism; i++) {
+                workers.add(pool.submit(() -> {
+                    int index;
+                    while ((index = next.getAndIncrement()) < ordered.size()) {
+                        runJob(ordered.get(index));
+                    }
+                }));
+            }
+            for (ForkJoinTask<?> worker: workers) {
+                worker.join();
+            }
+        } finally {
+            if (ownsPool) {
+                pool.shutdown();
+            }
+            if (progressExecutor != null) {
+                progressExecutor.shutdownNow();
+            }
+        }
+    }
+
+    private void runJob(DocumentJob job)
+    {
+        List<MarkdownDocument> documents = job.start();
+        AtomicInteger next = new AtomicInteger();
+        List<ForkJoinTask<?>> volumeWorkers = new ArrayList<>();
+        for (int i = 0; i < Math.min(volumeJobs, documents.size()); i++) {
+            volumeWorkers.add(ForkJoinTask.adapt(() -> {
+                int index;
+                while ((index = next.getAndIncrement()) < documents.size()) {
+                    job.generate(documents.get(index));
+                }
+            }));
+        }
+        ForkJoinTask.invokeAll(volumeWorkers);
+        job.finish();
+
+        completedCost.addAndGet(job.estimatedCost);
+        completedItems.incrementAndGet();
+    }
+
+    private ScheduledExecutorService startProgress()
+    {
+        if (progressInterval <= 0) {
+            return null;
+        }
+
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "scheduler-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(() -> System.out.println(getProgress()), progressInterval, progressInterval, TimeUnit.SECONDS);
+
+        return executor;
+    }
+
+    /**
+     * @return One line with the items done, the share of the estimated work
+     * done, and the time left at the rate so far.
+     */
+    String getProgress()
+    {
+        long done = completedCost.get();
+        double percent = (totalCost > 0) ? 100.0 * done / totalCost : 100;
+        String eta = "unknown";
+        if (done > 0) {
+            long elapsed = System.nanoTime() - startNanos;
+            eta = formatSeconds((long) (elapsed / 1e9 * (totalCost - done) / done));
+        }
+
+        return String.format("Progress: %d/%d items, %.0f%% of the estimated work, ETA %s",
+                completedItems.get(), totalItems, percent, eta);
+    }
+
+    /**
+     * @return The bytes of the item's etext files, plus VOLUME_COST for each
+     * volume and one more for the item itself.
+     */
+    static long estimateCost(String id, DataSource dataSource)
+    {
+        long cost = VOLUME_COST;
+        try {
+            Item item = new Item(DocumentGenerator.BDR + id, dataSource);
+            for (String etextIRI: item.getEtextIRIs().values()) {
+                cost += VOLUME_COST + item.getEtextSize(etextIRI);
+            }
+        } catch (Throwable e) {
+            // Left for the generator to report, and scheduled as a small item
+        }
+
+        return cost;
+    }
+
+    private static String formatSeconds(long seconds)
+    {
+        if (seconds >= 3600) return String.format("%dh%02dm", seconds / 3600, seconds % 3600 / 60);
+        if (seconds >= 60) return String.format("%dm%02ds", seconds / 60, seconds % 60);
+        return seconds + "s";
+    }
+}
@@ -0,0 +1,254 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thrown by a budget check once an item has gone over one of its budgets.
+ */
+class BudgetExceededException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    BudgetExceededException(String reason)
+    {
+        super(reason);
+    }
+}
+
+/**
+ * The most one item may use, each 0 for no limit.
+ */
+class BudgetLimits {
+    static final BudgetLimits NONE = new BudgetLimits(0, 0, 0, 0);
+
+    final long timeoutNanos;
+    final long maxTextBytes;
+    final int maxSectionDepth;
+    final long maxAllocatedBytes;
+
+    /**
+     * @param timeoutSeconds Time from the start of the item to its last volume.
+     * @param maxTextMegabytes Size of the largest etext file of a volume.
+     * @param maxSectionDepth Levels of work parts in a volume's section tree.
+     * @param maxAllocationMegabytes Memory allocated by the threads generating the item, live or not.
+     */
+    BudgetLimits(int timeoutSeconds, int maxTextMegabytes, int maxSectionDepth, int maxAllocationMegabytes)
+    {
+        this.timeoutNanos = TimeUnit.SECONDS.toNanos(Math.max(timeoutSeconds, 0));
+        this.maxTextBytes = Math.max(maxTextMegabytes, 0) * 1024L * 1024L;
+        this.maxSectionDepth = Math.max(maxSectionDepth, 0);
+        this.maxAllocatedBytes = Math.max(maxAllocationMegabytes, 0) * 1024L * 1024L;
+    }
+}
+
+/**
+ * The items taken out of a run because they went over a budget, with the
+ * reason, saved as quarantine.txt in the output directory.
+ */
+class QuarantineReport {
+    static final String QUARANTINE_FILENAME = "quarantine.txt";
+
+    private final Map<String, String> reasons = new TreeMap<>();
+
+    synchronized void record(String id, String reason)
+    {
+        reasons.put(id, reason);
+    }
+
+    synchronized int size()
+    {
+        return reasons.size();
+    }
+
+    /**
+     * Writes the report, if any item was quarantined.
+     */
+    synchronized void save(String outputDir)
+    {
+        if (reasons.isEmpty()) {
+            return;
+        }
+
+        String reportPath = StringUtils.ensureTrailingSlash(outputDir) + QUARANTINE_FILENAME;
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(reportPath), StandardCharsets.UTF_8))) {
+            for (Map.Entry<String, String> reason: reasons.entrySet()) {
+                out.append(reason.getKey()).append("\t").append(reason.getValue()).append("\n");
+            }
+        } catch (IOException e) {
+            System.out.println("Failed to write quarantine report " + reportPath);
+            System.out.println(e);
+        }
+    }
+
+    /**
+     * Adds the items of another run's report, such as a shard's.
+     */
+    void merge(String outputDir)
+    {
+        File reportFile = new File(StringUtils.ensureTrailingSlash(outputDir) + QUARANTINE_FILENAME);
+        if (!reportFile.exists()) {
+            return;
+        }
+
+        try {
+            for (String line: Files.readAllLines(reportFile.toPath(), StandardCharsets.UTF_8)) {
+                String[] fields = line.split("\t", 2);
+                if (fields.length == 2) {
+                    record(fields[0], fields[1]);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Failed to read quarantine report " + reportFile);
+            System.out.println(e);
+        }
+    }
+}
+
+/**
+ * What one item has used of its budgets. The generation checks it as it
+ * goes, between volumes and between sections, and the first check after a
+ * budget is exceeded throws, in every thread working on the item, so its
+ * other volumes stop too and the workers go on to the healthy items.
+ *
+ * Allocation is counted per thread, from the JVM's count of the bytes each
+ * thread has allocated, while the thread generates one of the item's
+ * volumes. It is approximate: it includes garbage, and on JVMs without the
+ * count it isn't limited.
+ */
+public class JobBudget {
+
+    static final JobBudget UNLIMITED = new JobBudget(BudgetLimits.NONE);
+
+    private static final com.sun.management.ThreadMXBean threadBean = getThreadBean();
+
+    private final BudgetLimits limits;
+    private final boolean countsAllocation;
+    private final AtomicLong allocatedBytes = new AtomicLong();
+    // Bytes each thread working on the item had allocated when it started its volume
+    private final Map<Long, Long> threadStartBytes = new ConcurrentHashMap<>();
+    private volatile long startNanos;
+    private volatile String exceededReason;
+
+    JobBudget(BudgetLimits limits)
+    {
+        this.limits = limits;
+        this.countsAllocation = limits.maxAllocatedBytes > 0 && threadBean != null;
+    }
+
+    private static com.sun.management.ThreadMXBean getThreadBean()
+    {
+        try {
+            Object bean = ManagementFactory.getThreadMXBean();
+            if (bean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+                ((com.sun.management.ThreadMXBean) bean).setThreadAllocatedMemoryEnabled(true);
+                return (com.sun.management.ThreadMXBean) bean;
+            }
+        } catch (Throwable e) {
+            // Allocation is then not limited
+        }
+
+        return null;
+    }
+
+    /**
+     * Starts the item's clock.
+     */
+    void start()
+    {
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * Starts counting the current thread's allocation for the item.
+     */
+    void enter()
+    {
+        if (countsAllocation) {
+            long threadId = Thread.currentThread().getId();
+            threadStartBytes.put(threadId, threadBean.getThreadAllocatedBytes(threadId));
+        }
+    }
+
+    /**
+     * Stops counting the current thread's allocation for the item.
+     */
+    void exit()
+    {
+        if (countsAllocation) {
+            long threadId = Thread.currentThread().getId();
+            Long startBytes = threadStartBytes.remove(threadId);
+            if (startBytes != null) {
+                allocatedBytes.addAndGet(threadBean.getThreadAllocatedBytes(threadId) - startBytes);
+            }
+        }
+    }
+
+    /**
+     * Checks the time and allocation budgets, and whether another thread
+     * found the item over a budget.
+     */
+    void check()
+    {
+        if (exceededReason != null) {
+            throw new BudgetExceededException(exceededReason);
+        }
+
+        if (limits.timeoutNanos > 0 && System.nanoTime() - startNanos > limits.timeoutNanos) {
+            exceeded("ran for more than " + TimeUnit.NANOSECONDS.toSeconds(limits.timeoutNanos) + "s");
+        }
+        if (countsAllocation) {
+            long bytes = allocatedBytes.get();
+            for (Map.Entry<Long, Long> thread: threadStartBytes.entrySet()) {
+                bytes += Math.max(threadBean.getThreadAllocatedBytes(thread.getKey()) - thread.getValue(), 0);
+            }
+            if (bytes > limits.maxAllocatedBytes) {
+                exceeded("allocated more than " + toMegabytes(limits.maxAllocatedBytes) + "MB");
+            }
+        }
+    }
+
+    void checkTextSize(String etextIRI, long bytes)
+    {
+        if (limits.maxTextBytes > 0 && bytes > limits.maxTextBytes) {
+            exceeded("text of " + etextIRI + " is " + bytes + " bytes, more than " + toMegabytes(limits.maxTextBytes) + "MB");
+        }
+    }
+
+    /**
+     * @param depth The level of a work part in the section tree, 1 for the work's own parts.
+     */
+    void checkSectionDepth(String workIRI, int depth)
+    {
+        if (limits.maxSectionDepth > 0 && depth > limits.maxSectionDepth) {
+            exceeded("work parts nested more than " + limits.maxSectionDepth + " levels deep at " + workIRI);
+        }
+        check();
+    }
+
+    /**
+     * @return Why the item went over its budget, or null if it hasn't.
+     */
+    String getExceededReason()
+    {
+        return exceededReason;
+    }
+
+    private synchronized void exceeded(String reason)
+    {
+        if (exceededReason == null) {
+            exceededReason = reason;
+        }
+
+        throw new BudgetExceededException(exceededReason);
+    }
+
+    private static long toMegabytes(long bytes)
+    {
+        return bytes / (1024 * 1024);
+    }
+}
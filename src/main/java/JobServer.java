@@ -0,0 +1,357 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * One item requested from the server, and what became of it.
+ */
+class ServerJob {
+    enum State { QUEUED, RUNNING, DONE, FAILED, CANCELLED }
+
+    final int number;
+    final String itemId;
+    final boolean epub;
+    final boolean docx;
+    final long submittedMillis = System.currentTimeMillis();
+    volatile State state = State.QUEUED;
+    volatile long startedMillis;
+    volatile long finishedMillis;
+    volatile DocumentJob documentJob;
+    volatile Future<?> future;
+    volatile String error;
+    volatile List<String> outputs = Collections.emptyList();
+
+    ServerJob(int number, String itemId, boolean epub, boolean docx)
+    {
+        this.number = number;
+        this.itemId = itemId;
+        this.epub = epub;
+        this.docx = docx;
+    }
+
+    boolean isFinished()
+    {
+        return state == State.DONE || state == State.FAILED || state == State.CANCELLED;
+    }
+
+    String toJson()
+    {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"job\": ").append(number)
+                .append(", \"id\": ").append(RunMetrics.jsonString(itemId))
+                .append(", \"state\": ").append(RunMetrics.jsonString(state.name().toLowerCase()))
+                .append(", \"epub\": ").append(epub)
+                .append(", \"docx\": ").append(docx)
+                .append(", \"queuedMs\": ").append(((startedMillis > 0) ? startedMillis : (finishedMillis > 0) ? finishedMillis : System.currentTimeMillis()) - submittedMillis);
+        if (startedMillis > 0) {
+            json.append(", \"ms\": ").append(((finishedMillis > 0) ? finishedMillis : System.currentTimeMillis()) - startedMillis);
+        }
+        if (error != null) {
+            json.append(", \"error\": ").append(RunMetrics.jsonString(error));
+        }
+        json.append(", \"outputs\": [");
+        boolean first = true;
+        for (String output: outputs) {
+            json.append(first ? "" : ", ").append(RunMetrics.jsonString(output));
+            first = false;
+        }
+
+        return json.append("]}").toString();
+    }
+}
+
+/**
+ * Generates items on request, in one long-running JVM, so the ontology, the
+ * resource cache, the cover fonts, the Wylie converters and the pandoc pool
+ * stay warm between requests instead of being set up again for every item.
+ *
+ * Jobs are queued and run a few at a time. The API only listens on the
+ * loopback interface:
+ *
+ *   POST   /jobs?id=ITEM[&epub=false][&docx=false]   queue an item
+ *   GET    /jobs                                      every job kept
+ *   GET    /jobs/NUMBER                               one job
+ *   DELETE /jobs/NUMBER                               cancel a job
+ *
+ * An item has one job queued or running at a time: asking for it again
+ * answers its queued job if it is for the same formats, and otherwise is
+ * refused with 409.
+ *
+ * Every answer is JSON. A job is done once its files are written, including
+ * its pandoc conversions. Cached resources whose files changed are loaded
+ * again, so items can be regenerated after their data is edited.
+ */
+public class JobServer {
+
+    // Finished jobs kept for their status, the oldest dropped first
+    private static final int MAX_FINISHED_JOBS = 1000;
+
+    private final CachingDataSource dataSource;
+    private final String outputDir;
+    private final String documentFilesDir;
+    private final String backend;
+    private final ProcessPool processPool;
+    private final int volumeJobs;
+    private final BudgetLimits budgetLimits;
+    private final ForkJoinPool volumePool;
+    private final ExecutorService jobExecutor;
+    private final Map<Integer, ServerJob> jobs = new LinkedHashMap<>();
+    private final AtomicInteger nextNumber = new AtomicInteger(1);
+    private HttpServer server;
+
+    /**
+     * @param jobCount Maximum number of items generated at once.
+     * @param volumeJobs Maximum number of volumes of one item generated at once.
+     * @param budgetLimits The most each job may use, a job going over it fails.
+     */
+    JobServer(CachingDataSource dataSource, String outputDir, String documentFilesDir, String backend, ProcessPool processPool, int jobCount, int volumeJobs, BudgetLimits budgetLimits)
+    {
+        this.dataSource = dataSource;
+        this.outputDir = StringUtils.ensureTrailingSlash(outputDir);
+        this.documentFilesDir = documentFilesDir;
+        this.backend = backend;
+        this.processPool = processPool;
+        this.volumeJobs = volumeJobs;
+        this.budgetLimits = budgetLimits;
+        this.volumePool = new ForkJoinPool(jobCount * volumeJobs);
+        this.jobExecutor = Executors.newFixedThreadPool(jobCount);
+    }
+
+    void start(int port) throws IOException
+    {
+        // So the first job doesn't pay for the stylesheet
+        DocumentGenerator.getEpubCss(DocumentGenerator.getEpubCssFilepath(documentFilesDir), outputDir);
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/jobs", this::handle);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        System.out.println("Listening on http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" + server.getAddress().getPort() + "/jobs");
+    }
+
+    private void handle(HttpExchange exchange) throws IOException
+    {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            String method = exchange.getRequestMethod();
+            String number = path.replaceFirst("^/jobs/?", "");
+
+            if (number.isEmpty()) {
+                if (method.equals("POST")) {
+                    submit(exchange);
+                } else if (method.equals("GET")) {
+                    listJobs(exchange);
+                } else {
+                    send(exchange, 405, "{\"error\": \"Use GET or POST\"}");
+                }
+                return;
+            }
+
+            ServerJob job = null;
+            if (number.matches("\\d{1,9}")) {
+                synchronized (jobs) {
+                    job = jobs.get(Integer.parseInt(number));
+                }
+            }
+            if (job == null) {
+                send(exchange, 404, "{\"error\": \"No job " + number.replaceAll("[^A-Za-z0-9_-]", "") + "\"}");
+            } else if (method.equals("GET")) {
+                send(exchange, 200, job.toJson());
+            } else if (method.equals("DELETE")) {
+                cancel(job);
+                send(exchange, 200, job.toJson());
+            } else {
+                send(exchange, 405, "{\"error\": \"Use GET or DELETE\"}");
+            }
+        } catch (Exception e) {
+            System.out.println("Exception handling request " + exchange.getRequestURI());
+            System.out.println(e);
+            send(exchange, 500, "{\"error\": " + RunMetrics.jsonString(String.valueOf(e)) + "}");
+        }
+    }
+
+    private void submit(HttpExchange exchange) throws IOException
+    {
+        Map<String, String> parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+        String itemId = parameters.get("id");
+        if (itemId == null || !itemId.matches("[A-Za-z0-9_-]+")) {
+            send(exchange, 400, "{\"error\": \"Give the item with id=\"}");
+            return;
+        }
+
+        boolean epub = !"false".equals(parameters.get("epub"));
+        boolean docx = !"false".equals(parameters.get("docx"));
+        int status;
+        String answer;
+        synchronized (jobs) {
+            // Two jobs for one item would write the same files at once
+            ServerJob activeJob = getActiveJob(itemId);
+            if (activeJob == null) {
+                ServerJob job = new ServerJob(nextNumber.getAndIncrement(), itemId, epub, docx);
+                jobs.put(job.number, job);
+                dropFinishedJobs();
+                job.future = jobExecutor.submit(() -> run(job));
+                status = 202;
+                answer = job.toJson();
+            } else if (activeJob.state == ServerJob.State.QUEUED && activeJob.epub == epub && activeJob.docx == docx) {
+                status = 200;
+                answer = activeJob.toJson();
+            } else {
+                status = 409;
+                answer = "{\"error\": \"Item " + itemId + " already has job " + activeJob.number + " " + activeJob.state.name().toLowerCase() + "\", \"job\": " + activeJob.number + "}";
+            }
+        }
+
+        send(exchange, status, answer);
+    }
+
+    private void listJobs(HttpExchange exchange) throws IOException
+    {
+        StringBuilder json = new StringBuilder("[");
+        synchronized (jobs) {
+            boolean first = true;
+            for (ServerJob job: jobs.values()) {
+                json.append(first ? "\n  " : ",\n  ").append(job.toJson());
+                first = false;
+            }
+        }
+
+        send(exchange, 200, json.append("\n]").toString());
+    }
+
+    private void run(ServerJob job)
+    {
+        synchronized (job) {
+            if (job.state != ServerJob.State.QUEUED) {
+                return;
+            }
+            job.state = ServerJob.State.RUNNING;
+            job.startedMillis = System.currentTimeMillis();
+            // Metrics are kept per job, as the server runs indefinitely
+            job.documentJob = TextTool.createJob(job.itemId, dataSource, outputDir, documentFilesDir, job.epub, job.docx, backend, processPool, null, new RunMetrics(), null, budgetLimits);
+        }
+
+        DocumentJob documentJob = job.documentJob;
+        try {
+            new ItemScheduler(volumePool, volumeJobs, 0).run(Collections.singletonList(documentJob), dataSource);
+            List<ProcessResult> failures = documentJob.awaitConversions();
+            job.outputs = new ArrayList<>(documentJob.getOutputPaths());
+
+            if (documentJob.isCancelled()) {
+                job.state = ServerJob.State.CANCELLED;
+            } else if (documentJob.getQuarantineReason() != null) {
+                job.error = "Over budget: " + documentJob.getQuarantineReason();
+                job.state = ServerJob.State.FAILED;
+            } else if (documentJob.hasFailed() || !failures.isEmpty()) {
+                job.error = documentJob.hasFailed() ? "Exception generating document" : failures.size() + " conversions failed";
+                job.state = ServerJob.State.FAILED;
+            } else if (job.outputs.isEmpty()) {
+                job.error = "Nothing was generated for " + job.itemId;
+                job.state = ServerJob.State.FAILED;
+            } else {
+                job.state = ServerJob.State.DONE;
+            }
+        } catch (Throwable e) {
+            job.error = String.valueOf(e);
+            job.state = ServerJob.State.FAILED;
+        }
+        job.finishedMillis = System.currentTimeMillis();
+        System.out.println("Job " + job.number + " " + job.itemId + " " + job.state.name().toLowerCase() + " in " + (job.finishedMillis - job.startedMillis) + "ms");
+    }
+
+    /**
+     * A queued job never starts. A running job stops after the volumes
+     * already being generated.
+     */
+    private void cancel(ServerJob job)
+    {
+        synchronized (job) {
+            if (job.state == ServerJob.State.QUEUED) {
+                job.state = ServerJob.State.CANCELLED;
+                job.finishedMillis = System.currentTimeMillis();
+                job.future.cancel(false);
+            } else if (job.state == ServerJob.State.RUNNING) {
+                job.documentJob.cancel();
+            }
+        }
+    }
+
+    /**
+     * @return The item's job that is queued or running, or null if there is none.
+     */
+    private ServerJob getActiveJob(String itemId)
+    {
+        for (ServerJob job: jobs.values()) {
+            if (job.itemId.equals(itemId) && !job.isFinished()) {
+                return job;
+            }
+        }
+
+        return null;
+    }
+
+    private void dropFinishedJobs()
+    {
+        int finished = 0;
+        for (ServerJob job: jobs.values()) {
+            if (job.isFinished()) {
+                finished++;
+            }
+        }
+
+        Iterator<ServerJob> iterator = jobs.values().iterator();
+        while (finished > MAX_FINISHED_JOBS && iterator.hasNext()) {
+            if (iterator.next().isFinished()) {
+                iterator.remove();
+                finished--;
+            }
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException
+    {
+        Map<String, String> parameters = new HashMap<>();
+        if (query == null) {
+            return parameters;
+        }
+
+        for (String parameter: query.split("&")) {
+            int equalsIndex = parameter.indexOf('=');
+            if (equalsIndex > 0) {
+                parameters.put(URLDecoder.decode(parameter.substring(0, equalsIndex), "UTF-8"),
+                        URLDecoder.decode(parameter.substring(equalsIndex + 1), "UTF-8"));
+            }
+        }
+
+        return parameters;
+    }
+
+    private static void send(HttpExchange exchange, int status, String json) throws IOException
+    {
+        byte[] body = (json + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Size-bounded, least recently used cache that is safe to share between threads.
+ *
+ * Values are loaded outside the lock, so a slow load doesn't block other
+ * lookups. Two threads missing on the same key may both load it; the first
+ * value stored wins.
+ */
+class LruCache<K, V> {
+
+    private final int maxSize;
+    private final LinkedHashMap<K, V> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    LruCache(int maxSize)
+    {
+        this.maxSize = maxSize;
+        this.entries = new LinkedHashMap<K, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest)
+            {
+                if (size() > LruCache.this.maxSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return The cached value for the key, loading and caching it if needed.
+     * Null values are returned but not cached.
+     */
+    public V get(K key, Function<K, V> loader)
+    {
+        synchronized (entries) {
+            V value = entries.get(key);
+            if (value != null) {
+                hits.incrementAndGet();
+                return value;
+            }
+        }
+
+        misses.incrementAndGet();
+        V value = loader.apply(key);
+        if (value == null || maxSize <= 0) {
+            return value;
+        }
+
+        synchronized (entries) {
+            V existing = entries.putIfAbsent(key, value);
+            return (existing != null) ? existing : value;
+        }
+    }
+
+    /**
+     * Removes the key if it still has the given value, e.g. one found to be out of date.
+     */
+    public void remove(K key, V value)
+    {
+        synchronized (entries) {
+            entries.remove(key, value);
+        }
+    }
+
+    public int size()
+    {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    public long getEvictions()
+    {
+        return evictions.get();
+    }
+
+    public String toString()
+    {
+        return String.format("size=%d/%d, hits=%d, misses=%d, evictions=%d",
+                size(), maxSize, getHits(), getMisses(), getEvictions());
+    }
+}
@@ -1,13 +1,48 @@
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.util.*;
 
+/**
+ * Writes the markdown of a document. Item volumes are written section by
+ * section as they are generated, instead of being built up in memory.
+ */
+interface MarkdownContent {
+    void write(Writer out) throws IOException;
+}
+
 class MarkdownDocument {
     MarkdownDocument(String markdown, String name, String title)
     {
-        this.markdown = markdown;
+        this(out -> out.write(markdown), name, title);
+    }
+
+    MarkdownDocument(MarkdownContent content, String name, String title)
+    {
+        this.content = content;
         this.name = name;
         this.title = title;
     }
-    String markdown;
+
+    void writeMarkdown(Writer out) throws IOException
+    {
+        content.write(out);
+    }
+
+    /**
+     * Frees the volume's text once every output has been generated.
+     */
+    void release()
+    {
+        if (volumeContent != null) {
+            volumeContent.release();
+        }
+    }
+
+    MarkdownContent content;
+    // Only set for item volumes
+    VolumeContent volumeContent;
     String name;
     String title;
     String author;
@@ -15,29 +50,115 @@ class MarkdownDocument {
     int volume;
 }
 
+/**
+ * The section tree of one item volume. The etext and the sections are read
+ * on first use and shared by every output format until the document is
+ * released, so only the volumes being generated have their text in memory.
+ *
+ * The item, its work and the work's outline are shared with the item's
+ * other volumes, which may be generated at the same time, and are only read.
+ */
+class VolumeContent {
+    final String title;
+    final int volume;
+    final int totalVolumes;
+    private final Work work;
+    // Null when the work has no parts
+    private final WorkOutline outline;
+    private final Item item;
+    private final String etextIRI;
+    private Etext etext;
+    private List<WorkSection> sections;
+    // Set by the item's job
+    JobBudget budget = JobBudget.UNLIMITED;
+
+    VolumeContent(String title, int volume, int totalVolumes, Work work, WorkOutline outline, Item item, String etextIRI)
+    {
+        this.title = title;
+        this.volume = volume;
+        this.totalVolumes = totalVolumes;
+        this.work = work;
+        this.outline = outline;
+        this.item = item;
+        this.etextIRI = etextIRI;
+    }
+
+    List<WorkSection> getSections()
+    {
+        if (sections == null) {
+            sections = buildSections();
+        }
+
+        return sections;
+    }
+
+    /**
+     * @return The size of the volume's etext file, without reading it.
+     */
+    long getTextSize()
+    {
+        return item.getEtextSize(etextIRI);
+    }
+
+    String getEtextIRI()
+    {
+        return etextIRI;
+    }
+
+    void release()
+    {
+        sections = null;
+        if (etext != null) {
+            etext.releaseContent();
+        }
+    }
+
+    private List<WorkSection> buildSections()
+    {
+        if (etext == null) {
+            etext = item.loadEtext(etextIRI);
+        }
+
+        List<WorkSection> sections;
+
+        if (outline != null && etext.getPages() != null && etext.getPages().size() > 0) {
+            sections = outline.getSections(etext.getPageContent(), volume, budget);
+        } else {
+            sections = new ArrayList<>();
+
+            WorkSection section = new WorkSection();
+            section.work = work;
+            section.title = "The Text {.enHeader}";
+            TextContent content = etext.getContent();
+            section.content = (content != null) ? content.getText() : "";
+            sections.add(section);
+        }
+
+        return sections;
+    }
+}
+
 public class MarkdownGenerator {
 
     public static final String BDR = "http://purl.bdrc.io/resource/";
 
     private final String id;
-    private final String sourceDir;
     private final String outputDir;
-    private final FileDataSource ds;
+    private final DataSource ds;
     private final String terms;
-    private static int maxSectionSize = 50000;
-    private static int linesPerPara = 10;
+    static int maxSectionSize = 50000;
+    static int linesPerPara = 10;
     private static int maxTitleLength = 240; // Linux max filename excluding extension
 
-    MarkdownGenerator(String id, String sourceDir, String outputDir, String terms)
+    MarkdownGenerator(String id, DataSource ds, String outputDir, String terms)
     {
         this.id = id;
-        this.sourceDir = StringUtils.ensureTrailingSlash(sourceDir);
         this.outputDir = StringUtils.ensureTrailingSlash(outputDir);
-        this.ds = new FileDataSource(this.sourceDir);
+        this.ds = ds;
         this.terms = terms;
     }
 
-    public List<MarkdownDocument> generateMarkdownForResource(String id, FileDataSource ds )
+    public List<MarkdownDocument> generateMarkdownForResource(String id, DataSource ds)
     {
         List<MarkdownDocument> markdownDocuments;
         String firstChar = String.valueOf(id.charAt(0));
@@ -79,67 +200,33 @@ public class MarkdownGenerator {
         }
 
         List<MarkdownDocument> markdownDocuments = new ArrayList<>();
-        Map<Integer, List<WorkSection>> volumeSections = new HashMap<>();
 
-        Map<Integer, Etext> etexts = item.getEtexts();
+        Map<Integer, String> etexts = item.getEtextIRIs();
         Work work = item.getWork();
-        Map<Integer, List<Work>> workParts = null;
-        if (work != null ) {
-            workParts = work.getWorkParts();
-        }
-
-        int totalVolumes = etexts.keySet().size();
-        for (Map.Entry<Integer, Etext> entry : etexts.entrySet()) {
-            Etext etext = entry.getValue();
-            Integer volumeNumber = entry.getKey();
-            List<WorkSection> sections;
-
-            if (work != null && workParts.size() > 0 && etext.getPages() != null && etext.getPages().size() > 0) {
-                sections = work.getSections(etext, volumeNumber);
-            } else {
-                sections = new ArrayList<>();
-
-                WorkSection section = new WorkSection();
-                section.work = work;
-                section.title = "The Text {.enHeader}";
-                section.content = String.join("\n", etext.getContentLines());
-                sections.add(section);
+        // Resolved once, for every volume and output format
+        WorkOutline outline = null;
+        if (work != null) {
+            outline = WorkOutline.build(work);
+            if (!outline.hasParts()) {
+                outline = null;
             }
-
-            sections.sort((leftSection, rightSection) -> {
-                return Integer.compare(leftSection.location.startPage, rightSection.location.startPage);
-            });
-
-            volumeSections.put(volumeNumber, sections);
         }
 
-        for (Map.Entry<Integer, List<WorkSection>> entry : volumeSections.entrySet()) {
+        int totalVolumes = etexts.keySet().size();
+        for (Map.Entry<Integer, String> entry : etexts.entrySet()) {
             int volume = entry.getKey();
-            List<WorkSection> sections = entry.getValue();
-
-            StringBuilder docSb = new StringBuilder();
-
-            docSb.append("# ")
-                    .append(item.getTitle())
-                    .append("\n\n");
-
-            if (totalVolumes > 1) {
-                docSb.append("#### པོད ")
-                        .append(TibetanUtils.getTibetanNumber(volume))
-                        .append(" {.volume}")
-                        .append("\n\n");
-            }
-
-            docSb.append(terms).append("\n\n");
-
-            for (WorkSection workSection: sections) {
-                docSb.append(markdownForSection(workSection, 2));
-            }
 
             String title = item.getTitle();
             String textName = generateTextName(title, item.getId(), item.isOcr(), totalVolumes, volume);
 
-            MarkdownDocument document = new MarkdownDocument(docSb.toString(), textName, title);
+            // The etext is only read and the sections built when the
+            // document is generated, so only the volumes being generated
+            // have their text in memory.
+            VolumeContent volumeContent = new VolumeContent(title, volume, totalVolumes, work, outline, item, entry.getValue());
+            MarkdownContent content = out -> writeVolumeMarkdown(out, volumeContent);
+
+            MarkdownDocument document = new MarkdownDocument(content, textName, title);
+            document.volumeContent = volumeContent;
             if (totalVolumes > 1) {
                 document.volume = volume;
             }
@@ -169,6 +256,29 @@ public class MarkdownGenerator {
         return markdownDocuments;
     }
 
+    private void writeVolumeMarkdown(Writer out, VolumeContent volumeContent) throws IOException
+    {
+        List<WorkSection> sections = volumeContent.getSections();
+
+        out.append("# ")
+                .append(volumeContent.title)
+                .append("\n\n");
+
+        if (volumeContent.totalVolumes > 1) {
+            out.append("#### པོད ")
+                    .append(TibetanUtils.getTibetanNumber(volumeContent.volume))
+                    .append(" {.volume}")
+                    .append("\n\n");
+        }
+
+        out.append(terms).append("\n\n");
+
+        for (WorkSection workSection: sections) {
+            volumeContent.budget.check();
+            writeSection(out, workSection, 2);
+        }
+    }
+
     private String generateTextName(String title, String id, boolean isOcr, int totalVolumes, int volume)
     {
         String textName = ((isOcr) ? "OCR " : "") + id + ((totalVolumes > 1) ? "_vol_" + volume : "") + " " + title;
@@ -189,22 +299,31 @@ public class MarkdownGenerator {
     }
 
     public String markdownForSection(WorkSection section, int level) {
+        StringWriter out = new StringWriter();
+        try {
+            writeSection(out, section, level);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        return out.toString();
+    }
+
+    public void writeSection(Writer out, WorkSection section, int level) throws IOException {
         String headingBase = "";
         for (int i=1; i < level; i++) {
             headingBase += "#";
         }
 
-        StringBuilder sectionSb = new StringBuilder();
-
         if (section.title != null) {
-            sectionSb.append(headingBase)
+            out.append(headingBase)
                     .append("# ")
                     .append(section.title)
                     .append("\n\n");
         }
 
         if (section.author != null) {
-            sectionSb.append("[")
+            out.append("[")
                     .append(section.author)
                     .append("]{.author}")
                     .append("\n\n");
@@ -212,40 +331,69 @@ public class MarkdownGenerator {
 
         if (section.sections != null && section.sections.size() > 0) {
             for (WorkSection workSection: section.sections) {
-                sectionSb.append(markdownForSection(workSection, level + 1));
+                writeSection(out, workSection, level + 1);
             }
-            sectionSb.append("\n\n");
+            out.append("\n\n");
         } else {
-            String content = splitMarkdownText(section.content, maxSectionSize);
-            sectionSb.append(content).append("\n\n");
+            writeSplitText(out, section.content, maxSectionSize);
+            out.append("\n\n");
         }
+    }
 
-        return sectionSb.toString();
+    protected String splitMarkdownText(CharSequence text, int sectionSize)
+    {
+        StringWriter out = new StringWriter(text.length() + text.length() / 8);
+        try {
+            writeSplitText(out, text, sectionSize);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        return out.toString();
     }
 
-    protected String splitMarkdownText(String text, int sectionSize)
+    /**
+     * Writes the text with a paragraph break every linesPerPara lines and an
+     * empty heading roughly every sectionSize characters, so readers can
+     * split long texts into smaller pages.
+     */
+    protected void writeSplitText(Writer out, CharSequence text, int sectionSize) throws IOException
     {
-        StringBuilder textSb = new StringBuilder();
-        List<String> textLines = Arrays.asList(text.split("\n"));
+        // Same lines as String.split("\n"), which drops trailing empty lines
+        int textEnd = text.length();
+        while (textEnd > 0 && text.charAt(textEnd - 1) == '\n') {
+            textEnd--;
+        }
+        if (textEnd == 0 && text.length() > 0) {
+            return;
+        }
+
         int sectionLength = 0;
         int paraLine = 0;
-        for (String line: textLines) {
+        int lineStart = 0;
+        while (true) {
+            int lineEnd = lineStart;
+            while (lineEnd < textEnd && text.charAt(lineEnd) != '\n') {
+                lineEnd++;
+            }
+
             paraLine++;
             if (sectionLength > sectionSize) {
-                textSb.append("\n\n").append("### {.empty}").append("\n\n");
+                out.append("\n\n").append("### {.empty}").append("\n\n");
                 sectionLength = 0;
                 paraLine = 0;
             }
-            textSb.append(line);
-            textSb.append("\n");
-            sectionLength += line.length();
+            out.append(text, lineStart, lineEnd);
+            out.append("\n");
+            sectionLength += lineEnd - lineStart;
             if (paraLine > 0 && paraLine % linesPerPara == 0) {
                 // add para break to speed up page rendering
-                textSb.append("\n");
+                out.append("\n");
                 paraLine = 0;
             }
-        }
 
-        return textSb.toString();
+            if (lineEnd >= textEnd) break;
+            lineStart = lineEnd + 1;
+        }
     }
 }
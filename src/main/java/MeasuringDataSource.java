@@ -0,0 +1,56 @@
+import java.io.File;
+
+/**
+ * DataSource decorator that times the resource and text loads of one item,
+ * and counts the bytes of the files they come from.
+ *
+ * Used by a single item at a time, in front of the shared data source, so
+ * resources served from the cache are counted too.
+ */
+public class MeasuringDataSource implements DataSource {
+
+    private final DataSource dataSource;
+    private final DocumentMetrics metrics;
+
+    public MeasuringDataSource(DataSource dataSource, DocumentMetrics metrics)
+    {
+        this.dataSource = dataSource;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public RDFResource loadResource(String IRI)
+    {
+        long start = System.nanoTime();
+        RDFResource resource = dataSource.loadResource(IRI);
+        metrics.recordStage(Stage.RESOURCES, start);
+        metrics.addResourceLoad(new File(dataSource.getResourcePath(IRI)).length());
+
+        return resource;
+    }
+
+    @Override
+    public TextContent loadTextContent(String IRI)
+    {
+        long start = System.nanoTime();
+        TextContent content = dataSource.loadTextContent(IRI);
+        metrics.recordStage(Stage.TEXT, start);
+        if (content != null) {
+            metrics.addBytesIn(content.getByteCount());
+        }
+
+        return content;
+    }
+
+    @Override
+    public String getResourcePath(String IRI)
+    {
+        return dataSource.getResourcePath(IRI);
+    }
+
+    @Override
+    public String getTextContentPath(String IRI)
+    {
+        return dataSource.getTextContentPath(IRI);
+    }
+}
@@ -0,0 +1,126 @@
+import org.apache.jena.ontology.OntModel;
+import org.apache.jena.ontology.OntModelSpec;
+import org.apache.jena.rdf.model.*;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.RDFFormat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Read-only view of the BDRC ontology, loaded once per ontology file and
+ * shared by every RDFModel and RDFResource in the process.
+ *
+ * The parsed ontology is also saved next to the .owl file in RDF Thrift
+ * format, so later runs can skip the RDF/XML parse.
+ */
+public class Ontology {
+
+    private static final String CACHE_EXTENSION = ".trdf";
+    private static final String LABEL_LANGUAGE = "en";
+    private static final Map<String, Ontology> ontologies = new ConcurrentHashMap<>();
+
+    private final OntModel ontModel;
+    private final Map<String, String> labels;
+
+    private Ontology(Model model)
+    {
+        ontModel = ModelFactory.createOntologyModel(OntModelSpec.OWL_MEM, model);
+        labels = Collections.unmodifiableMap(getLabels(model));
+    }
+
+    /**
+     * @param ontologyPath Path of the ontology file, e.g. bdrc.owl
+     * @return The shared ontology for the file, loading it on first use.
+     */
+    public static Ontology forPath(String ontologyPath)
+    {
+        return ontologies.computeIfAbsent(ontologyPath, Ontology::load);
+    }
+
+    public OntModel getOntModel()
+    {
+        return ontModel;
+    }
+
+    /**
+     * @return The english rdfs:label of the IRI, or null if the ontology has none.
+     */
+    public String getLabel(String IRI)
+    {
+        return labels.get(IRI);
+    }
+
+    private static Ontology load(String ontologyPath)
+    {
+        Model model = ModelFactory.createDefaultModel();
+        File ontologyFile = new File(ontologyPath);
+        File cacheFile = new File(ontologyPath + CACHE_EXTENSION);
+
+        if (cacheFile.exists() && cacheFile.lastModified() >= ontologyFile.lastModified()) {
+            try {
+                RDFDataMgr.read(model, cacheFile.getPath(), Lang.RDFTHRIFT);
+                return new Ontology(model);
+            } catch (Exception e) {
+                System.out.println("Failed to read ontology cache " + cacheFile.getPath() + ": " + e);
+                model = ModelFactory.createDefaultModel();
+            }
+        }
+
+        model.read(ontologyPath);
+        saveCache(model, cacheFile);
+
+        return new Ontology(model);
+    }
+
+    private static void saveCache(Model model, File cacheFile)
+    {
+        File tempFile = new File(cacheFile.getPath() + ".tmp");
+        try {
+            try (OutputStream out = new FileOutputStream(tempFile)) {
+                RDFDataMgr.write(out, model, RDFFormat.RDF_THRIFT);
+            }
+            if (!tempFile.renameTo(cacheFile)) {
+                tempFile.delete();
+            }
+        } catch (Exception e) {
+            // The cache is only an optimisation, e.g. the data directory may be read-only.
+            tempFile.delete();
+        }
+    }
+
+    private static Map<String, String> getLabels(Model model)
+    {
+        Map<String, String> labels = new HashMap<>();
+        Map<String, String> regionalLabels = new HashMap<>();
+        StmtIterator statements = model.listStatements(null, model.getProperty(BDRCResource.RDFS + "label"), (RDFNode) null);
+        while (statements.hasNext()) {
+            Statement statement = statements.nextStatement();
+            if (!statement.getSubject().isURIResource() || !statement.getObject().isLiteral()) {
+                continue;
+            }
+
+            String IRI = statement.getSubject().getURI();
+            Literal label = statement.getLiteral();
+            String language = label.getLanguage().toLowerCase();
+            if (language.equals(LABEL_LANGUAGE)) {
+                labels.put(IRI, label.getString());
+            } else if (language.startsWith(LABEL_LANGUAGE + "-")) {
+                regionalLabels.putIfAbsent(IRI, label.getString());
+            }
+        }
+
+        // Same as OntResource.getLabel: an exact language match wins over e.g. en-US.
+        for (Map.Entry<String, String> entry : regionalLabels.entrySet()) {
+            labels.putIfAbsent(entry.getKey(), entry.getValue());
+        }
+
+        return labels;
+    }
+}
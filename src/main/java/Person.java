@@ -0,0 +1,26 @@
+/**
+ * The parts of a person resource the generators use, read once when the
+ * person is loaded.
+ */
+public class Person {
+
+    private static final String PRIMARY_NAME_TYPE = BDRCResource.CORE + "PersonPrimaryName";
+
+    final String IRI;
+    // The label of the first primary name, in the preferred language if it has one
+    final String primaryName;
+
+    Person(RDFResource person, String preferredLanguage)
+    {
+        IRI = person.getIRI();
+
+        String name = null;
+        for (RDFResource personName: person.getPropertyResources(BDRCResource.CORE + "personName")) {
+            if (PRIMARY_NAME_TYPE.equals(personName.getTypeIRI())) {
+                name = personName.getString(BDRCResource.RDFS + "label", preferredLanguage);
+                break;
+            }
+        }
+        primaryName = name;
+    }
+}
@@ -0,0 +1,273 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+class ProcessResult {
+    final String description;
+    final int exitCode;
+    final int attempts;
+    final boolean timedOut;
+    final String output;
+    // Time spent running the command, over every attempt
+    final long elapsedNanos;
+
+    ProcessResult(String description, int exitCode, int attempts, boolean timedOut, String output, long elapsedNanos)
+    {
+        this.description = description;
+        this.exitCode = exitCode;
+        this.attempts = attempts;
+        this.timedOut = timedOut;
+        this.output = output;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    boolean succeeded()
+    {
+        return !timedOut && exitCode == 0;
+    }
+}
+
+/**
+ * Keeps the last part of a process's output, read on its own thread so the
+ * process never blocks on a full pipe.
+ */
+class ProcessOutputDrainer extends Thread {
+    private static final int MAX_OUTPUT_LENGTH = 4096;
+
+    private final InputStream in;
+    private final byte[] tail = new byte[MAX_OUTPUT_LENGTH];
+    private int tailLength = 0;
+
+    ProcessOutputDrainer(InputStream in, String name)
+    {
+        super(name);
+        this.in = in;
+        setDaemon(true);
+    }
+
+    @Override
+    public void run()
+    {
+        byte[] buffer = new byte[8192];
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                append(buffer, read);
+            }
+        } catch (IOException e) {
+            // The process was destroyed
+        }
+    }
+
+    private synchronized void append(byte[] buffer, int length)
+    {
+        if (length >= tail.length) {
+            System.arraycopy(buffer, length - tail.length, tail, 0, tail.length);
+            tailLength = tail.length;
+            return;
+        }
+
+        int keep = Math.min(tailLength, tail.length - length);
+        System.arraycopy(tail, tailLength - keep, tail, 0, keep);
+        System.arraycopy(buffer, 0, tail, keep, length);
+        tailLength = keep + length;
+    }
+
+    synchronized String getOutput()
+    {
+        return new String(tail, 0, tailLength, StandardCharsets.UTF_8).trim();
+    }
+}
+
+/**
+ * Runs external conversions such as pandoc on their own bounded set of
+ * threads, separate from the markdown workers, so at most a fixed number of
+ * processes run at once.
+ *
+ * Commands are run directly rather than through a shell. Each run is waited
+ * for with a timeout, retried on failure, and its exit code and output
+ * reported. awaitCompletion only returns once every submitted command has
+ * finished.
+ */
+public class ProcessPool {
+
+    private final ExecutorService executor;
+    private final long timeoutSeconds;
+    private final int retries;
+    private final AtomicInteger succeeded = new AtomicInteger();
+    private final List<ProcessResult> failures = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * @param concurrency Maximum number of processes running at once.
+     * @param timeoutSeconds Time a process may run before it is killed.
+     * @param retries Number of times a failed or timed out command is run again.
+     */
+    ProcessPool(int concurrency, long timeoutSeconds, int retries)
+    {
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(Math.max(concurrency, 1), runnable -> {
+            Thread thread = new Thread(runnable, "process-pool-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.timeoutSeconds = timeoutSeconds;
+        this.retries = Math.max(retries, 0);
+    }
+
+    /**
+     * @param command The program and its arguments.
+     * @param description Used when reporting the result, e.g. the output file.
+     */
+    public Future<ProcessResult> submit(List<String> command, String description)
+    {
+        return submit(command, description, null);
+    }
+
+    /**
+     * @param listener Called with the result once the command has finished, or null.
+     */
+    public Future<ProcessResult> submit(List<String> command, String description, Consumer<ProcessResult> listener)
+    {
+        return executor.submit(() -> {
+            ProcessResult result = runWithRetries(command, description);
+            if (listener != null) {
+                listener.accept(result);
+            }
+            if (result.succeeded()) {
+                succeeded.incrementAndGet();
+            } else {
+                failures.add(result);
+                report(result);
+            }
+            return result;
+        });
+    }
+
+    /**
+     * Waits for every submitted command to finish. No commands can be submitted afterwards.
+     */
+    public void awaitCompletion()
+    {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            System.out.println("Interrupted waiting for external processes");
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getSucceededCount()
+    {
+        return succeeded.get();
+    }
+
+    public List<ProcessResult> getFailures()
+    {
+        synchronized (failures) {
+            return new ArrayList<>(failures);
+        }
+    }
+
+    public String getStatistics()
+    {
+        return "External processes: succeeded=" + succeeded.get() + ", failed=" + failures.size();
+    }
+
+    /**
+     * @return The path of the executable with the given name on the PATH, or null if there is none.
+     */
+    public static String findExecutable(String name)
+    {
+        String path = System.getenv("PATH");
+        if (path == null) {
+            return null;
+        }
+
+        for (String dir: path.split(File.pathSeparator)) {
+            if (dir.isEmpty()) {
+                continue;
+            }
+            File file = new File(dir, name);
+            if (file.isFile() && file.canExecute()) {
+                return file.getAbsolutePath();
+            }
+        }
+
+        return null;
+    }
+
+    private ProcessResult runWithRetries(List<String> command, String description)
+    {
+        long start = System.nanoTime();
+        ProcessResult result = null;
+        for (int attempt = 1; attempt <= retries + 1; attempt++) {
+            result = run(command, description, attempt);
+            if (result.succeeded() || Thread.currentThread().isInterrupted()) {
+                break;
+            }
+        }
+
+        return new ProcessResult(result.description, result.exitCode, result.attempts, result.timedOut, result.output, System.nanoTime() - start);
+    }
+
+    private ProcessResult run(List<String> command, String description, int attempt)
+    {
+        Process process;
+        try {
+            process = new ProcessBuilder(command)
+                    .redirectErrorStream(true)
+                    .redirectInput(ProcessBuilder.Redirect.from(new File(isWindows() ? "NUL" : "/dev/null")))
+                    .start();
+        } catch (IOException e) {
+            return new ProcessResult(description, -1, attempt, false, e.toString(), 0);
+        }
+
+        ProcessOutputDrainer drainer = new ProcessOutputDrainer(process.getInputStream(), Thread.currentThread().getName() + "-output");
+        drainer.start();
+
+        boolean finished;
+        try {
+            finished = process.waitFor(timeoutSeconds, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            process.destroyForcibly();
+            Thread.currentThread().interrupt();
+            return new ProcessResult(description, -1, attempt, false, "Interrupted", 0);
+        }
+
+        if (!finished) {
+            process.destroyForcibly();
+        }
+
+        try {
+            drainer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        int exitCode = finished ? process.exitValue() : -1;
+        return new ProcessResult(description, exitCode, attempt, !finished, drainer.getOutput(), 0);
+    }
+
+    private void report(ProcessResult result)
+    {
+        String reason = result.timedOut ? "timed out after " + timeoutSeconds + "s" : "exit code " + result.exitCode;
+        System.out.println("Failed " + result.description + " (" + reason + ", " + result.attempts + " attempts)");
+        if (!result.output.isEmpty()) {
+            System.out.println(result.output);
+        }
+    }
+
+    private static boolean isWindows()
+    {
+        return System.getProperty("os.name").toLowerCase().startsWith("windows");
+    }
+}
@@ -1,12 +1,9 @@
-import io.bdrc.ewtsconverter.EwtsConverter;
-import org.apache.jena.ontology.OntModel;
 import org.apache.jena.rdf.model.Literal;
 
 public class RDFLiteral implements RDFProperty {
 
     Literal literal;
-    OntModel ontModel;
-    private EwtsConverter wc;
+    Ontology ontology;
 
     static final String WYLIE_LANG_CODE = "bo-x-ewts";
 
@@ -16,32 +13,23 @@ public class RDFLiteral implements RDFProperty {
     }
 
     @Override
-    public OntModel getOntModel()
+    public Ontology getOntology()
     {
-        return ontModel;
+        return ontology;
     }
 
-    public RDFLiteral(Literal literal, OntModel ontModel)
+    public RDFLiteral(Literal literal, Ontology ontology)
     {
         this.literal = literal;
-        this.ontModel = ontModel;
+        this.ontology = ontology;
 
     }
 
-    private EwtsConverter getEwtsConverter()
-    {
-        if (wc == null) {
-            wc = new EwtsConverter();
-        }
-
-        return wc;
-    }
-
     public String getString()
     {
         if (language().equals(WYLIE_LANG_CODE)) {
             String wylie = literal.getString();
-            String tibetan = getEwtsConverter().toUnicode(wylie);
+            String tibetan = WylieConverter.toUnicode(wylie);
             return tibetan;
         } else {
             return literal.getString();
@@ -1,6 +1,4 @@
-import org.apache.jena.ontology.OntModelSpec;
 import org.apache.jena.rdf.model.Model;
-import org.apache.jena.ontology.OntModel;
 import org.apache.jena.rdf.model.ModelFactory;
 import org.apache.jena.rdf.model.Resource;
 
@@ -10,20 +8,28 @@ interface RDFProperty
     boolean isLiteral();
     RDFLiteral asLiteral();
     RDFResource asResource();
-    OntModel getOntModel();
+    Ontology getOntology();
 }
 
 public class RDFModel {
     private Model model;
-    private OntModel ontologyModel;
+    private Ontology ontology;
 
-    public RDFModel(String modelPath, String ontologyPath)
+    public RDFModel(String modelPath, Ontology ontology)
     {
         model = ModelFactory.createDefaultModel();
         model.read(modelPath);
 
-        ontologyModel = ModelFactory.createOntologyModel(OntModelSpec.OWL_MEM);
-        ontologyModel.read(ontologyPath);
+        this.ontology = ontology;
+    }
+
+    /**
+     * Wraps a model that has already been read, e.g. from a corpus snapshot.
+     */
+    public RDFModel(Model model, Ontology ontology)
+    {
+        this.model = model;
+        this.ontology = ontology;
     }
 
     public RDFResource getResource(String IRI)
@@ -34,7 +40,7 @@ public class RDFModel {
             return null;
         }
 
-        RDFResource rdfResource = new RDFResource(resource, ontologyModel);
+        RDFResource rdfResource = new RDFResource(resource, ontology);
 
         return rdfResource;
     }
@@ -1,25 +1,25 @@
-import org.apache.jena.ontology.OntModel;
 import org.apache.jena.rdf.model.*;
 
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.BiConsumer;
 
 public class RDFResource implements RDFProperty {
 
     private Resource resource;
     private Model model;
-    private OntModel ontModel;
+    private Ontology ontology;
 
     private static final String TIBETAN_LANG_CODE = "bo";
     private static final String WYLIE_LANG_CODE = "bo-x-ewts";
     static final String TYPE = "http://www.w3.org/1999/02/22-rdf-syntax-ns#type";
 
-    public RDFResource(Resource resource, OntModel ontModel)
+    public RDFResource(Resource resource, Ontology ontology)
     {
         this.resource = resource;
         model = resource.getModel();
-        this.ontModel = ontModel;
+        this.ontology = ontology;
     }
 
     @Override
@@ -29,9 +29,9 @@ public class RDFResource implements RDFProperty {
     }
 
     @Override
-    public OntModel getOntModel()
+    public Ontology getOntology()
     {
-        return ontModel;
+        return ontology;
     }
 
     public String getTypeIRI()
@@ -51,83 +51,101 @@ public class RDFResource implements RDFProperty {
 
     }
 
+    private RDFProperty toProperty(Statement statement)
+    {
+        if (statement.getObject().isLiteral()) {
+            return new RDFLiteral(statement.getLiteral(), ontology);
+        } else {
+            return new RDFResource(statement.getResource(), ontology);
+        }
+    }
+
     public List<RDFProperty> getAllProperties()
     {
         List<RDFProperty> properties = new ArrayList<>();
         StmtIterator statements = resource.listProperties();
         while(statements.hasNext()) {
-            Statement statement = statements.nextStatement();
-
-            RDFProperty property;
-            if (statement.getObject().isLiteral()) {
-                property = new RDFLiteral(statement.getLiteral(), ontModel);
-            } else {
-                property = new RDFResource(statement.getResource(), ontModel);
-            }
-
-            properties.add(property);
+            properties.add(toProperty(statements.nextStatement()));
         }
 
         return properties;
     }
 
-    public List<RDFProperty> getProperties(String IRI)
+    /**
+     * Passes every property of the resource, with its predicate IRI, to the
+     * visitor in a single pass over the resource's statements. Projections
+     * use this to read all the values they need at once.
+     */
+    public void forEachProperty(BiConsumer<String, RDFProperty> visitor)
     {
-        Property prop = property(IRI);
-        if (resource.hasProperty(prop)) {
-            List<RDFProperty> properties = new ArrayList<>();
-            StmtIterator statements = resource.listProperties(prop);
-            while(statements.hasNext()) {
-                Statement statement = statements.nextStatement();
-//                System.out.println(statement.getPredicate());
-                RDFProperty property;
-                if (statement.getObject().isLiteral()) {
-                    property = new RDFLiteral(statement.getLiteral(), ontModel);
-                } else {
-                    property = new RDFResource(statement.getResource(), ontModel);
-                }
+        StmtIterator statements = resource.listProperties();
+        while(statements.hasNext()) {
+            Statement statement = statements.nextStatement();
+            visitor.accept(statement.getPredicate().getURI(), toProperty(statement));
+        }
+    }
 
-                properties.add(property);
+    /**
+     * @return The values of the property, or null if the resource doesn't have it.
+     */
+    public List<RDFProperty> getProperties(String IRI)
+    {
+        List<RDFProperty> properties = null;
+        StmtIterator statements = resource.listProperties(property(IRI));
+        while(statements.hasNext()) {
+            if (properties == null) {
+                properties = new ArrayList<>();
             }
-
-            return properties;
+            properties.add(toProperty(statements.nextStatement()));
         }
 
-        return null;
+        return properties;
     }
 
     public List<RDFResource> getPropertyResources(String IRI)
     {
         List<RDFResource> resources = new ArrayList<>();
-        List<RDFProperty> properties = getProperties(IRI);
-        if (properties != null) {
-            for (RDFProperty property : properties) {
-                if (!property.isLiteral()) {
-                    resources.add(property.asResource());
-                }
+        StmtIterator statements = resource.listProperties(property(IRI));
+        while(statements.hasNext()) {
+            Statement statement = statements.nextStatement();
+            if (!statement.getObject().isLiteral()) {
+                resources.add(new RDFResource(statement.getResource(), ontology));
             }
         }
 
         return resources;
     }
 
+    /**
+     * @return The first resource value of the property, or null if it has none.
+     */
     public RDFResource getPropertyResource(String IRI)
     {
-        List<RDFResource> resources = getPropertyResources(IRI);
-        if (resources.size() > 0) {
-            return resources.get(0);
-        } else {
-            return null;
+        StmtIterator statements = resource.listProperties(property(IRI));
+        try {
+            while(statements.hasNext()) {
+                Statement statement = statements.nextStatement();
+                if (!statement.getObject().isLiteral()) {
+                    return new RDFResource(statement.getResource(), ontology);
+                }
+            }
+        } finally {
+            statements.close();
         }
+
+        return null;
     }
 
+    /**
+     * @throws NumberFormatException If the value isn't an integer.
+     */
     public Integer getInteger(String IRI)
     {
         String value = getString(IRI);
         if (value == null) {
             return null;
         } else {
-            return new Integer(value);
+            return Integer.valueOf(value);
         }
     }
 
@@ -136,32 +154,41 @@ public class RDFResource implements RDFProperty {
         return getString(IRI, null);
     }
 
+    /**
+     * @return The first literal value in the preferred language, or the last
+     * literal value if none is, or null if the property has no literal values.
+     */
     public String getString(String IRI, String preferredLanguage)
     {
-        if (hasLiteral(IRI)) {
-
-            List<RDFProperty> properties = getProperties(IRI);
-            RDFLiteral literal = null;
-            for (RDFProperty prop : properties) {
-                if (prop.isLiteral()) {
-                    literal = prop.asLiteral();
-                    if (preferredLanguage == null
-                        || isPreferredLanguage(literal.language(), preferredLanguage)
-                    ) {
-                        return literal.getString();
-                    }
+        RDFLiteral literal = getLiteral(resource.listProperties(property(IRI)), preferredLanguage);
+
+        return (literal != null) ? literal.getString() : null;
+    }
+
+    private RDFLiteral getLiteral(StmtIterator statements, String preferredLanguage)
+    {
+        Literal lastLiteral = null;
+        try {
+            while(statements.hasNext()) {
+                Statement statement = statements.nextStatement();
+                if (!statement.getObject().isLiteral()) {
+                    continue;
                 }
-            }
 
-            if (literal != null) {
-                return literal.getString();
+                Literal literal = statement.getLiteral();
+                if (preferredLanguage == null || isPreferredLanguage(literal.getLanguage(), preferredLanguage)) {
+                    return new RDFLiteral(literal, ontology);
+                }
+                lastLiteral = literal;
             }
+        } finally {
+            statements.close();
         }
 
-        return null;
+        return (lastLiteral != null) ? new RDFLiteral(lastLiteral, ontology) : null;
     }
 
-    private boolean isPreferredLanguage(String language, String preferredLanguage)
+    static boolean isPreferredLanguage(String language, String preferredLanguage)
     {
         if (language.equals(preferredLanguage)) {
             return true;
@@ -179,13 +206,15 @@ public class RDFResource implements RDFProperty {
 
     public boolean hasLiteral(String IRI)
     {
-        if (resource.hasProperty(property(IRI))) {
-            List<RDFProperty> props = getProperties(IRI);
-            for (RDFProperty prop : props) {
-                if (prop.isLiteral()) {
+        StmtIterator statements = resource.listProperties(property(IRI));
+        try {
+            while(statements.hasNext()) {
+                if (statements.nextStatement().getObject().isLiteral()) {
                     return true;
                 }
             }
+        } finally {
+            statements.close();
         }
 
         return false;
@@ -1,6 +1,3 @@
-import org.apache.jena.ontology.OntModel;
-import org.apache.jena.ontology.OntResource;
-
 import java.net.URI;
 
 public class RDFUtil {
@@ -25,12 +22,11 @@ public class RDFUtil {
         return name;
     }
 
-    public static String getOntologyLabel(OntModel ontModel, String IRI)
+    public static String getOntologyLabel(Ontology ontology, String IRI)
     {
-        OntResource propResource = ontModel.getOntResource(IRI);
-        String label = getReadableName(IRI);
-        if (propResource != null) {
-            label = propResource.getLabel("en");
+        String label = ontology.getLabel(IRI);
+        if (label == null) {
+            label = getReadableName(IRI);
         }
 
         return label;
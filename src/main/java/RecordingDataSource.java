@@ -0,0 +1,63 @@
+import java.util.*;
+
+/**
+ * DataSource decorator that records the files read while generating one
+ * item, so an incremental run can tell when the item's inputs have changed.
+ *
+ * Used by a single item at a time, in front of the shared data source, so
+ * resources served from the cache are recorded too.
+ */
+public class RecordingDataSource implements DataSource {
+
+    private final DataSource dataSource;
+    private final Set<String> inputPaths = Collections.synchronizedSet(new TreeSet<>());
+
+    public RecordingDataSource(DataSource dataSource)
+    {
+        this.dataSource = dataSource;
+    }
+
+    @Override
+    public RDFResource loadResource(String IRI)
+    {
+        inputPaths.add(dataSource.getResourcePath(IRI));
+        return dataSource.loadResource(IRI);
+    }
+
+    @Override
+    public TextContent loadTextContent(String IRI)
+    {
+        inputPaths.add(dataSource.getTextContentPath(IRI));
+        return dataSource.loadTextContent(IRI);
+    }
+
+    @Override
+    public String getResourcePath(String IRI)
+    {
+        return dataSource.getResourcePath(IRI);
+    }
+
+    @Override
+    public String getTextContentPath(String IRI)
+    {
+        return dataSource.getTextContentPath(IRI);
+    }
+
+    /**
+     * Adds files read for the item by an earlier run, whose outputs are reused.
+     */
+    public void addInputPaths(Collection<String> paths)
+    {
+        inputPaths.addAll(paths);
+    }
+
+    /**
+     * @return The files read so far, sorted.
+     */
+    public List<String> getInputPaths()
+    {
+        synchronized (inputPaths) {
+            return new ArrayList<>(inputPaths);
+        }
+    }
+}
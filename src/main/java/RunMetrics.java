@@ -0,0 +1,528 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The stages of generating a document that are timed. Stages can nest: the
+ * resources and text are loaded during the others, and a document's time
+ * covers all of its stages except pandoc, which runs after it.
+ */
+enum Stage {
+    RESOURCES("resources"),
+    TEXT("text"),
+    ITEM("item"),
+    SECTIONS("sections"),
+    MARKDOWN("markdown"),
+    COVER("cover"),
+    EPUB("epub"),
+    DOCX("docx"),
+    PANDOC("pandoc"),
+    DOCUMENT("document");
+
+    final String label;
+
+    Stage(String label)
+    {
+        this.label = label;
+    }
+}
+
+/**
+ * Latency histogram in the style of HdrHistogram: values are counted in
+ * buckets that double in width every 16 buckets, so any recorded value is
+ * within about 6% of the value reported for it, and recording is a single
+ * atomic increment.
+ */
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+
+    private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BUCKET_BITS + 2) * HALF_SUB_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long value)
+    {
+        value = Math.max(value, 0);
+        counts.incrementAndGet(bucket(value));
+        count.incrementAndGet();
+        total.addAndGet(value);
+        long currentMax;
+        while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)) {
+            // Another thread raised the maximum, try again
+        }
+    }
+
+    long getCount()
+    {
+        return count.get();
+    }
+
+    long getTotal()
+    {
+        return total.get();
+    }
+
+    long getMax()
+    {
+        return max.get();
+    }
+
+    long getMean()
+    {
+        long recorded = count.get();
+        return (recorded > 0) ? total.get() / recorded : 0;
+    }
+
+    /**
+     * @return The value that the given percentage of recorded values are at or below.
+     */
+    long getPercentile(double percentile)
+    {
+        long recorded = count.get();
+        if (recorded == 0) {
+            return 0;
+        }
+
+        long rank = Math.max((long) Math.ceil(percentile / 100 * recorded), 1);
+        long seen = 0;
+        for (int bucket = 0; bucket < counts.length(); bucket++) {
+            seen += counts.get(bucket);
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(bucket), max.get());
+            }
+        }
+
+        return max.get();
+    }
+
+    /**
+     * @return The count, total and maximum, then bucket:count for every
+     * bucket in use, separated by tabs, for add to read back.
+     */
+    String export()
+    {
+        StringBuilder buckets = new StringBuilder();
+        for (int bucket = 0; bucket < counts.length(); bucket++) {
+            long bucketCount = counts.get(bucket);
+            if (bucketCount > 0) {
+                buckets.append((buckets.length() > 0) ? "," : "").append(bucket).append(':').append(bucketCount);
+            }
+        }
+
+        return count.get() + "\t" + total.get() + "\t" + max.get() + "\t" + buckets;
+    }
+
+    /**
+     * Adds the values of an exported histogram, as if they had been recorded here.
+     */
+    void add(String exported)
+    {
+        String[] fields = exported.split("\t", -1);
+        count.addAndGet(Long.parseLong(fields[0]));
+        total.addAndGet(Long.parseLong(fields[1]));
+        long value = Long.parseLong(fields[2]);
+        long currentMax;
+        while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)) {
+            // Another thread raised the maximum, try again
+        }
+        if (fields.length > 3 && !fields[3].isEmpty()) {
+            for (String bucket: fields[3].split(",")) {
+                int colonIndex = bucket.indexOf(':');
+                counts.addAndGet(Integer.parseInt(bucket.substring(0, colonIndex)), Long.parseLong(bucket.substring(colonIndex + 1)));
+            }
+        }
+    }
+
+    private static int bucket(long value)
+    {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS + 1;
+        return shift * HALF_SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    private static long bucketUpperBound(int bucket)
+    {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+
+        int shift = bucket / HALF_SUB_BUCKETS - 1;
+        long subBucket = bucket % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
+
+/**
+ * What generating one item took: the time in each stage, the bytes read and
+ * written and the resources loaded. Conversions run after the item is done
+ * still add to it, so every field can be updated from any thread.
+ */
+class DocumentMetrics {
+    final String id;
+    private final AtomicLongArray stageNanos = new AtomicLongArray(Stage.values().length);
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicInteger resourceLoads = new AtomicInteger();
+    private final RunMetrics runMetrics;
+
+    DocumentMetrics(String id, RunMetrics runMetrics)
+    {
+        this.id = id;
+        this.runMetrics = runMetrics;
+    }
+
+    /**
+     * Adds the time since startNanos to the stage, and to the run's histogram of the stage.
+     */
+    void recordStage(Stage stage, long startNanos)
+    {
+        addStageNanos(stage, System.nanoTime() - startNanos);
+    }
+
+    void addStageNanos(Stage stage, long nanos)
+    {
+        stageNanos.addAndGet(stage.ordinal(), nanos);
+        runMetrics.getHistogram(stage).record(nanos);
+    }
+
+    void addResourceLoad(long bytes)
+    {
+        resourceLoads.incrementAndGet();
+        addBytesIn(bytes);
+    }
+
+    void addBytesIn(long bytes)
+    {
+        bytesIn.addAndGet(bytes);
+        runMetrics.bytesIn.addAndGet(bytes);
+    }
+
+    /**
+     * Adds the size of the file, if it was written.
+     */
+    void addOutputFile(String path)
+    {
+        long bytes = new File(path).length();
+        bytesOut.addAndGet(bytes);
+        runMetrics.bytesOut.addAndGet(bytes);
+    }
+
+    /**
+     * Sets the item's figures from a row of metrics.csv, without adding to
+     * the run's histograms, which are merged on their own.
+     */
+    void restore(String[] row)
+    {
+        bytesIn.set(Long.parseLong(row[1]));
+        bytesOut.set(Long.parseLong(row[2]));
+        resourceLoads.set(Integer.parseInt(row[3]));
+        for (Stage stage: Stage.values()) {
+            stageNanos.set(stage.ordinal(), Math.round(Double.parseDouble(row[4 + stage.ordinal()]) * 1e6));
+        }
+        runMetrics.bytesIn.addAndGet(bytesIn.get());
+        runMetrics.bytesOut.addAndGet(bytesOut.get());
+    }
+
+    long getStageNanos(Stage stage)
+    {
+        return stageNanos.get(stage.ordinal());
+    }
+
+    long getBytesIn()
+    {
+        return bytesIn.get();
+    }
+
+    long getBytesOut()
+    {
+        return bytesOut.get();
+    }
+
+    int getResourceLoads()
+    {
+        return resourceLoads.get();
+    }
+}
+
+/**
+ * Timing and throughput of a whole run: a latency histogram per stage, the
+ * metrics of every item, and the bytes read and written.
+ *
+ * A summary line is printed while the run goes on, and a report is written
+ * at the end: metrics.json with the stage histograms, run counters and every
+ * item, and metrics.csv with a row per item, to find the slow items and the
+ * slow stages.
+ */
+public class RunMetrics {
+
+    static final String JSON_REPORT_FILENAME = "metrics.json";
+    static final String CSV_REPORT_FILENAME = "metrics.csv";
+    private static final double[] PERCENTILES = {50, 90, 99};
+
+    private final long startNanos = System.nanoTime();
+    private final Map<Stage, LatencyHistogram> histograms = new EnumMap<>(Stage.class);
+    private final Queue<DocumentMetrics> documents = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger completed = new AtomicInteger();
+    final AtomicLong bytesIn = new AtomicLong();
+    final AtomicLong bytesOut = new AtomicLong();
+    private ScheduledExecutorService summaryExecutor;
+    // Set for the metrics of merged shards, which ran for as long as the slowest shard
+    private long mergedNanos = -1;
+
+    RunMetrics()
+    {
+        for (Stage stage: Stage.values()) {
+            histograms.put(stage, new LatencyHistogram());
+        }
+    }
+
+    LatencyHistogram getHistogram(Stage stage)
+    {
+        return histograms.get(stage);
+    }
+
+    DocumentMetrics startDocument(String id)
+    {
+        DocumentMetrics document = new DocumentMetrics(id, this);
+        documents.add(document);
+
+        return document;
+    }
+
+    void finishDocument(DocumentMetrics document, long startNanos)
+    {
+        document.recordStage(Stage.DOCUMENT, startNanos);
+        completed.incrementAndGet();
+    }
+
+    long getElapsedNanos()
+    {
+        return (mergedNanos >= 0) ? mergedNanos : System.nanoTime() - startNanos;
+    }
+
+    /**
+     * Writes each stage's histogram as a line of tab separated fields: the
+     * prefix, the stage, then the exported histogram.
+     */
+    void writeHistograms(Writer out, String prefix) throws IOException
+    {
+        for (Stage stage: Stage.values()) {
+            out.append(prefix).append("\t").append(stage.label).append("\t").append(histograms.get(stage).export()).append("\n");
+        }
+    }
+
+    /**
+     * Adds a shard's run to these metrics: its time, one of its stage
+     * histograms, or one of its metrics.csv rows.
+     */
+    void mergeElapsedNanos(long nanos)
+    {
+        mergedNanos = Math.max(mergedNanos, nanos);
+    }
+
+    void mergeHistogram(String stageLabel, String exported)
+    {
+        for (Stage stage: Stage.values()) {
+            if (stage.label.equals(stageLabel)) {
+                histograms.get(stage).add(exported);
+            }
+        }
+    }
+
+    void mergeDocument(String[] row)
+    {
+        DocumentMetrics document = new DocumentMetrics(row[0], this);
+        document.restore(row);
+        documents.add(document);
+        completed.incrementAndGet();
+    }
+
+    /**
+     * Prints the summary line every interval until stopLiveSummary.
+     */
+    void startLiveSummary(int intervalSeconds)
+    {
+        if (intervalSeconds <= 0) {
+            return;
+        }
+
+        summaryExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-summary");
+            thread.setDaemon(true);
+            return thread;
+        });
+        summaryExecutor.scheduleAtFixedRate(() -> System.out.println(getSummary()), intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    void stopLiveSummary()
+    {
+        if (summaryExecutor != null) {
+            summaryExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return One line with the items done, throughput, and the stage with the most time so far.
+     */
+    public String getSummary()
+    {
+        double seconds = getElapsedNanos() / 1e9;
+        int done = completed.get();
+        LatencyHistogram document = histograms.get(Stage.DOCUMENT);
+
+        Stage slowestStage = null;
+        for (Stage stage: Stage.values()) {
+            if (stage == Stage.DOCUMENT || stage == Stage.RESOURCES || stage == Stage.TEXT) {
+                continue;
+            }
+            if (slowestStage == null || histograms.get(stage).getTotal() > histograms.get(slowestStage).getTotal()) {
+                slowestStage = stage;
+            }
+        }
+
+        return String.format("Metrics: %d items in %.0fs (%.2f/s), %s in, %s out, item p50=%s p99=%s, most time in %s",
+                done, seconds, (seconds > 0) ? done / seconds : 0,
+                formatBytes(bytesIn.get()), formatBytes(bytesOut.get()),
+                formatNanos(document.getPercentile(50)), formatNanos(document.getPercentile(99)),
+                (slowestStage != null && histograms.get(slowestStage).getCount() > 0) ? slowestStage.label : "-");
+    }
+
+    /**
+     * Writes metrics.json and metrics.csv to the output directory.
+     *
+     * @param counters Run-wide counters to include, e.g. cache hits.
+     */
+    public void writeReport(String outputDir, Map<String, Long> counters)
+    {
+        outputDir = StringUtils.ensureTrailingSlash(outputDir);
+        new File(outputDir).mkdirs();
+        List<DocumentMetrics> sortedDocuments = new ArrayList<>(documents);
+        sortedDocuments.sort((left, right) -> Long.compare(right.getStageNanos(Stage.DOCUMENT), left.getStageNanos(Stage.DOCUMENT)));
+
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputDir + JSON_REPORT_FILENAME), StandardCharsets.UTF_8))) {
+            writeJson(out, sortedDocuments, counters);
+        } catch (IOException e) {
+            System.out.println("Failed to write metrics report " + outputDir + JSON_REPORT_FILENAME);
+            System.out.println(e);
+        }
+
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputDir + CSV_REPORT_FILENAME), StandardCharsets.UTF_8))) {
+            writeCsv(out, sortedDocuments);
+        } catch (IOException e) {
+            System.out.println("Failed to write metrics report " + outputDir + CSV_REPORT_FILENAME);
+            System.out.println(e);
+        }
+    }
+
+    private void writeJson(Writer out, List<DocumentMetrics> sortedDocuments, Map<String, Long> counters) throws IOException
+    {
+        out.append("{\n  \"seconds\": ").append(String.format(Locale.ROOT, "%.3f", getElapsedNanos() / 1e9))
+                .append(",\n  \"items\": ").append(String.valueOf(completed.get()))
+                .append(",\n  \"bytesIn\": ").append(String.valueOf(bytesIn.get()))
+                .append(",\n  \"bytesOut\": ").append(String.valueOf(bytesOut.get()))
+                .append(",\n  \"counters\": {");
+        boolean first = true;
+        for (Map.Entry<String, Long> counter: counters.entrySet()) {
+            out.append(first ? "\n" : ",\n").append("    ").append(jsonString(counter.getKey())).append(": ").append(String.valueOf(counter.getValue()));
+            first = false;
+        }
+
+        out.append("\n  },\n  \"stages\": {");
+        first = true;
+        for (Stage stage: Stage.values()) {
+            LatencyHistogram histogram = histograms.get(stage);
+            out.append(first ? "\n" : ",\n").append("    ").append(jsonString(stage.label))
+                    .append(": {\"count\": ").append(String.valueOf(histogram.getCount()))
+                    .append(", \"totalMs\": ").append(millis(histogram.getTotal()))
+                    .append(", \"meanMs\": ").append(millis(histogram.getMean()));
+            for (double percentile: PERCENTILES) {
+                out.append(", \"p").append(String.valueOf((int) percentile)).append("Ms\": ").append(millis(histogram.getPercentile(percentile)));
+            }
+            out.append(", \"maxMs\": ").append(millis(histogram.getMax())).append("}");
+            first = false;
+        }
+
+        out.append("\n  },\n  \"documents\": [");
+        first = true;
+        for (DocumentMetrics document: sortedDocuments) {
+            out.append(first ? "\n" : ",\n").append("    {\"id\": ").append(jsonString(document.id))
+                    .append(", \"bytesIn\": ").append(String.valueOf(document.getBytesIn()))
+                    .append(", \"bytesOut\": ").append(String.valueOf(document.getBytesOut()))
+                    .append(", \"resourceLoads\": ").append(String.valueOf(document.getResourceLoads()));
+            for (Stage stage: Stage.values()) {
+                out.append(", ").append(jsonString(stage.label + "Ms")).append(": ").append(millis(document.getStageNanos(stage)));
+            }
+            out.append("}");
+            first = false;
+        }
+        out.append("\n  ]\n}\n");
+    }
+
+    private void writeCsv(Writer out, List<DocumentMetrics> sortedDocuments) throws IOException
+    {
+        out.append("id,bytesIn,bytesOut,resourceLoads");
+        for (Stage stage: Stage.values()) {
+            out.append(",").append(stage.label).append("Ms");
+        }
+        out.append("\n");
+
+        for (DocumentMetrics document: sortedDocuments) {
+            out.append(document.id)
+                    .append(",").append(String.valueOf(document.getBytesIn()))
+                    .append(",").append(String.valueOf(document.getBytesOut()))
+                    .append(",").append(String.valueOf(document.getResourceLoads()));
+            for (Stage stage: Stage.values()) {
+                out.append(",").append(millis(document.getStageNanos(stage)));
+            }
+            out.append("\n");
+        }
+    }
+
+    private static String millis(long nanos)
+    {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    static String jsonString(String value)
+    {
+        StringBuilder json = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+
+        return json.append('"').toString();
+    }
+
+    private static String formatNanos(long nanos)
+    {
+        return (nanos >= 1_000_000_000L) ? String.format("%.1fs", nanos / 1e9) : String.format("%dms", nanos / 1_000_000);
+    }
+
+    private static String formatBytes(long bytes)
+    {
+        if (bytes >= 1L << 30) return String.format("%.1fGB", bytes / (double) (1L << 30));
+        if (bytes >= 1L << 20) return String.format("%.1fMB", bytes / (double) (1L << 20));
+        if (bytes >= 1L << 10) return String.format("%.1fKB", bytes / (double) (1L << 10));
+        return bytes + "B";
+    }
+}
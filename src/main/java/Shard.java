@@ -0,0 +1,521 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The items of a run and what became of each, with the run's counters and
+ * stage histograms, saved as results.txt in a shard's output directory so
+ * the shards can be merged once they are all done.
+ */
+class ShardResults {
+    static final String RESULTS_FILENAME = "results.txt";
+    static final String GENERATED = "generated";
+    static final String UP_TO_DATE = "up-to-date";
+    // Finished by the run before it was resumed
+    static final String RESUMED = "resumed";
+    // Stopped for going over its budget
+    static final String QUARANTINED = "quarantined";
+    static final String FAILED = "failed";
+    private static final String HEADER = "etext-pub-pipeline results";
+
+    private final Map<String, String> items = new TreeMap<>();
+    private final Map<String, Long> counters = new LinkedHashMap<>();
+    // Items found in the results of more than one merged shard
+    private final Set<String> duplicates = new TreeSet<>();
+
+    synchronized void recordItem(String id, String state)
+    {
+        items.put(id, state);
+    }
+
+    synchronized Map<String, String> getItems()
+    {
+        return new TreeMap<>(items);
+    }
+
+    Map<String, Long> getCounters()
+    {
+        return counters;
+    }
+
+    synchronized Set<String> getDuplicates()
+    {
+        return new TreeSet<>(duplicates);
+    }
+
+    void save(String outputDir, String shard, Map<String, Long> runCounters, RunMetrics runMetrics)
+    {
+        String resultsPath = StringUtils.ensureTrailingSlash(outputDir) + RESULTS_FILENAME;
+        File tempFile = new File(resultsPath + ".tmp");
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), StandardCharsets.UTF_8))) {
+            out.append(HEADER).append("\t").append(shard).append("\n");
+            out.append("nanos\t").append(String.valueOf(runMetrics.getElapsedNanos())).append("\n");
+            for (Map.Entry<String, Long> counter: runCounters.entrySet()) {
+                out.append("counter\t").append(counter.getKey()).append("\t").append(String.valueOf(counter.getValue())).append("\n");
+            }
+            runMetrics.writeHistograms(out, "histogram");
+            for (Map.Entry<String, String> item: getItems().entrySet()) {
+                out.append("item\t").append(item.getKey()).append("\t").append(item.getValue()).append("\n");
+            }
+        } catch (Exception e) {
+            System.out.println("Failed to write results " + resultsPath);
+            System.out.println(e);
+            tempFile.delete();
+            return;
+        }
+
+        new File(resultsPath).delete();
+        if (!tempFile.renameTo(new File(resultsPath))) {
+            System.out.println("Failed to write results " + resultsPath);
+        }
+    }
+
+    /**
+     * Adds a shard's results: its items, its counters, and its time and
+     * histograms to the merged metrics.
+     *
+     * @return Whether the shard has results.
+     */
+    boolean merge(String shardDir, RunMetrics runMetrics)
+    {
+        File resultsFile = new File(StringUtils.ensureTrailingSlash(shardDir) + RESULTS_FILENAME);
+        if (!resultsFile.exists()) {
+            return false;
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(resultsFile.toPath(), StandardCharsets.UTF_8)) {
+            String header = reader.readLine();
+            if (header == null || !header.startsWith(HEADER + "\t")) {
+                System.out.println("Not a results file: " + resultsFile);
+                return false;
+            }
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 3);
+                switch (fields[0]) {
+                    case "nanos":
+                        runMetrics.mergeElapsedNanos(Long.parseLong(fields[1]));
+                        break;
+                    case "counter":
+                        counters.merge(fields[1], Long.parseLong(fields[2]), Long::sum);
+                        break;
+                    case "histogram":
+                        runMetrics.mergeHistogram(fields[1], fields[2]);
+                        break;
+                    case "item":
+                        synchronized (this) {
+                            if (items.containsKey(fields[1])) {
+                                duplicates.add(fields[1]);
+                            }
+                        }
+                        recordItem(fields[1], fields[2]);
+                        break;
+                }
+            }
+        } catch (Exception e) {
+            System.out.println("Failed to read results " + resultsFile);
+            System.out.println(e);
+            return false;
+        }
+
+        try (Stream<String> lines = Files.lines(Paths.get(StringUtils.ensureTrailingSlash(shardDir) + RunMetrics.CSV_REPORT_FILENAME), StandardCharsets.UTF_8)) {
+            lines.skip(1).filter(line -> !line.isEmpty()).forEach(line -> runMetrics.mergeDocument(line.split(",")));
+        } catch (IOException e) {
+            System.out.println("Failed to read metrics of " + shardDir);
+            System.out.println(e);
+        }
+
+        return true;
+    }
+}
+
+/**
+ * One item's place in the split of a sharded run.
+ */
+class ShardPlanItem {
+    // 1 to the number of shards
+    final int shard;
+    final long cost;
+
+    ShardPlanItem(int shard, long cost)
+    {
+        this.shard = shard;
+        this.cost = cost;
+    }
+}
+
+/**
+ * One of the parts a corpus run is split into, so several machines sharing
+ * the data and output directories can each generate a part, with nothing
+ * coordinating them.
+ *
+ * The split is worked out once, by the first machine to start: the items
+ * are placed on a ring by a hash of their id, and the ring is cut into arcs
+ * of equal estimated cost, one per shard. It is saved as shards.txt next to
+ * the shard directories, and every other machine reads it from there, so
+ * machines that would estimate the costs differently, e.g. after an edit or
+ * a failed load, still agree on every item's shard. Items added after the
+ * split was saved are given a shard by their place on the ring alone.
+ */
+class Shard {
+    static final String PLAN_FILENAME = "shards.txt";
+    private static final Pattern SHARD_DIR_PATTERN = Pattern.compile("shard-(\\d+)-of-(\\d+)");
+    private static final String PLAN_HEADER = "etext-pub-pipeline shards";
+
+    // 1 to count
+    final int index;
+    final int count;
+
+    Shard(int index, int count)
+    {
+        this.index = index;
+        this.count = count;
+    }
+
+    /**
+     * @param shard The shard as k/N, with k from 1 to N.
+     * @return The shard, or null if it isn't valid.
+     */
+    static Shard parse(String shard)
+    {
+        Matcher matcher = Pattern.compile("(\\d+)/(\\d+)").matcher(shard.trim());
+        if (!matcher.matches()) {
+            return null;
+        }
+
+        int index = Integer.parseInt(matcher.group(1));
+        int count = Integer.parseInt(matcher.group(2));
+        if (count < 1 || index < 1 || index > count) {
+            return null;
+        }
+
+        return new Shard(index, count);
+    }
+
+    /**
+     * @return The name of the shard's directory in the output directory.
+     */
+    String getDirName()
+    {
+        return "shard-" + index + "-of-" + count;
+    }
+
+    @Override
+    public String toString()
+    {
+        return index + "/" + count;
+    }
+
+    /**
+     * Picks this shard's items from the split saved next to the shard
+     * directories, saving the split first if no shard has yet.
+     *
+     * @param shardDir The shard's output directory.
+     * @return The estimated cost of each of the shard's items, or null if
+     * the saved split is for another number of shards or can't be read.
+     */
+    Map<String, Long> select(List<String> ids, DataSource dataSource, String shardDir)
+    {
+        String planPath = StringUtils.ensureTrailingSlash(new File(shardDir).getAbsoluteFile().getParent()) + PLAN_FILENAME;
+        if (!new File(planPath).exists()) {
+            savePlan(ids, dataSource, planPath);
+        }
+
+        Map<String, ShardPlanItem> plan = readPlan(planPath);
+        if (plan == null) {
+            return null;
+        }
+
+        Map<String, Long> selected = new LinkedHashMap<>();
+        int unplanned = 0;
+        for (String id: ids) {
+            ShardPlanItem planItem = plan.get(id);
+            if (planItem == null) {
+                unplanned++;
+                if (Long.remainderUnsigned(ringPosition(id), count) == index - 1) {
+                    selected.put(id, 0L);
+                }
+            } else if (planItem.shard == index) {
+                selected.put(id, planItem.cost);
+            }
+        }
+        if (unplanned > 0) {
+            System.out.println("Shard " + this + ": " + unplanned + " items aren't in " + planPath + ", they are split by their id");
+        }
+
+        return selected;
+    }
+
+    /**
+     * Estimates the cost of every item, as the scheduler does, and saves
+     * each item's shard. Only the first shard to save its split keeps it.
+     */
+    private void savePlan(List<String> ids, DataSource dataSource, String planPath)
+    {
+        Map<String, Long> costs = ids.parallelStream()
+                .collect(Collectors.toConcurrentMap(id -> id, id -> ItemScheduler.estimateCost(id, dataSource)));
+
+        List<String> ring = new ArrayList<>(ids);
+        Map<String, Long> positions = new HashMap<>();
+        for (String id: ring) {
+            positions.put(id, ringPosition(id));
+        }
+        ring.sort(Comparator.comparingLong((String id) -> positions.get(id)).thenComparing(id -> id));
+
+        long totalCost = 0;
+        for (String id: ring) {
+            totalCost += costs.get(id);
+        }
+
+        Path tempPath = Paths.get(planPath + "." + index + ".tmp");
+        try (Writer out = Files.newBufferedWriter(tempPath, StandardCharsets.UTF_8)) {
+            out.append(PLAN_HEADER).append("\t").append(String.valueOf(count)).append("\n");
+            // Each item goes to the shard whose arc its middle falls in
+            long cumulativeCost = 0;
+            for (String id: ring) {
+                long cost = costs.get(id);
+                double middle = cumulativeCost + cost / 2.0;
+                int shard = (int) Math.min(count - 1, Math.floor(middle * count / Math.max(totalCost, 1)));
+                out.append("item\t").append(id).append("\t").append(String.valueOf(shard + 1)).append("\t").append(String.valueOf(cost)).append("\n");
+                cumulativeCost += cost;
+            }
+        } catch (IOException e) {
+            System.out.println("Failed to write shard split " + tempPath);
+            System.out.println(e);
+            return;
+        }
+
+        // Linking fails if another shard saved its split first
+        try {
+            try {
+                Files.createLink(Paths.get(planPath), tempPath);
+            } catch (UnsupportedOperationException e) {
+                Files.move(tempPath, Paths.get(planPath));
+            }
+        } catch (FileAlreadyExistsException e) {
+            // Another shard's split is used
+        } catch (IOException e) {
+            System.out.println("Failed to write shard split " + planPath);
+            System.out.println(e);
+        } finally {
+            new File(tempPath.toString()).delete();
+        }
+    }
+
+    /**
+     * @return Each item of the saved split, or null if it is for another
+     * number of shards or can't be read.
+     */
+    private Map<String, ShardPlanItem> readPlan(String planPath)
+    {
+        Map<String, ShardPlanItem> plan = new HashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(planPath), StandardCharsets.UTF_8)) {
+            String header = reader.readLine();
+            if (header == null || !header.equals(PLAN_HEADER + "\t" + count)) {
+                System.out.println("Error: " + planPath + " is the split of another run, remove it to split the items again");
+                return null;
+            }
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length == 4 && fields[0].equals("item")) {
+                    plan.put(fields[1], new ShardPlanItem(Integer.parseInt(fields[2]), Long.parseLong(fields[3])));
+                }
+            }
+        } catch (Exception e) {
+            System.out.println("Failed to read shard split " + planPath);
+            System.out.println(e);
+            return null;
+        }
+
+        return plan;
+    }
+
+    /**
+     * @return The ids of the items in the split saved in the output directory, or null if there is none.
+     */
+    private static Set<String> readPlanIds(String outputDir)
+    {
+        File planFile = new File(outputDir + PLAN_FILENAME);
+        if (!planFile.exists()) {
+            return null;
+        }
+
+        Set<String> ids = new TreeSet<>();
+        try (Stream<String> lines = Files.lines(planFile.toPath(), StandardCharsets.UTF_8)) {
+            lines.filter(line -> line.startsWith("item\t")).forEach(line -> ids.add(line.split("\t")[1]));
+        } catch (IOException e) {
+            System.out.println("Failed to read shard split " + planFile);
+            System.out.println(e);
+            return null;
+        }
+
+        return ids;
+    }
+
+    /**
+     * @return The first 8 bytes of the MD5 of the id, as an unsigned position on the ring.
+     */
+    private static long ringPosition(String id)
+    {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(id.getBytes(StandardCharsets.UTF_8));
+            long position = 0;
+            for (int i = 0; i < 8; i++) {
+                position = (position << 8) | (digest[i] & 0xff);
+            }
+            return position ^ Long.MIN_VALUE;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Merges the shard directories in the output directory into the target
+     * directory: the generated files are linked into it, or copied where
+     * links aren't possible, and the manifests, metrics, results and
+     * quarantine reports are combined.
+     */
+    static void merge(String outputDir, String targetDir)
+    {
+        outputDir = StringUtils.ensureTrailingSlash(outputDir);
+        targetDir = StringUtils.ensureTrailingSlash(targetDir);
+
+        Map<Integer, String> shardDirs = new TreeMap<>();
+        int shardCount = -1;
+        File[] files = new File(outputDir).listFiles();
+        for (File file: (files != null) ? files : new File[0]) {
+            Matcher matcher = SHARD_DIR_PATTERN.matcher(file.getName());
+            if (!file.isDirectory() || !matcher.matches()) {
+                continue;
+            }
+            int count = Integer.parseInt(matcher.group(2));
+            if (shardCount != -1 && count != shardCount) {
+                System.out.println("Error: " + outputDir + " has shards of runs split in " + shardCount + " and in " + count);
+                return;
+            }
+            shardCount = count;
+            shardDirs.put(Integer.parseInt(matcher.group(1)), StringUtils.ensureTrailingSlash(file.getPath()));
+        }
+
+        if (shardDirs.isEmpty()) {
+            System.out.println("Error: No shard directories in " + outputDir);
+            return;
+        }
+        for (int index = 1; index <= shardCount; index++) {
+            if (!shardDirs.containsKey(index)) {
+                System.out.println("Warning: Shard " + index + "/" + shardCount + " is missing, its items won't be in the merged output");
+            }
+        }
+
+        new File(targetDir).mkdirs();
+        boolean complete = shardDirs.size() == shardCount;
+        RunMetrics runMetrics = new RunMetrics();
+        ShardResults results = new ShardResults();
+        QuarantineReport quarantine = new QuarantineReport();
+        int linked = 0;
+        for (Map.Entry<Integer, String> shardDir: shardDirs.entrySet()) {
+            if (!results.merge(shardDir.getValue(), runMetrics)) {
+                System.out.println("Warning: Shard " + shardDir.getKey() + "/" + shardCount + " has no results, it may not have finished");
+                complete = false;
+            }
+            quarantine.merge(shardDir.getValue());
+            linked += linkFiles(shardDir.getValue(), targetDir);
+        }
+
+        checkCoverage(outputDir, results, complete);
+
+        BuildManifest.merge(new ArrayList<>(shardDirs.values()), targetDir);
+        runMetrics.writeReport(targetDir, results.getCounters());
+        quarantine.save(targetDir);
+        results.save(targetDir, "merged " + shardDirs.size() + "/" + shardCount, results.getCounters(), runMetrics);
+
+        Map<String, Long> states = results.getItems().values().stream()
+                .collect(Collectors.groupingBy(state -> state, TreeMap::new, Collectors.counting()));
+        System.out.println("Merged " + shardDirs.size() + " shards into " + targetDir + ": " + linked + " files, items " + states);
+    }
+
+    /**
+     * Warns about items more than one shard generated, and, when every shard
+     * has results, about items of the split that no shard did.
+     */
+    private static void checkCoverage(String outputDir, ShardResults results, boolean complete)
+    {
+        Set<String> duplicates = results.getDuplicates();
+        if (!duplicates.isEmpty()) {
+            System.out.println("Warning: " + duplicates.size() + " items are in more than one shard: " + String.join(", ", duplicates));
+        }
+
+        Set<String> planIds = readPlanIds(outputDir);
+        if (planIds == null) {
+            System.out.println("Warning: No " + PLAN_FILENAME + " in " + outputDir + ", can't check that every item is in a shard");
+            return;
+        }
+        if (complete) {
+            planIds.removeAll(results.getItems().keySet());
+            if (!planIds.isEmpty()) {
+                System.out.println("Warning: " + planIds.size() + " items are in no shard: " + String.join(", ", planIds));
+            }
+        }
+    }
+
+    /**
+     * Links every generated file of the shard into the same place under the
+     * target directory, leaving out the shard's own manifest, journal and reports.
+     *
+     * @return The number of files linked or copied.
+     */
+    private static int linkFiles(String shardDir, String targetDir)
+    {
+        Path shardPath = Paths.get(shardDir);
+        Set<String> shardFiles = new HashSet<>(Arrays.asList(
+                BuildManifest.MANIFEST_FILENAME, RunMetrics.JSON_REPORT_FILENAME, RunMetrics.CSV_REPORT_FILENAME, ShardResults.RESULTS_FILENAME,
+                QuarantineReport.QUARANTINE_FILENAME, CheckpointJournal.JOURNAL_FILENAME));
+
+        List<Path> paths;
+        try (Stream<Path> walk = Files.walk(shardPath)) {
+            paths = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+        } catch (IOException e) {
+            System.out.println("Failed to list " + shardDir);
+            System.out.println(e);
+            return 0;
+        }
+
+        int linked = 0;
+        for (Path path: paths) {
+            Path relativePath = shardPath.relativize(path);
+            if (relativePath.getNameCount() == 1 && (shardFiles.contains(relativePath.toString()) || relativePath.toString().endsWith(".tmp"))) {
+                continue;
+            }
+
+            Path target = Paths.get(targetDir).resolve(relativePath.toString());
+            try {
+                Files.createDirectories(target.getParent());
+                Files.deleteIfExists(target);
+                try {
+                    Files.createLink(target, path);
+                } catch (IOException | UnsupportedOperationException e) {
+                    Files.copy(path, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+                linked++;
+            } catch (IOException e) {
+                System.out.println("Failed to merge " + path);
+                System.out.println(e);
+            }
+        }
+
+        return linked;
+    }
+}
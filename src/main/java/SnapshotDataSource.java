@@ -0,0 +1,84 @@
+import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * DataSource that reads resources from a compiled corpus snapshot instead of
+ * parsing their Turtle.
+ *
+ * A resource whose .ttl file has changed size or modification time since the
+ * snapshot was compiled, or that isn't in the snapshot, is read from the file
+ * instead, so a stale snapshot is slower but never wrong. Text content is
+ * always read from the files.
+ */
+public class SnapshotDataSource implements DataSource {
+
+    private final CorpusSnapshot snapshot;
+    private final FileDataSource fileDataSource;
+    private final String dataPath;
+    private final AtomicLong snapshotLoads = new AtomicLong();
+    private final AtomicLong staleLoads = new AtomicLong();
+    private final AtomicLong missingLoads = new AtomicLong();
+
+    /**
+     * @param dataPath Directory data is stored - must end with a slash.
+     * @param fileDataSource Resources are read from it when the snapshot doesn't have them, or they are stale.
+     */
+    public SnapshotDataSource(CorpusSnapshot snapshot, String dataPath, FileDataSource fileDataSource)
+    {
+        this.snapshot = snapshot;
+        this.dataPath = dataPath;
+        this.fileDataSource = fileDataSource;
+    }
+
+    @Override
+    public RDFResource loadResource(String IRI)
+    {
+        SnapshotEntry entry = snapshot.getEntry(RDFUtil.getId(IRI));
+        if (entry == null) {
+            missingLoads.incrementAndGet();
+            return fileDataSource.loadResource(IRI);
+        }
+
+        File sourceFile = new File(dataPath + entry.sourcePath);
+        if (sourceFile.length() != entry.sourceSize || sourceFile.lastModified() != entry.sourceModified) {
+            staleLoads.incrementAndGet();
+            return fileDataSource.loadResource(IRI);
+        }
+
+        snapshotLoads.incrementAndGet();
+        RDFModel model = new RDFModel(snapshot.readModel(entry), fileDataSource.getOntology());
+
+        return model.getResource(IRI);
+    }
+
+    @Override
+    public TextContent loadTextContent(String IRI)
+    {
+        return fileDataSource.loadTextContent(IRI);
+    }
+
+    @Override
+    public String getResourcePath(String IRI)
+    {
+        return fileDataSource.getResourcePath(IRI);
+    }
+
+    @Override
+    public String getTextContentPath(String IRI)
+    {
+        return fileDataSource.getTextContentPath(IRI);
+    }
+
+    public String getStatistics()
+    {
+        String statistics = "Corpus snapshot: " + snapshotLoads.get() + " resources read from " + snapshot.size() + " compiled";
+        if (staleLoads.get() > 0) {
+            statistics += ", " + staleLoads.get() + " stale, read from source (run compile again)";
+        }
+        if (missingLoads.get() > 0) {
+            statistics += ", " + missingLoads.get() + " not compiled, read from source";
+        }
+
+        return statistics;
+    }
+}
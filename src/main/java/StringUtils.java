@@ -1,5 +1,8 @@
 import java.awt.*;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
@@ -184,6 +187,52 @@ class StringUtils {
         return path.endsWith("/") ? path : path + "/";
     }
 
+    /**
+     * Writes the characters escaped for use in XML text and attribute values.
+     * Control characters that aren't allowed in XML 1.0 are dropped.
+     */
+    public static void writeXmlEscaped(Writer out, CharSequence text, int start, int end) throws IOException
+    {
+        int runStart = start;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            String replacement;
+            switch (c) {
+                case '<': replacement = "&lt;"; break;
+                case '>': replacement = "&gt;"; break;
+                case '&': replacement = "&amp;"; break;
+                case '"': replacement = "&quot;"; break;
+                case '\t': case '\n': case '\r': continue;
+                default:
+                    if (c < 0x20 || c == 0xFFFE || c == 0xFFFF) {
+                        replacement = "";
+                    } else {
+                        continue;
+                    }
+            }
+            out.append(text, runStart, i).append(replacement);
+            runStart = i + 1;
+        }
+        out.append(text, runStart, end);
+    }
+
+    public static void writeXmlEscaped(Writer out, CharSequence text) throws IOException
+    {
+        writeXmlEscaped(out, text, 0, text.length());
+    }
+
+    public static String escapeXml(CharSequence text)
+    {
+        StringWriter out = new StringWriter(text.length() + 16);
+        try {
+            writeXmlEscaped(out, text);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        return out.toString();
+    }
+
     public static String getFileText(String textContentPath)
     {
         List<String> textContentLines;
@@ -0,0 +1,197 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+class TermsInline {
+    enum Type { TEXT, LINK, IMAGE }
+
+    Type type;
+    String text;
+    String target;
+    String cssClass;
+    int width;
+    int height;
+
+    TermsInline(Type type, String text, String target)
+    {
+        this.type = type;
+        this.text = text;
+        this.target = target;
+    }
+}
+
+class TermsBlock {
+    enum Type { HEADING, DIV_START, DIV_END, PARAGRAPH }
+
+    Type type;
+    int level;
+    String cssClass;
+    List<TermsInline> inlines = new ArrayList<>();
+
+    TermsBlock(Type type)
+    {
+        this.type = type;
+    }
+}
+
+/**
+ * The terms of use, parsed from terms.md for the document writers that don't
+ * go through pandoc.
+ *
+ * Only the markdown terms.md uses is supported: headings with a class, div
+ * tags on their own line, paragraphs, links, autolinks and images with a
+ * class and a size.
+ */
+class Terms {
+
+    private static final Pattern HEADING_PATTERN = Pattern.compile("^(#{1,6})\\s+(.*?)\\s*(\\{([^}]*)\\})?$");
+    private static final Pattern DIV_START_PATTERN = Pattern.compile("^<div(\\s+class=\"([^\"]*)\")?\\s*>$");
+    private static final Pattern INLINE_PATTERN = Pattern.compile(
+            "!\\[([^\\]]*)\\]\\(([^)]+)\\)(\\{([^}]*)\\})?"  // image
+            + "|\\[([^\\]]*)\\]\\(([^)]+)\\)"               // link
+            + "|<((?:https?://|mailto:)[^>]+)>"              // autolink
+    );
+
+    final List<TermsBlock> blocks;
+
+    private Terms(List<TermsBlock> blocks)
+    {
+        this.blocks = Collections.unmodifiableList(blocks);
+    }
+
+    static Terms parse(String markdown)
+    {
+        List<TermsBlock> blocks = new ArrayList<>();
+        if (markdown == null) {
+            return new Terms(blocks);
+        }
+
+        StringBuilder paragraph = new StringBuilder();
+        for (String line: StringUtils.splitIntoLines(markdown)) {
+            String trimmedLine = line.trim();
+            Matcher headingMatcher = HEADING_PATTERN.matcher(trimmedLine);
+            Matcher divStartMatcher = DIV_START_PATTERN.matcher(trimmedLine);
+
+            if (trimmedLine.isEmpty()) {
+                addParagraph(blocks, paragraph);
+            } else if (headingMatcher.matches()) {
+                addParagraph(blocks, paragraph);
+                TermsBlock heading = new TermsBlock(TermsBlock.Type.HEADING);
+                heading.level = headingMatcher.group(1).length();
+                heading.cssClass = getClass(headingMatcher.group(4));
+                heading.inlines = parseInlines(headingMatcher.group(2));
+                blocks.add(heading);
+            } else if (divStartMatcher.matches()) {
+                addParagraph(blocks, paragraph);
+                TermsBlock div = new TermsBlock(TermsBlock.Type.DIV_START);
+                div.cssClass = divStartMatcher.group(2);
+                blocks.add(div);
+            } else if (trimmedLine.equals("</div>")) {
+                addParagraph(blocks, paragraph);
+                blocks.add(new TermsBlock(TermsBlock.Type.DIV_END));
+            } else {
+                if (paragraph.length() > 0) {
+                    paragraph.append("\n");
+                }
+                paragraph.append(trimmedLine);
+            }
+        }
+        addParagraph(blocks, paragraph);
+
+        return new Terms(blocks);
+    }
+
+    private static void addParagraph(List<TermsBlock> blocks, StringBuilder paragraph)
+    {
+        if (paragraph.length() == 0) {
+            return;
+        }
+
+        TermsBlock block = new TermsBlock(TermsBlock.Type.PARAGRAPH);
+        block.inlines = parseInlines(paragraph.toString());
+        blocks.add(block);
+        paragraph.setLength(0);
+    }
+
+    private static List<TermsInline> parseInlines(String text)
+    {
+        List<TermsInline> inlines = new ArrayList<>();
+        Matcher matcher = INLINE_PATTERN.matcher(text);
+        int textStart = 0;
+        while (matcher.find()) {
+            if (matcher.start() > textStart) {
+                inlines.add(new TermsInline(TermsInline.Type.TEXT, text.substring(textStart, matcher.start()), null));
+            }
+
+            if (matcher.group(2) != null) {
+                TermsInline image = new TermsInline(TermsInline.Type.IMAGE, matcher.group(1), matcher.group(2));
+                setImageAttributes(image, matcher.group(4));
+                inlines.add(image);
+            } else if (matcher.group(6) != null) {
+                inlines.add(new TermsInline(TermsInline.Type.LINK, matcher.group(5), matcher.group(6)));
+            } else {
+                inlines.add(new TermsInline(TermsInline.Type.LINK, matcher.group(7), matcher.group(7)));
+            }
+            textStart = matcher.end();
+        }
+
+        if (textStart < text.length()) {
+            inlines.add(new TermsInline(TermsInline.Type.TEXT, text.substring(textStart), null));
+        }
+
+        return inlines;
+    }
+
+    private static void setImageAttributes(TermsInline image, String attributes)
+    {
+        if (attributes == null) {
+            return;
+        }
+
+        image.cssClass = getClass(attributes);
+        for (String attribute: attributes.trim().split("\\s+")) {
+            String[] keyValue = attribute.split("=", 2);
+            if (keyValue.length != 2) continue;
+            try {
+                if (keyValue[0].equals("width")) {
+                    image.width = Integer.parseInt(keyValue[1]);
+                } else if (keyValue[0].equals("height")) {
+                    image.height = Integer.parseInt(keyValue[1]);
+                }
+            } catch (NumberFormatException e) {}
+        }
+    }
+
+    private static String getClass(String attributes)
+    {
+        if (attributes == null) {
+            return null;
+        }
+
+        List<String> classes = new ArrayList<>();
+        for (String attribute: attributes.trim().split("\\s+")) {
+            if (attribute.startsWith(".") && attribute.length() > 1) {
+                classes.add(attribute.substring(1));
+            }
+        }
+
+        return classes.isEmpty() ? null : String.join(" ", classes);
+    }
+
+    /**
+     * @return The text of the inlines, e.g. for a heading in a table of contents.
+     */
+    static String getPlainText(List<TermsInline> inlines)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (TermsInline inline: inlines) {
+            if (inline.type != TermsInline.Type.IMAGE) {
+                sb.append(inline.text);
+            }
+        }
+
+        return sb.toString();
+    }
+}
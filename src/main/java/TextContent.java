@@ -0,0 +1,175 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * The lines of an etext content file, read through a memory-mapped buffer.
+ *
+ * The line boundaries are found once when the file is opened, and a line is
+ * only decoded from UTF-8 when it is asked for, so a volume's text isn't
+ * held on the heap as well as being mapped. Lines end at \n, \r or \r\n and
+ * a final line ending doesn't start another line, as with Files.readAllLines.
+ *
+ * Malformed UTF-8 is decoded as replacement characters.
+ */
+public class TextContent {
+
+    private final ByteBuffer buffer;
+    private final int[] lineStarts;
+    private final int[] lineEnds;
+    private final int lineCount;
+
+    TextContent(ByteBuffer buffer)
+    {
+        this.buffer = buffer;
+
+        int capacity = 16;
+        int[] starts = new int[capacity];
+        int[] ends = new int[capacity];
+        int count = 0;
+        int limit = buffer.limit();
+        int lineStart = 0;
+        int i = 0;
+        while (i < limit) {
+            byte b = buffer.get(i);
+            if (b != '\n' && b != '\r') {
+                i++;
+                continue;
+            }
+
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+            }
+            starts[count] = lineStart;
+            ends[count] = i;
+            count++;
+
+            i += (b == '\r' && i + 1 < limit && buffer.get(i + 1) == '\n') ? 2 : 1;
+            lineStart = i;
+        }
+        if (lineStart < limit) {
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count + 1);
+                ends = Arrays.copyOf(ends, count + 1);
+            }
+            starts[count] = lineStart;
+            ends[count] = limit;
+            count++;
+        }
+
+        this.lineStarts = starts;
+        this.lineEnds = ends;
+        this.lineCount = count;
+    }
+
+    /**
+     * Maps the file. It can be closed, or even deleted, once this returns.
+     */
+    public static TextContent map(String path) throws IOException
+    {
+        try (RandomAccessFile file = new RandomAccessFile(path, "r");
+             FileChannel channel = file.getChannel()) {
+            return new TextContent(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * @return The size of the file.
+     */
+    public int getByteCount()
+    {
+        return buffer.limit();
+    }
+
+    public int getLineCount()
+    {
+        return lineCount;
+    }
+
+    /**
+     * Counts the chars of the lines joined with \n from the UTF-8 lead
+     * bytes, without decoding them. Exact for well-formed UTF-8; malformed
+     * bytes may decode to more.
+     */
+    public int estimateCharCount()
+    {
+        int count = 0;
+        for (int line = 0; line < lineCount; line++) {
+            for (int i = lineStarts[line]; i < lineEnds[line]; i++) {
+                byte b = buffer.get(i);
+                if ((b & 0xC0) != 0x80) {
+                    // Four byte sequences decode to a surrogate pair
+                    count += ((b & 0xF8) == 0xF0) ? 2 : 1;
+                }
+            }
+            count++;
+        }
+
+        return count;
+    }
+
+    /**
+     * @return The line without its line ending.
+     */
+    public String getLine(int line)
+    {
+        if (line < 0 || line >= lineCount) {
+            throw new IndexOutOfBoundsException("Line " + line + " of " + lineCount);
+        }
+
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(lineEnds[line]).position(lineStarts[line]);
+
+        return StandardCharsets.UTF_8.decode(slice).toString();
+    }
+
+    /**
+     * @return The lines, each decoded when it is read.
+     */
+    public List<String> getLines()
+    {
+        return new TextContentLines();
+    }
+
+    /**
+     * @return The lines joined with \n.
+     */
+    public String getText()
+    {
+        int length = 0;
+        for (int line = 0; line < lineCount; line++) {
+            length += lineEnds[line] - lineStarts[line] + 1;
+        }
+
+        StringBuilder text = new StringBuilder(length);
+        for (int line = 0; line < lineCount; line++) {
+            if (line > 0) {
+                text.append('\n');
+            }
+            text.append(getLine(line));
+        }
+
+        return text.toString();
+    }
+
+    private class TextContentLines extends AbstractList<String> implements RandomAccess {
+        @Override
+        public String get(int index)
+        {
+            return getLine(index);
+        }
+
+        @Override
+        public int size()
+        {
+            return lineCount;
+        }
+    }
+}
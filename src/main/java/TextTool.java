@@ -2,42 +2,206 @@ import java.io.*;
 import java.time.LocalDate;
 import java.time.LocalTime;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.ParameterException;
 
-class DocumentRunnable implements Runnable {
-    private DocumentGenerator documentGenerator;
-    private boolean generateEpub;
-    private boolean generateDocx;
+/**
+ * The generation of one item: its documents are listed first, then each is
+ * generated, possibly on different threads, then the item is finished.
+ */
+class DocumentJob {
+    final String id;
+    private final DocumentGenerator documentGenerator;
+    private final boolean generateEpub;
+    private final boolean generateDocx;
+    private final BuildManifest manifest;
+    private final RecordingDataSource dataSource;
+    private final RunMetrics runMetrics;
+    private final DocumentMetrics metrics;
+    private final CheckpointJournal journal;
+    private final JobBudget budget;
+    private volatile boolean failed;
+    private volatile boolean cancelled;
+    // Set when a reused volume's inputs weren't journaled, so the item can't be recorded in the manifest
+    private volatile boolean inputsUnknown;
+    private boolean quarantineReported;
+    private long startNanos;
+    // Set by the scheduler, to run the largest items first
+    long estimatedCost;
 
-    DocumentRunnable(DocumentGenerator documentGenerator, boolean generateEpub, boolean generateDocx) {
+    /**
+     * @param manifest The manifest to record the item's inputs and outputs in, or null when not incremental.
+     * @param dataSource The data source the generator reads from, when there is a manifest.
+     * @param metrics The item's metrics, which the generator records its stages in.
+     * @param journal The journal of the run, to skip the volumes finished before it was resumed, or null.
+     * @param budget The item's budget, checked as it is generated.
+     */
+    DocumentJob(String id, DocumentGenerator documentGenerator, boolean generateEpub, boolean generateDocx, BuildManifest manifest, RecordingDataSource dataSource, RunMetrics runMetrics, DocumentMetrics metrics, CheckpointJournal journal, JobBudget budget) {
+        this.id = id;
         this.documentGenerator = documentGenerator;
         this.generateEpub = generateEpub;
         this.generateDocx = generateDocx;
+        this.manifest = manifest;
+        this.dataSource = dataSource;
+        this.runMetrics = runMetrics;
+        this.metrics = metrics;
+        this.journal = journal;
+        this.budget = budget;
+    }
+
+    /**
+     * Lists the item's documents, or none if it fails or a volume's text is
+     * over the size budget.
+     */
+    List<MarkdownDocument> start() {
+        startNanos = System.nanoTime();
+        budget.start();
+        budget.enter();
+        try {
+            List<MarkdownDocument> documents = documentGenerator.planDocuments();
+            for (MarkdownDocument document: documents) {
+                if (document.volumeContent != null) {
+                    document.volumeContent.budget = budget;
+                    budget.checkTextSize(document.volumeContent.getEtextIRI(), document.volumeContent.getTextSize());
+                }
+            }
+            return documents;
+        } catch(BudgetExceededException e) {
+            quarantined(e);
+            return new ArrayList<>();
+        } catch(Throwable e) {
+            // Errors too, such as a stack overflow, so they only fail this item
+            failed(e);
+            return new ArrayList<>();
+        } finally {
+            budget.exit();
+        }
+    }
+
+    void generate(MarkdownDocument document) {
+        if (cancelled || budget.getExceededReason() != null) {
+            return;
+        }
+
+        if (journal != null) {
+            List<String> doneOutputs = journal.getDoneVolume(id, document.name);
+            if (doneOutputs != null) {
+                documentGenerator.reuseOutputs(doneOutputs);
+                if (dataSource != null) {
+                    List<String> doneInputs = journal.getDoneVolumeInputs(id, document.name);
+                    if (doneInputs != null) {
+                        dataSource.addInputPaths(doneInputs);
+                    } else {
+                        inputsUnknown = true;
+                    }
+                }
+                return;
+            }
+        }
 
+        budget.enter();
+        try {
+            budget.check();
+            List<String> outputs = documentGenerator.generateDocument(document, generateEpub, generateDocx);
+            if (outputs == null) {
+                // The generator has reported why
+                document.release();
+                failed = true;
+            } else if (journal != null) {
+                journal.recordVolume(id, document.name, outputs, (dataSource != null) ? dataSource.getInputPaths() : null);
+            }
+        } catch(BudgetExceededException e) {
+            document.release();
+            quarantined(e);
+        } catch(Throwable e) {
+            document.release();
+            failed(e);
+        } finally {
+            budget.exit();
+        }
     }
 
-    @Override
-    public void run() {
+    /**
+     * Records the item in the manifest, unless one of its documents failed,
+     * it was cancelled, or it reused a volume whose inputs are unknown.
+     */
+    void finish() {
         try {
-            documentGenerator.generateDocuments(generateEpub, generateDocx);
-        } catch(Exception e) {
-            System.out.println("Exception generating document");
-            System.out.println(e);
+            if (manifest != null && !failed && !cancelled && !inputsUnknown) {
+                manifest.record(id, dataSource.getInputPaths(), documentGenerator.getOutputPaths());
+            }
+        } catch(Throwable e) {
+            failed(e);
         }
+        if (journal != null && !cancelled) {
+            journal.recordItem(id, failed);
+        }
+        runMetrics.finishDocument(metrics, startNanos);
     }
-}
 
-class Args {
-    @Parameter
-    public List<String> parameters = new ArrayList<>();
+    /**
+     * Skips the documents that haven't started yet.
+     */
+    void cancel() {
+        cancelled = true;
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
 
+    boolean hasFailed() {
+        return failed;
+    }
+
+    /**
+     * @return Why the item was stopped for going over its budget, or null if it wasn't.
+     */
+    String getQuarantineReason() {
+        return budget.getExceededReason();
+    }
+
+    List<String> getOutputPaths() {
+        return documentGenerator.getOutputPaths();
+    }
+
+    /**
+     * @return The item's pandoc conversions that failed, once they have all finished.
+     */
+    List<ProcessResult> awaitConversions() throws InterruptedException {
+        return documentGenerator.awaitConversions();
+    }
+
+    /**
+     * Only the first volume to find the item over its budget reports it.
+     */
+    private synchronized void quarantined(BudgetExceededException e) {
+        failed = true;
+        if (!quarantineReported) {
+            quarantineReported = true;
+            System.out.println("Quarantined " + id + ": " + e.getMessage());
+        }
+    }
+
+    private void failed(Throwable e) {
+        failed = true;
+        System.out.println("Exception generating document");
+        System.out.println(e);
+    }
+}
+
+/**
+ * The options of every command that generates items.
+ */
+class GenerationArgs {
     @Parameter(names={"--sourceDir", "-s"}, order = 0, required = true, description = "The directory that contains the directories containing the .ttl files. (required)")
     public String sourceDir;
 
@@ -47,6 +211,47 @@ class Args {
     @Parameter(names={"--documentFiles", "-df"}, order = 2, description = "The directory that contains files used for the epub and docx. Defaults to ./document_files")
     public String documentFiles;
 
+    @Parameter(names={"--cacheSize", "-cs"}, order = 6, description = "Maximum number of parsed resources kept in memory and shared between items.")
+    public int cacheSize = 5000;
+
+    @Parameter(names={"--backend", "-b"}, order = 7, description = "How epub and docx files are written: native, or pandoc to convert the markdown with pandoc.")
+    public String backend = DocumentGenerator.BACKEND_NATIVE;
+
+    @Parameter(names={"--pandocJobs", "-pj"}, order = 8, description = "Maximum number of pandoc processes run at once. Defaults to half the available processors.")
+    public int pandocJobs = 0;
+
+    @Parameter(names={"--pandocTimeout", "-pt"}, order = 9, description = "Seconds a pandoc conversion may run before it is stopped.")
+    public int pandocTimeout = 600;
+
+    @Parameter(names={"--pandocRetries", "-pr"}, order = 10, description = "Number of times a failed pandoc conversion is retried.")
+    public int pandocRetries = 1;
+
+    @Parameter(names={"--reindex", "-ri"}, order = 12, description = "Rebuild the index of the source directory's files, e.g. after files were changed in place.")
+    public boolean reindex;
+
+    @Parameter(names={"--volumeJobs", "-vj"}, order = 14, description = "Maximum number of volumes of one item generated at once. Defaults to the number of generation threads.")
+    public int volumeJobs = 0;
+
+    @Parameter(names={"--itemTimeout", "-it"}, order = 17, description = "Seconds an item may take before it is stopped and quarantined, or 0 for no limit.")
+    public int itemTimeout = 3600;
+
+    @Parameter(names={"--maxTextSize", "-mts"}, order = 18, description = "Megabytes of text a volume may have, larger items are quarantined without being generated, or 0 for no limit.")
+    public int maxTextSize = 512;
+
+    @Parameter(names={"--maxSectionDepth", "-msd"}, order = 19, description = "Levels of nested work parts an item may have before it is quarantined, or 0 for no limit.")
+    public int maxSectionDepth = 64;
+
+    @Parameter(names={"--maxAllocation", "-ma"}, order = 20, description = "Approximate megabytes an item may allocate, garbage included, before it is quarantined, or 0 for no limit.")
+    public int maxAllocation = 0;
+
+    @Parameter(names={"--help", "-h"}, order = 21, help = true, description = "Display the usage information.")
+    public boolean help;
+}
+
+class Args extends GenerationArgs {
+    @Parameter
+    public List<String> parameters = new ArrayList<>();
+
     @Parameter(names={"--itemId", "-id"}, order = 3, description = "If supplied, only the item with this id will be processed.")
     public String itemId;
 
@@ -56,19 +261,78 @@ class Args {
     @Parameter(names={"--epub", "-e"}, order = 5, description = "Only generate epub files")
     public boolean epub;
 
-    @Parameter(names={"--help", "-h"}, order = 6, help = true, description = "Display the usage information.")
+    @Parameter(names={"--incremental", "-inc"}, order = 11, description = "Write into the output directory itself rather than a new dated directory, and only regenerate the items whose input files changed since the last run.")
+    public boolean incremental;
+
+    @Parameter(names={"--summaryInterval", "-si"}, order = 13, description = "Seconds between the progress summary lines printed during a run, or 0 for none.")
+    public int summaryInterval = 30;
+
+    @Parameter(names={"--shard", "-sh"}, order = 15, description = "Only generate this machine's part of the items, given as k/N for part k of N. The files are written in shard-k-of-N in the output directory, for merge to combine.")
+    public String shard;
+
+    @Parameter(names={"--resume", "-r"}, order = 16, description = "The output directory of an interrupted run to finish, with the same options. The items and volumes it completed are kept and the rest are generated.")
+    public String resume;
+}
+
+class MergeArgs {
+    @Parameter(names={"--outputDir", "-o"}, order = 0, required = true, description = "The output directory the shards were generated in. (required)")
+    public String outputDir;
+
+    @Parameter(names={"--targetDir", "-t"}, order = 1, description = "The directory to merge the shards into. Defaults to a new dated directory in the output directory.")
+    public String targetDir;
+
+    @Parameter(names={"--help", "-h"}, order = 2, help = true, description = "Display the usage information.")
     public boolean help;
 }
 
+class CompileArgs {
+    @Parameter(names={"--sourceDir", "-s"}, order = 0, required = true, description = "The directory that contains the directories containing the .ttl files. (required)")
+    public String sourceDir;
+
+    @Parameter(names={"--reindex", "-ri"}, order = 1, description = "Rebuild the index of the source directory's files before compiling.")
+    public boolean reindex;
+
+    @Parameter(names={"--help", "-h"}, order = 2, help = true, description = "Display the usage information.")
+    public boolean help;
+}
+
+/**
+ * The job server's options, along with those of a normal run. A job over
+ * its budget fails rather than being quarantined.
+ */
+class ServeArgs extends GenerationArgs {
+    @Parameter(names={"--port", "-p"}, order = 3, description = "The port the job API listens on, on the loopback interface.")
+    public int port = 8090;
+
+    @Parameter(names={"--jobs", "-j"}, order = 4, description = "Maximum number of items generated at once.")
+    public int jobs = 1;
+}
+
 public class TextTool {
 
     private static int threadCount = 4;
     private static final String ETEXT_TYPE = "ItemEtextPaginated";
     private static final String ETEXT_PREFIX = "E";
+    private static final String ITEMS_DIR = "items";
     private static final String TERMS_FILENAME = "terms.md";
+    private static final AtomicInteger upToDateCount = new AtomicInteger();
+    private static final AtomicInteger resumedCount = new AtomicInteger();
 
     public static void main(String[] args)
     {
+        if (args.length > 0 && args[0].equals("compile")) {
+            compile(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("serve")) {
+            serve(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("merge")) {
+            merge(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
         Args commandArgs = new Args();
         JCommander jcommander = JCommander.newBuilder()
                 .addObject(commandArgs)
@@ -88,6 +352,7 @@ public class TextTool {
 
         int processors = Runtime.getRuntime().availableProcessors();
         threadCount = (processors > 1) ? processors - 1 : 1;
+        int volumeJobs = (commandArgs.volumeJobs > 0) ? commandArgs.volumeJobs : threadCount;
 
         String workingDir = StringUtils.ensureTrailingSlash(System.getProperty("user.dir"));
         String dataPath = StringUtils.ensureTrailingSlash(commandArgs.sourceDir);
@@ -103,7 +368,27 @@ public class TextTool {
             }
             outputDirPath = commandArgs.outputDir;
         }
-        outputDirPath = StringUtils.ensureTrailingSlash(outputDirPath) + getOutputDirName();
+        if (commandArgs.resume != null) {
+            if (!(new File(commandArgs.resume).isDirectory())) {
+                System.out.println("Error: The run to resume does not exist - " + commandArgs.resume);
+                return;
+            }
+            outputDirPath = commandArgs.resume;
+        }
+        outputDirPath = StringUtils.ensureTrailingSlash(outputDirPath);
+        Shard shard = null;
+        if (commandArgs.shard != null) {
+            shard = Shard.parse(commandArgs.shard);
+            if (shard == null) {
+                System.out.println("Error: Give the shard as k/N, with k from 1 to N");
+                return;
+            }
+            // Every machine writes in its own directory, whose name they all agree on
+            outputDirPath += shard.getDirName() + "/";
+            new File(outputDirPath).mkdirs();
+        } else if (!commandArgs.incremental && commandArgs.resume == null) {
+            outputDirPath += getOutputDirName();
+        }
         String documentFilesDir = workingDir + "document_files";
         if (commandArgs.documentFiles != null) {
             documentFilesDir = StringUtils.ensureTrailingSlash(commandArgs.documentFiles) + "document_files";
@@ -113,64 +398,359 @@ public class TextTool {
         boolean createEpub = !commandArgs.docx;
         boolean createDocx = !commandArgs.epub;
 
+        String backend = commandArgs.backend;
+        if (!backend.equals(DocumentGenerator.BACKEND_NATIVE) && !backend.equals(DocumentGenerator.BACKEND_PANDOC)) {
+            System.out.println("Error: Unknown backend " + backend + ", use " + DocumentGenerator.BACKEND_NATIVE + " or " + DocumentGenerator.BACKEND_PANDOC);
+            return;
+        }
+
+        CorpusIndex corpusIndex = CorpusIndex.load(dataPath, commandArgs.reindex);
+        FileDataSource fileDataSource = new FileDataSource(dataPath, corpusIndex);
+        SnapshotDataSource snapshotDataSource = openSnapshot(dataPath, fileDataSource);
+        CachingDataSource dataSource = new CachingDataSource((snapshotDataSource != null) ? snapshotDataSource : fileDataSource, commandArgs.cacheSize);
+        int pandocJobs = (commandArgs.pandocJobs > 0) ? commandArgs.pandocJobs : Math.max(processors / 2, 1);
+        ProcessPool processPool = new ProcessPool(pandocJobs, commandArgs.pandocTimeout, commandArgs.pandocRetries);
+
+        RunMetrics runMetrics = new RunMetrics();
+        runMetrics.startLiveSummary(commandArgs.summaryInterval);
+
+        ShardResults shardResults = (shard != null) ? new ShardResults() : null;
+        String options = "epub=" + createEpub + " docx=" + createDocx + " backend=" + backend;
+        BuildManifest manifest = null;
+        if (commandArgs.incremental) {
+            new File(outputDirPath).mkdirs();
+            manifest = BuildManifest.load(outputDirPath, documentFilesDir, fileDataSource.getOntologyPath(), options);
+        }
+
+        BudgetLimits budgetLimits = new BudgetLimits(commandArgs.itemTimeout, commandArgs.maxTextSize, commandArgs.maxSectionDepth, commandArgs.maxAllocation);
+        QuarantineReport quarantine = new QuarantineReport();
+        CheckpointJournal journal = null;
         if (itemId != null && itemId.length() > 0) {
-            // just process the given item
-            processResource(itemId, dataPath, outputDirPath, documentFilesDir, createEpub, createDocx, null);
+            // just process the given item. Its volumes are generated in
+            // parallel, so the css file is created first, as for a directory.
+            DocumentGenerator.getEpubCss(DocumentGenerator.getEpubCssFilepath(documentFilesDir), outputDirPath);
+            DocumentJob job = createJob(itemId, dataSource, outputDirPath, documentFilesDir, createEpub, createDocx, backend, processPool, manifest, runMetrics, null, budgetLimits);
+            if (job != null) {
+                new ItemScheduler(volumeJobs, volumeJobs, 0).run(Collections.singletonList(job), dataSource);
+                if (job.getQuarantineReason() != null) {
+                    quarantine.record(job.id, job.getQuarantineReason());
+                }
+            }
         } else {
-            createEpubsForDirectory(dataPath, outputDirPath, documentFilesDir, createEpub, createDocx);
+            new File(outputDirPath).mkdirs();
+            journal = CheckpointJournal.open(outputDirPath, options, commandArgs.resume != null);
+            if (journal == null) {
+                runMetrics.stopLiveSummary();
+                return;
+            }
+            if (!createEpubsForDirectory(corpusIndex, dataSource, outputDirPath, documentFilesDir, createEpub, createDocx, backend, processPool, manifest, journal, budgetLimits, quarantine, runMetrics, volumeJobs, commandArgs.summaryInterval, shard, shardResults)) {
+                runMetrics.stopLiveSummary();
+                journal.close();
+                return;
+            }
+        }
+
+        // The markdown is all written, but conversions may still be running
+        processPool.awaitCompletion();
+        runMetrics.stopLiveSummary();
+
+        Map<String, Long> counters = new LinkedHashMap<>();
+        counters.put("resourceCacheHits", dataSource.getHits());
+        counters.put("resourceCacheMisses", dataSource.getMisses());
+        counters.put("resourceCacheEvictions", dataSource.getEvictions());
+        counters.put("wylieCacheHits", WylieConverter.getHits());
+        counters.put("wylieCacheMisses", WylieConverter.getMisses());
+        counters.put("processesSucceeded", (long) processPool.getSucceededCount());
+        counters.put("processesFailed", (long) processPool.getFailures().size());
+        counters.put("itemsUpToDate", (long) upToDateCount.get());
+        counters.put("itemsResumed", (long) resumedCount.get());
+        counters.put("itemsQuarantined", (long) quarantine.size());
+        runMetrics.writeReport(outputDirPath, counters);
+        quarantine.save(outputDirPath);
+        if (shardResults != null) {
+            shardResults.save(outputDirPath, shard.toString(), counters, runMetrics);
+        }
+
+        System.out.println(runMetrics.getSummary());
+        System.out.println(dataSource.getStatistics());
+        System.out.println(WylieConverter.getStatistics());
+        if (snapshotDataSource != null) {
+            System.out.println(snapshotDataSource.getStatistics());
+        }
+        System.out.println(processPool.getStatistics());
+        if (quarantine.size() > 0) {
+            System.out.println("Quarantined: " + quarantine.size() + " items over their budget, see " + QuarantineReport.QUARANTINE_FILENAME);
+        }
+
+        if (manifest != null) {
+            manifest.save();
+            System.out.println("Incremental: " + upToDateCount.get() + " items up to date");
+        }
+        if (journal != null) {
+            // Only closed once the pandoc outputs it records are written
+            journal.close();
+            if (commandArgs.resume != null) {
+                System.out.println("Resumed: " + resumedCount.get() + " items were already done");
+            }
         }
     }
 
-    private static void createEpubsForDirectory(String sourceDir, String outputDir, String documentFilesDir, boolean createEpub, boolean createDocx)
+    /**
+     * Compiles the source directory's items, etexts, works and persons into a
+     * snapshot that later runs read instead of parsing the .ttl files.
+     */
+    private static void compile(String[] args)
     {
-        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        CompileArgs compileArgs = new CompileArgs();
+        JCommander jcommander = JCommander.newBuilder()
+                .addObject(compileArgs)
+                .programName("compile")
+                .build();
+        try {
+            jcommander.parse(args);
+        } catch (ParameterException e) {
+            System.out.println(e.getMessage());
+            jcommander.usage();
+            return;
+        }
+
+        if (compileArgs.help) {
+            jcommander.usage();
+            return;
+        }
+
+        String dataPath = StringUtils.ensureTrailingSlash(compileArgs.sourceDir);
+        if (!(new File(dataPath).exists())) {
+            System.out.println("Error: Supplied source directory does not exist - " + dataPath);
+            return;
+        }
+
+        CorpusIndex corpusIndex = CorpusIndex.load(dataPath, compileArgs.reindex);
+        // Also caches the ontology labels, which are compiled on first use
+        new FileDataSource(dataPath, corpusIndex);
+        CorpusSnapshot.compile(dataPath, corpusIndex, dataPath + CorpusSnapshot.SNAPSHOT_FILENAME);
+    }
 
+    /**
+     * Starts the job server, which generates items on request until the JVM is stopped.
+     */
+    private static void serve(String[] args)
+    {
+        ServeArgs serveArgs = new ServeArgs();
+        JCommander jcommander = JCommander.newBuilder()
+                .addObject(serveArgs)
+                .programName("serve")
+                .build();
+        try {
+            jcommander.parse(args);
+        } catch (ParameterException e) {
+            System.out.println(e.getMessage());
+            jcommander.usage();
+            return;
+        }
+
+        if (serveArgs.help) {
+            jcommander.usage();
+            return;
+        }
+
+        String workingDir = StringUtils.ensureTrailingSlash(System.getProperty("user.dir"));
+        String dataPath = StringUtils.ensureTrailingSlash(serveArgs.sourceDir);
+        if (!(new File(dataPath).exists())) {
+            System.out.println("Error: Supplied source directory does not exist - " + dataPath);
+            return;
+        }
+        String outputDirPath = (serveArgs.outputDir != null) ? serveArgs.outputDir : workingDir + "output/";
+        new File(outputDirPath).mkdirs();
+        String documentFilesDir = workingDir + "document_files";
+        if (serveArgs.documentFiles != null) {
+            documentFilesDir = StringUtils.ensureTrailingSlash(serveArgs.documentFiles) + "document_files";
+        }
+        String backend = serveArgs.backend;
+        if (!backend.equals(DocumentGenerator.BACKEND_NATIVE) && !backend.equals(DocumentGenerator.BACKEND_PANDOC)) {
+            System.out.println("Error: Unknown backend " + backend + ", use " + DocumentGenerator.BACKEND_NATIVE + " or " + DocumentGenerator.BACKEND_PANDOC);
+            return;
+        }
+
+        int processors = Runtime.getRuntime().availableProcessors();
+        int volumeJobs = (serveArgs.volumeJobs > 0) ? serveArgs.volumeJobs : Math.max(processors - 1, 1);
+        int pandocJobs = (serveArgs.pandocJobs > 0) ? serveArgs.pandocJobs : Math.max(processors / 2, 1);
+
+        CorpusIndex corpusIndex = CorpusIndex.load(dataPath, serveArgs.reindex);
+        FileDataSource fileDataSource = new FileDataSource(dataPath, corpusIndex);
+        SnapshotDataSource snapshotDataSource = openSnapshot(dataPath, fileDataSource);
+        // Checks the files of cached resources, as they may be edited while the server runs
+        CachingDataSource dataSource = new CachingDataSource((snapshotDataSource != null) ? snapshotDataSource : fileDataSource, serveArgs.cacheSize, true);
+        ProcessPool processPool = new ProcessPool(pandocJobs, serveArgs.pandocTimeout, serveArgs.pandocRetries);
+
+        BudgetLimits budgetLimits = new BudgetLimits(serveArgs.itemTimeout, serveArgs.maxTextSize, serveArgs.maxSectionDepth, serveArgs.maxAllocation);
+        JobServer server = new JobServer(dataSource, outputDirPath, documentFilesDir, backend, processPool, Math.max(serveArgs.jobs, 1), volumeJobs, budgetLimits);
+        try {
+            server.start(serveArgs.port);
+        } catch (IOException e) {
+            System.out.println("Error: Could not listen on port " + serveArgs.port);
+            System.out.println(e);
+        }
+    }
+
+    /**
+     * Combines the shard directories of a sharded run into one output directory.
+     */
+    private static void merge(String[] args)
+    {
+        MergeArgs mergeArgs = new MergeArgs();
+        JCommander jcommander = JCommander.newBuilder()
+                .addObject(mergeArgs)
+                .programName("merge")
+                .build();
+        try {
+            jcommander.parse(args);
+        } catch (ParameterException e) {
+            System.out.println(e.getMessage());
+            jcommander.usage();
+            return;
+        }
+
+        if (mergeArgs.help) {
+            jcommander.usage();
+            return;
+        }
+
+        String outputDirPath = StringUtils.ensureTrailingSlash(mergeArgs.outputDir);
+        if (!(new File(outputDirPath).exists())) {
+            System.out.println("Error: Supplied output directory does not exist");
+            return;
+        }
+        String targetDirPath = (mergeArgs.targetDir != null) ? mergeArgs.targetDir : outputDirPath + getOutputDirName();
+        Shard.merge(outputDirPath, targetDirPath);
+    }
+
+    /**
+     * @return The data source for the compiled snapshot in the data directory, or null if there is none.
+     */
+    private static SnapshotDataSource openSnapshot(String dataPath, FileDataSource fileDataSource)
+    {
+        if (new File(dataPath + CorpusSnapshot.SNAPSHOT_FILENAME).exists()) {
+            CorpusSnapshot snapshot = CorpusSnapshot.open(dataPath + CorpusSnapshot.SNAPSHOT_FILENAME);
+            if (snapshot != null) {
+                return new SnapshotDataSource(snapshot, dataPath, fileDataSource);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return Whether the items were generated, false if the shard's items couldn't be picked.
+     */
+    private static boolean createEpubsForDirectory(CorpusIndex corpusIndex, DataSource dataSource, String outputDir, String documentFilesDir, boolean createEpub, boolean createDocx, String backend, ProcessPool processPool, BuildManifest manifest, CheckpointJournal journal, BudgetLimits budgetLimits, QuarantineReport quarantine, RunMetrics runMetrics, int volumeJobs, int progressInterval, Shard shard, ShardResults shardResults)
+    {
         // Ensure the css file is created so it won't cause potential race condition.
         String cssTemplatePath = DocumentGenerator.getEpubCssFilepath(documentFilesDir);
         DocumentGenerator.getEpubCss(cssTemplatePath, outputDir);
 
-        String itemsPath = StringUtils.ensureTrailingSlash(sourceDir) + "items";
-        File[] dirs = new File(itemsPath).listFiles();
-        List<String> etextItemPaths = new ArrayList<>();
-        for (File dir: dirs) {
-            if (dir.isDirectory() && !dir.getName().startsWith(".")) {
-                File[] items = dir.listFiles();
-                for (File item: items) {
-                    if (item.getName().endsWith(".ttl")) {
-                        String id = item.getName().replaceAll("\\.ttl", "");
-                        String kind = id.split("_")[1].substring(0, 1);
-
-                        // Only process files that are etexts
-                        if (!kind.equals(ETEXT_PREFIX)) {
-                            continue;
-                        }
-
-                        etextItemPaths.add(item.getAbsolutePath());
-                        processResource(id, sourceDir, outputDir, documentFilesDir, createEpub, createDocx, executor);
-                    }
+        List<String> ids = new ArrayList<>();
+        for (String id: corpusIndex.getResourceIds(ITEMS_DIR)) {
+            String[] idParts = id.split("_");
+
+            // Only process files that are etexts
+            if (idParts.length < 2 || !idParts[1].startsWith(ETEXT_PREFIX)) {
+                continue;
+            }
+            ids.add(id);
+        }
+
+        Map<String, Long> costs = null;
+        if (shard != null) {
+            costs = shard.select(ids, dataSource, outputDir);
+            if (costs == null) {
+                return false;
+            }
+            System.out.println("Shard " + shard + ": " + costs.size() + " of " + ids.size() + " items");
+            ids = new ArrayList<>(costs.keySet());
+        }
+
+        List<DocumentJob> jobs = new ArrayList<>();
+        for (String id: ids) {
+            if (journal.isItemDone(id)) {
+                resumedCount.incrementAndGet();
+                // The manifest is only saved at the end of a run, so the interrupted one didn't
+                List<String> doneInputs = journal.getDoneItemInputs(id);
+                if (manifest != null && doneInputs != null) {
+                    manifest.record(id, doneInputs, journal.getDoneItemOutputs(id));
                 }
+                if (shardResults != null) {
+                    shardResults.recordItem(id, ShardResults.RESUMED);
+                }
+                continue;
+            }
+
+            DocumentJob job = createJob(id, dataSource, outputDir, documentFilesDir, createEpub, createDocx, backend, processPool, manifest, runMetrics, journal, budgetLimits);
+            if (job == null) {
+                if (shardResults != null) {
+                    shardResults.recordItem(id, ShardResults.UP_TO_DATE);
+                }
+                continue;
+            }
+            if (costs != null) {
+                job.estimatedCost = costs.get(id);
             }
+            jobs.add(job);
         }
 
-        executor.shutdown();
+        new ItemScheduler(threadCount, volumeJobs, progressInterval).run(jobs, dataSource);
+
+        for (DocumentJob job: jobs) {
+            if (job.getQuarantineReason() != null) {
+                quarantine.record(job.id, job.getQuarantineReason());
+            }
+            if (shardResults != null) {
+                String state = (job.getQuarantineReason() != null) ? ShardResults.QUARANTINED : job.hasFailed() ? ShardResults.FAILED : ShardResults.GENERATED;
+                if (state.equals(ShardResults.GENERATED) && hasFailedConversions(job)) {
+                    state = ShardResults.FAILED;
+                }
+                shardResults.recordItem(job.id, state);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Waits for the item's pandoc conversions, which are still running after its markdown is written.
+     */
+    private static boolean hasFailedConversions(DocumentJob job)
+    {
         try {
-            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            return !job.awaitConversions().isEmpty();
         } catch (InterruptedException e) {
-            System.out.println("Interrupted epub generation");
+            Thread.currentThread().interrupt();
+            return true;
         }
     }
 
-    private static void processResource(String id, String sourceDir, String outputDir, String documentFilesDir, boolean createEpub, boolean createDocx, ExecutorService executor)
+    /**
+     * @return The item's job, or null when the manifest has it up to date.
+     */
+    static DocumentJob createJob(String id, DataSource dataSource, String outputDir, String documentFilesDir, boolean createEpub, boolean createDocx, String backend, ProcessPool processPool, BuildManifest manifest, RunMetrics runMetrics, CheckpointJournal journal, BudgetLimits budgetLimits)
     {
+        if (manifest != null && manifest.isUpToDate(id)) {
+            upToDateCount.incrementAndGet();
+            return null;
+        }
+
         documentFilesDir = StringUtils.ensureTrailingSlash(documentFilesDir);
         String terms = StringUtils.getFileText(documentFilesDir + TERMS_FILENAME);
-        DocumentGenerator documentGenerator = new DocumentGenerator(id, sourceDir, outputDir, documentFilesDir, terms);
-        if (executor == null) {
-            documentGenerator.generateDocuments(createEpub, createDocx);
-        } else {
-            DocumentRunnable runnable = new DocumentRunnable(documentGenerator, createEpub, createDocx);
-            executor.execute(runnable);
+        DocumentMetrics metrics = runMetrics.startDocument(id);
+        dataSource = new MeasuringDataSource(dataSource, metrics);
+        RecordingDataSource recordingDataSource = null;
+        if (manifest != null) {
+            recordingDataSource = new RecordingDataSource(dataSource);
+            dataSource = recordingDataSource;
         }
+        DocumentGenerator documentGenerator = new DocumentGenerator(id, dataSource, outputDir, documentFilesDir, terms, backend, processPool, metrics);
+
+        return new DocumentJob(id, documentGenerator, createEpub, createDocx, manifest, recordingDataSource, runMetrics, metrics, journal, new JobBudget(budgetLimits));
     }
 
     private static String getOutputDirName()
@@ -0,0 +1,149 @@
+import java.io.IOException;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Base for writers that produce an output format straight from the section
+ * tree of a volume rather than from the markdown.
+ *
+ * The volume is walked in the same structure, and with the same paragraph
+ * and section splitting, as the markdown MarkdownGenerator writes.
+ */
+abstract class VolumeWriter {
+
+    private static final Pattern HEADING_CLASS_PATTERN = Pattern.compile("^(.*?)\\s*\\{\\.([^}]*)\\}$");
+    protected static final String EMPTY_SECTION_CLASS = "empty";
+
+    protected abstract void writeHeading(int level, String text, String cssClass) throws IOException;
+
+    protected abstract void writeAuthor(String author) throws IOException;
+
+    /**
+     * @param text Holds the paragraph from start to end, with lines separated by \n.
+     */
+    protected abstract void writeParagraph(CharSequence text, int start, int end) throws IOException;
+
+    protected abstract void writeTerms(Terms terms) throws IOException;
+
+    protected void writeVolume(VolumeContent volumeContent, Terms terms) throws IOException
+    {
+        List<WorkSection> sections = volumeContent.getSections();
+
+        if (volumeContent.title != null) {
+            writeHeading(1, volumeContent.title, null);
+        }
+
+        if (volumeContent.totalVolumes > 1) {
+            writeHeading(4, "པོད " + TibetanUtils.getTibetanNumber(volumeContent.volume), "volume");
+        }
+
+        writeTerms(terms);
+
+        for (WorkSection workSection: sections) {
+            volumeContent.budget.check();
+            writeSection(workSection, 2);
+        }
+    }
+
+    private void writeSection(WorkSection section, int level) throws IOException
+    {
+        if (section.title != null) {
+            String[] heading = splitHeading(section.title);
+            writeHeading(level, heading[0], heading[1]);
+        }
+
+        if (section.author != null) {
+            writeAuthor(section.author);
+        }
+
+        if (section.sections != null && section.sections.size() > 0) {
+            for (WorkSection workSection: section.sections) {
+                writeSection(workSection, level + 1);
+            }
+        } else if (section.content != null) {
+            writeText(section.content);
+        }
+    }
+
+    /**
+     * Same splitting as MarkdownGenerator.writeSplitText: a paragraph ends
+     * every linesPerPara lines or at an empty line, and an empty level 3
+     * heading is added roughly every maxSectionSize characters.
+     */
+    private void writeText(CharSequence text) throws IOException
+    {
+        int textEnd = text.length();
+        while (textEnd > 0 && text.charAt(textEnd - 1) == '\n') {
+            textEnd--;
+        }
+
+        int sectionLength = 0;
+        int paraLine = 0;
+        int paraStart = -1;
+        int paraEnd = -1;
+        int lineStart = 0;
+        while (lineStart < textEnd) {
+            int lineEnd = lineStart;
+            boolean isBlank = true;
+            while (lineEnd < textEnd && text.charAt(lineEnd) != '\n') {
+                char c = text.charAt(lineEnd);
+                if (c != ' ' && c != '\t') {
+                    isBlank = false;
+                }
+                lineEnd++;
+            }
+
+            paraLine++;
+            if (sectionLength > MarkdownGenerator.maxSectionSize) {
+                if (paraStart != -1) {
+                    writeParagraph(text, paraStart, paraEnd);
+                    paraStart = -1;
+                }
+                writeHeading(3, "", EMPTY_SECTION_CLASS);
+                sectionLength = 0;
+                paraLine = 0;
+            }
+
+            if (isBlank) {
+                if (paraStart != -1) {
+                    writeParagraph(text, paraStart, paraEnd);
+                    paraStart = -1;
+                }
+            } else {
+                if (paraStart == -1) {
+                    paraStart = lineStart;
+                }
+                paraEnd = lineEnd;
+            }
+
+            sectionLength += lineEnd - lineStart;
+            if (paraLine > 0 && paraLine % MarkdownGenerator.linesPerPara == 0) {
+                if (paraStart != -1) {
+                    writeParagraph(text, paraStart, paraEnd);
+                    paraStart = -1;
+                }
+                paraLine = 0;
+            }
+
+            lineStart = lineEnd + 1;
+        }
+
+        if (paraStart != -1) {
+            writeParagraph(text, paraStart, paraEnd);
+        }
+    }
+
+    /**
+     * @return The heading text and its class, from a title such as "The Text {.enHeader}".
+     */
+    protected static String[] splitHeading(String title)
+    {
+        Matcher matcher = HEADING_CLASS_PATTERN.matcher(title);
+        if (matcher.matches()) {
+            return new String[] {matcher.group(1), matcher.group(2)};
+        }
+
+        return new String[] {title, null};
+    }
+}
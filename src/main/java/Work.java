@@ -1,17 +1,59 @@
-import org.apache.jena.ontology.OntModel;
-
 import java.util.*;
 
 class WorkLocation {
-    int volume;
-    int startPage;
-    int endPage;
+    final int volume;
+    final int startPage;
+    final int endPage;
+
+    WorkLocation(int volume, int startPage, int endPage)
+    {
+        this.volume = volume;
+        this.startPage = startPage;
+        this.endPage = endPage;
+    }
+
+    /**
+     * Reads the location in one pass over its properties. A missing or
+     * invalid start page is 0, end page is the start page and volume is 1.
+     */
+    static WorkLocation fromResource(RDFResource location)
+    {
+        String[] values = new String[3];
+        location.forEachProperty((IRI, property) -> {
+            int index;
+            switch (IRI) {
+                case BDRCResource.CORE + "workLocationVolume": index = 0; break;
+                case BDRCResource.CORE + "workLocationPage": index = 1; break;
+                case BDRCResource.CORE + "workLocationEndPage": index = 2; break;
+                default: return;
+            }
+            if (values[index] == null && property.isLiteral()) {
+                values[index] = property.asLiteral().getString();
+            }
+        });
+
+        int startPage = parseInt(values[1], 0);
+        return new WorkLocation(parseInt(values[0], 1), startPage, parseInt(values[2], startPage));
+    }
+
+    private static int parseInt(String value, int defaultValue)
+    {
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
 }
 
 class WorkSection {
     Work work;
     String title;
-    String content;
+    CharSequence content;
     String author;
     int volume;
     WorkLocation location;
@@ -38,16 +80,26 @@ class MetadataItem {
     }
 }
 
+/**
+ * A work, with the properties the generators use read in a single pass when
+ * it is created. Its parts, location and main author are read on first use,
+ * by whichever of the item's volumes asks first.
+ */
 public class Work extends BDRCResource {
 
-    private RDFResource work;
+    private final RDFResource work;
+    private final String title;
+    private final String mainAuthorIRI;
+    private final RDFResource locationResource;
+    private final List<RDFResource> partResources;
+    private WorkLocation location;
+    private Map<Integer, List<Work>> workParts;
+    private Person mainAuthor;
+    private boolean mainAuthorLoaded;
 
     public Work(String IRI, DataSource dataSource)
     {
-        super(IRI, dataSource);
-
-        work = dataSource.loadResource(IRI);
-        resource = work;
+        this(dataSource.loadResource(IRI), dataSource);
     }
 
     public Work(RDFResource work, DataSource dataSource)
@@ -56,6 +108,39 @@ public class Work extends BDRCResource {
 
         this.work = work;
         resource = work;
+
+        String[] titleValue = new String[1];
+        RDFResource[] resourceValues = new RDFResource[2];
+        List<RDFResource> parts = new ArrayList<>();
+        work.forEachProperty((IRI, property) -> {
+            switch (IRI) {
+                case SKOS + "prefLabel":
+                    if (titleValue[0] == null && property.isLiteral()) {
+                        titleValue[0] = property.asLiteral().getString();
+                    }
+                    break;
+                case CORE + "creatorMainAuthor":
+                    if (resourceValues[0] == null && !property.isLiteral()) {
+                        resourceValues[0] = property.asResource();
+                    }
+                    break;
+                case CORE + "workLocation":
+                    if (resourceValues[1] == null && !property.isLiteral()) {
+                        resourceValues[1] = property.asResource();
+                    }
+                    break;
+                case CORE + "workHasPart":
+                    if (!property.isLiteral()) {
+                        parts.add(property.asResource());
+                    }
+                    break;
+            }
+        });
+
+        title = titleValue[0];
+        mainAuthorIRI = (resourceValues[0] != null) ? resourceValues[0].getIRI() : null;
+        locationResource = resourceValues[1];
+        partResources = parts;
     }
 
     @Override
@@ -65,7 +150,7 @@ public class Work extends BDRCResource {
 
     @Override
     String getTitle() {
-        return work.getString(SKOS.concat("prefLabel"));
+        return title;
     }
 
     public List<MetadataItem> getMetadata()
@@ -86,9 +171,9 @@ public class Work extends BDRCResource {
                     continue;
                 }
 
-                OntModel ontModel = work.getOntModel();
+                Ontology ontology = work.getOntology();
                 if (item.label.isEmpty()) {
-                    item.label = RDFUtil.getOntologyLabel(ontModel, item.IRI);
+                    item.label = RDFUtil.getOntologyLabel(ontology, item.IRI);
                 }
                 List<String> propItems = new ArrayList<>();
                 for (RDFProperty prop: props) {
@@ -122,118 +207,53 @@ public class Work extends BDRCResource {
      *
      * @return Volume number is the key
      */
-    public Map<Integer, List<Work>> getWorkParts()
+    public synchronized Map<Integer, List<Work>> getWorkParts()
     {
-        List<RDFResource> workPartResources = work.getPropertyResources(CORE+"workHasPart");
-        HashMap<Integer, List<Work>> workParts = new HashMap<>();
-
-        for (RDFResource workPartResource: workPartResources) {
-            Work workPart = new Work(workPartResource, dataSource);
-            WorkLocation location = workPart.getLocation();
-            if (location != null) {
-                List<Work> volumeParts = workParts.get(location.volume);
-                if (volumeParts == null) {
-                    volumeParts = new ArrayList<>();
+        if (workParts == null) {
+            workParts = new HashMap<>();
+            for (RDFResource workPartResource: partResources) {
+                Work workPart = new Work(workPartResource, dataSource);
+                WorkLocation location = workPart.getLocation();
+                if (location != null) {
+                    workParts.computeIfAbsent(location.volume, volume -> new ArrayList<>()).add(workPart);
                 }
-                volumeParts.add(workPart);
-                workParts.put(location.volume, volumeParts);
             }
         }
 
         return workParts;
     }
 
-    public WorkLocation getLocation()
+    public synchronized WorkLocation getLocation()
     {
-        WorkLocation location = null;
-        RDFResource locationData = work.getPropertyResource(CORE+"workLocation");
-        if (locationData != null) {
-            location = new WorkLocation();
-            try {
-                location.startPage = locationData.getInteger(CORE + "workLocationPage");
-            } catch (Exception e) {}
-            try {
-                location.endPage = locationData.getInteger(CORE+"workLocationEndPage");
-            } catch (Exception e) {
-                location.endPage = location.startPage;
-            }
-            try {
-                location.volume = locationData.getInteger(CORE + "workLocationVolume");
-            } catch (Exception e) {
-                location.volume = 1;
-            }
+        if (location == null && locationResource != null) {
+            location = WorkLocation.fromResource(locationResource);
         }
 
         return location;
     }
 
-    public RDFResource getMainAuthor()
+    public synchronized Person getMainAuthor()
     {
-        RDFResource author = work.getPropertyResource(CORE+"creatorMainAuthor");
-        if (author != null) {
-            try {
-                author = dataSource.loadResource(author.getIRI());
-            } catch (Exception e) {
-                author = null;
+        if (!mainAuthorLoaded) {
+            mainAuthorLoaded = true;
+            if (mainAuthorIRI != null) {
+                try {
+                    mainAuthor = new Person(dataSource.loadResource(mainAuthorIRI), PREFERRED_LANGUAGE);
+                } catch (Exception e) {
+                    mainAuthor = null;
+                }
             }
         }
 
-        return author;
+        return mainAuthor;
     }
 
+    /**
+     * Builds the work's outline for one volume's sections. Items build it
+     * once for all their volumes instead.
+     */
     public List<WorkSection> getSections(Etext etext, int volume)
     {
-        List<WorkSection> sections = new ArrayList<>();
-        Map<Integer, List<Work>> workParts = getWorkParts();
-        List<Work> works = null;
-        if (workParts != null) works = workParts.get(volume);
-        String author = getAuthor();
-
-        if (works != null && works.size() > 0) {
-            for (Work textWork : works) {
-                WorkSection section = new WorkSection();
-                section.work = textWork;
-                WorkLocation location = textWork.getLocation();
-                section.location = location;
-                Map<Integer, String> pagesContent = etext.getPageContent();
-                if (location != null && pagesContent != null) {
-                    if (pagesContent.containsKey(location.startPage) &&
-                            pagesContent.containsKey(location.endPage)) {
-                        StringBuilder sb = new StringBuilder();
-                        if (location.startPage < location.endPage) {
-                            for (int i = location.startPage; i <= location.endPage; i++) {
-                                sb.append(pagesContent.get(i));
-                            }
-                        } else if (location.startPage == location.endPage) {
-                            sb.append(pagesContent.get(location.startPage));
-                        }
-                        String content = sb.toString();
-                        String title = textWork.getTitle();
-                        section.content = content;
-                        section.title = title;
-                        List<WorkSection> workSections = new Work(textWork.work, dataSource).getSections(etext, volume);
-                        if (workSections.size() > 0) {
-                            section.sections = workSections;
-                        }
-
-                        sections.add(section);
-
-                        String textWorkAuthor = textWork.getAuthor();
-                        if (author == null || (textWorkAuthor != null && !author.equals(textWorkAuthor))) {
-                            section.author = textWorkAuthor;
-                        }
-                    }
-                } else {
-                    if (location == null) {
-                        System.out.printf("Missing location for work: %s %n", textWork.IRI);
-                    }
-                    if (pagesContent == null) {
-                        System.out.printf("Missing page data for work: %s %n", textWork.IRI);
-                    }
-                }
-            }
-        }
-
-        return sections;
+        return WorkOutline.build(this).getSections(etext.getPageContent(), volume, JobBudget.UNLIMITED);
     }
 }
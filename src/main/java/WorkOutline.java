@@ -0,0 +1,214 @@
+import java.util.*;
+
+/**
+ * One work part in an outline, with what the sections need of it read once.
+ */
+class OutlinePart {
+    private static final OutlinePart[] NO_PARTS = new OutlinePart[0];
+
+    final Work work;
+    final OutlinePart parent;
+    final String title;
+    // Only set when it differs from the parent's
+    final String author;
+    final WorkLocation location;
+    // 0 for the outline's work, 1 for its parts
+    final int depth;
+    private final String mainAuthor;
+    // The parts in each volume, in the order the work lists them
+    private final Map<Integer, OutlinePart[]> parts = new HashMap<>();
+
+    OutlinePart(Work work, OutlinePart parent)
+    {
+        this.work = work;
+        this.parent = parent;
+        this.title = work.getTitle();
+        this.location = work.getLocation();
+        this.depth = (parent != null) ? parent.depth + 1 : 0;
+        this.mainAuthor = work.getAuthor();
+
+        String parentAuthor = (parent != null) ? parent.mainAuthor : null;
+        this.author = (parentAuthor == null || (mainAuthor != null && !parentAuthor.equals(mainAuthor))) ? mainAuthor : null;
+    }
+
+    OutlinePart[] getParts(int volume)
+    {
+        return parts.getOrDefault(volume, NO_PARTS);
+    }
+
+    boolean hasParts()
+    {
+        return !parts.isEmpty();
+    }
+
+    /**
+     * Only called while the outline is built.
+     */
+    void setParts(int volume, OutlinePart[] volumeParts)
+    {
+        parts.put(volume, volumeParts);
+    }
+
+    /**
+     * @return Whether the work is this part or one of the parts containing it.
+     */
+    boolean isWithin(String IRI)
+    {
+        for (OutlinePart part = this; part != null; part = part.parent) {
+            if (part.work.IRI.equals(IRI)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
+
+/**
+ * The tree of parts of an item's work, resolved once for the item and then
+ * only read, by every volume and output format. It is built without
+ * recursion, and a part that contains itself, directly or through its own
+ * parts, is reported and left out rather than followed forever.
+ *
+ * The work's own parts are kept by volume, sorted by start page, the order
+ * the sections of a volume are written in. Deeper parts keep the order the
+ * work lists them in.
+ */
+public class WorkOutline {
+
+    private final OutlinePart root;
+
+    private WorkOutline(OutlinePart root)
+    {
+        this.root = root;
+    }
+
+    public static WorkOutline build(Work work)
+    {
+        OutlinePart root = new OutlinePart(work, null);
+        Deque<OutlinePart> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            OutlinePart part = pending.pop();
+            for (Map.Entry<Integer, List<Work>> volumeParts: part.work.getWorkParts().entrySet()) {
+                List<OutlinePart> children = new ArrayList<>();
+                for (Work workPart: volumeParts.getValue()) {
+                    if (part.isWithin(workPart.IRI)) {
+                        System.out.println("Work part cycle: " + workPart.IRI + " is a part of itself, through " + part.work.IRI);
+                        continue;
+                    }
+                    OutlinePart child = new OutlinePart(workPart, part);
+                    children.add(child);
+                    pending.push(child);
+                }
+
+                OutlinePart[] childArray = children.toArray(new OutlinePart[0]);
+                if (part == root) {
+                    // Stable, so parts starting on the same page keep their order
+                    Arrays.sort(childArray, Comparator.comparingInt(child -> child.location.startPage));
+                }
+                part.setParts(volumeParts.getKey(), childArray);
+            }
+        }
+
+        return new WorkOutline(root);
+    }
+
+    /**
+     * @return Whether the work has any part with a location.
+     */
+    public boolean hasParts()
+    {
+        return root.hasParts();
+    }
+
+    /**
+     * Builds the sections of one volume from its pages, as views on the
+     * volume's text. Each part's pages are found with a binary search, so a
+     * volume with n parts takes O(n log n).
+     *
+     * A part whose first or last pages are missing from the text keeps the
+     * pages that are there, and is reported, as are a part missing pages in
+     * between, and a part with none of its pages in the text, which is left
+     * out. Parts overlapping another part of the same work are counted and
+     * reported once per volume.
+     */
+    public List<WorkSection> getSections(EtextPageContent pagesContent, int volume, JobBudget budget)
+    {
+        int[] overlaps = new int[1];
+        List<WorkSection> sections = getSections(root, pagesContent, volume, budget, overlaps);
+        if (overlaps[0] > 0) {
+            System.out.printf("Overlapping work parts: %d parts of %s share pages with another part in volume %d %n", overlaps[0], root.work.IRI, volume);
+        }
+
+        return sections;
+    }
+
+    private static List<WorkSection> getSections(OutlinePart parent, EtextPageContent pagesContent, int volume, JobBudget budget, int[] overlaps)
+    {
+        List<WorkSection> sections = new ArrayList<>();
+        List<TextRange> ranges = new ArrayList<>();
+        for (OutlinePart part: parent.getParts(volume)) {
+            budget.checkSectionDepth(part.work.IRI, part.depth);
+            if (pagesContent == null) {
+                System.out.printf("Missing page data for work: %s %n", part.work.IRI);
+                continue;
+            }
+
+            WorkLocation location = part.location;
+            TextRange range = pagesContent.locate(location.startPage, location.endPage);
+            if (range == null) {
+                System.out.printf("No pages %d-%d of work %s in volume %d %n", location.startPage, location.endPage, part.work.IRI, volume);
+                continue;
+            }
+            if (range.firstPage != location.startPage || range.lastPage != location.endPage) {
+                System.out.printf("Missing pages of work %s in volume %d: using pages %d-%d of %d-%d %n",
+                        part.work.IRI, volume, range.firstPage, range.lastPage, location.startPage, location.endPage);
+            }
+            if (range.missingPages > 0) {
+                System.out.printf("Missing pages of work %s in volume %d: %d of pages %d-%d aren't in the text %n",
+                        part.work.IRI, volume, range.missingPages, range.firstPage, range.lastPage);
+            }
+            ranges.add(range);
+
+            WorkSection section = new WorkSection();
+            section.work = part.work;
+            section.location = location;
+            section.content = pagesContent.getText(range);
+            section.title = part.title;
+            section.author = part.author;
+            List<WorkSection> workSections = getSections(part, pagesContent, volume, budget, overlaps);
+            if (workSections.size() > 0) {
+                section.sections = workSections;
+            }
+            sections.add(section);
+        }
+        overlaps[0] += countOverlaps(ranges);
+
+        return sections;
+    }
+
+    /**
+     * @return The number of ranges that start before the end of a range
+     * starting before them.
+     */
+    static int countOverlaps(List<TextRange> ranges)
+    {
+        List<TextRange> sorted = new ArrayList<>(ranges);
+        sorted.sort(Comparator.comparingInt(range -> range.start));
+
+        int overlaps = 0;
+        int end = 0;
+        for (TextRange range: sorted) {
+            if (range.isEmpty()) {
+                continue;
+            }
+            if (range.start < end) {
+                overlaps++;
+            }
+            end = Math.max(end, range.end);
+        }
+
+        return overlaps;
+    }
+}
@@ -0,0 +1,42 @@
+import io.bdrc.ewtsconverter.EwtsConverter;
+
+/**
+ * Converts Wylie (EWTS) to Tibetan Unicode for the whole process.
+ *
+ * Building an EwtsConverter loads its conversion tables, so each thread
+ * builds one the first time it converts and keeps it. EwtsConverter keeps
+ * per-conversion state, so it isn't shared between threads. Converted
+ * strings are cached, as the same titles and names are converted for
+ * every document they appear in.
+ */
+class WylieConverter {
+
+    private static final int MAX_CACHED_CONVERSIONS = 20000;
+    private static final ThreadLocal<EwtsConverter> converters = ThreadLocal.withInitial(EwtsConverter::new);
+    private static final LruCache<String, String> conversions = new LruCache<>(MAX_CACHED_CONVERSIONS);
+
+    private WylieConverter() {}
+
+    static String toUnicode(String wylie)
+    {
+        return conversions.get(wylie, key -> converters.get().toUnicode(key));
+    }
+
+    static long getHits()
+    {
+        return conversions.getHits();
+    }
+
+    static long getMisses()
+    {
+        return conversions.getMisses();
+    }
+
+    static String getStatistics()
+    {
+        long lookups = conversions.getHits() + conversions.getMisses();
+        long hitRate = (lookups > 0) ? conversions.getHits() * 100 / lookups : 0;
+
+        return "Wylie conversions: " + conversions + ", hit rate=" + hitRate + "%";
+    }
+}
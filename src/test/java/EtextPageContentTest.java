@@ -0,0 +1,65 @@
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class EtextPageContentTest {
+
+    // Pages 1-3 and 5-6, without page 4, each 2 chars long after a 1 char page 0
+    private static EtextPageContent content()
+    {
+        return new EtextPageContent("xaabbccddee".toCharArray(), 11, new int[] {0, 1, 2, 3, 5, 6}, new int[] {0, 1, 3, 5, 7, 9}, 6);
+    }
+
+    @Test
+    public void locateFullRange()
+    {
+        TextRange range = content().locate(1, 3);
+        assertEquals(1, range.start);
+        assertEquals(7, range.end);
+        assertEquals(1, range.firstPage);
+        assertEquals(3, range.lastPage);
+        assertEquals(0, range.missingPages);
+        assertEquals("aabbcc", content().getText(range).toString());
+    }
+
+    @Test
+    public void locateMissingBoundaryPages()
+    {
+        TextRange range = content().locate(5, 8);
+        assertEquals(5, range.firstPage);
+        assertEquals(6, range.lastPage);
+        assertEquals(0, range.missingPages);
+        assertEquals("ddee", content().getText(range).toString());
+
+        range = content().locate(4, 5);
+        assertEquals(5, range.firstPage);
+        assertEquals(5, range.lastPage);
+        assertEquals("dd", content().getText(range).toString());
+    }
+
+    @Test
+    public void locateInteriorGap()
+    {
+        TextRange range = content().locate(2, 6);
+        assertEquals(2, range.firstPage);
+        assertEquals(6, range.lastPage);
+        assertEquals(1, range.missingPages);
+        assertEquals("bbccddee", content().getText(range).toString());
+    }
+
+    @Test
+    public void locateNoPages()
+    {
+        assertNull(content().locate(4, 4));
+        assertNull(content().locate(7, 9));
+    }
+
+    @Test
+    public void locateReversedRange()
+    {
+        TextRange range = content().locate(3, 1);
+        assertTrue(range.isEmpty());
+        assertEquals(0, range.missingPages);
+        assertNull(content().locate(4, 1));
+    }
+}
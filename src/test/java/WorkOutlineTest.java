@@ -0,0 +1,40 @@
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class WorkOutlineTest {
+
+    private static TextRange range(int start, int end)
+    {
+        return new TextRange(start, end, 0, 0, 0);
+    }
+
+    @Test
+    public void countOverlapsNone()
+    {
+        assertEquals(0, WorkOutline.countOverlaps(Collections.<TextRange>emptyList()));
+        assertEquals(0, WorkOutline.countOverlaps(Arrays.asList(range(10, 20), range(0, 10), range(20, 30))));
+    }
+
+    @Test
+    public void countOverlapsOverlapping()
+    {
+        assertEquals(1, WorkOutline.countOverlaps(Arrays.asList(range(0, 10), range(5, 15))));
+        assertEquals(2, WorkOutline.countOverlaps(Arrays.asList(range(10, 20), range(0, 12), range(18, 30))));
+    }
+
+    @Test
+    public void countOverlapsNested()
+    {
+        assertEquals(2, WorkOutline.countOverlaps(Arrays.asList(range(0, 30), range(5, 10), range(20, 25))));
+    }
+
+    @Test
+    public void countOverlapsSkipsEmptyRanges()
+    {
+        assertEquals(0, WorkOutline.countOverlaps(Arrays.asList(range(0, 10), range(5, 5), range(10, 10))));
+    }
+}